@@ -0,0 +1,125 @@
+package com.motondon.lazyloaddemoapp.benchmark;
+
+import com.motondon.lazyloaddemoapp.model.ImageDownloaderEngine;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Measurements of one benchmark pass: all the images of a set loaded through one engine in one cache state.
+ */
+public class BenchmarkResult {
+
+    public enum CacheState {
+        // Urls the engine never saw before: everything comes from the network
+        COLD,
+        // Memory cache was cleared: images come from the disk cache
+        DISK_WARM,
+        // Same urls loaded again right away: images come from the memory cache
+        MEMORY_WARM
+    }
+
+    private final ImageDownloaderEngine engine;
+    private final CacheState cacheState;
+
+    private final int imageCount;
+    private final int failureCount;
+
+    // All times in milliseconds
+    private final double timeToFirstImage;
+    private final double totalTime;
+    private final double[] sortedLatencies;
+
+    private final long peakJavaHeap;
+    private final long peakNativeHeap;
+    private final long bytesTransferred;
+
+    public BenchmarkResult(ImageDownloaderEngine engine, CacheState cacheState, int imageCount, int failureCount,
+                           double timeToFirstImage, double totalTime, double[] latencies,
+                           long peakJavaHeap, long peakNativeHeap, long bytesTransferred) {
+        this.engine = engine;
+        this.cacheState = cacheState;
+        this.imageCount = imageCount;
+        this.failureCount = failureCount;
+        this.timeToFirstImage = timeToFirstImage;
+        this.totalTime = totalTime;
+        this.peakJavaHeap = peakJavaHeap;
+        this.peakNativeHeap = peakNativeHeap;
+        this.bytesTransferred = bytesTransferred;
+
+        this.sortedLatencies = latencies.clone();
+        Arrays.sort(this.sortedLatencies);
+    }
+
+    public ImageDownloaderEngine getEngine() {
+        return engine;
+    }
+
+    public CacheState getCacheState() {
+        return cacheState;
+    }
+
+    public int getImageCount() {
+        return imageCount;
+    }
+
+    public int getFailureCount() {
+        return failureCount;
+    }
+
+    public double getTimeToFirstImage() {
+        return timeToFirstImage;
+    }
+
+    public double getTotalTime() {
+        return totalTime;
+    }
+
+    /**
+     * Latency percentile (nearest rank) of the images that were loaded successfully, or NaN if there is none.
+     *
+     * @param percentile between 0 and 100
+     * @return
+     */
+    public double getLatencyPercentile(double percentile) {
+        if (sortedLatencies.length == 0) {
+            return Double.NaN;
+        }
+
+        int rank = (int) Math.ceil(percentile / 100 * sortedLatencies.length);
+        return sortedLatencies[Math.max(0, Math.min(sortedLatencies.length - 1, rank - 1))];
+    }
+
+    /**
+     * Images loaded per second.
+     *
+     * @return
+     */
+    public double getThroughput() {
+        return totalTime > 0 ? (imageCount - failureCount) * 1000 / totalTime : 0;
+    }
+
+    public long getPeakJavaHeap() {
+        return peakJavaHeap;
+    }
+
+    public long getPeakNativeHeap() {
+        return peakNativeHeap;
+    }
+
+    public long getBytesTransferred() {
+        return bytesTransferred;
+    }
+
+    public static String getHeader() {
+        return "engine   state        ok/total  ttfi(ms)  p50(ms)  p90(ms)  p99(ms)  img/s  heap(MB)  native(MB)  KB";
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%-8s %-12s %4d/%-4d %9.1f %8.1f %8.1f %8.1f %6.1f %9.1f %11.1f %d",
+                engine, cacheState, imageCount - failureCount, imageCount, timeToFirstImage,
+                getLatencyPercentile(50), getLatencyPercentile(90), getLatencyPercentile(99), getThroughput(),
+                peakJavaHeap / 1024. / 1024., peakNativeHeap / 1024. / 1024., bytesTransferred / 1024);
+    }
+}
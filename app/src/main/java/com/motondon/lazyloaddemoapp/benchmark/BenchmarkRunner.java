@@ -0,0 +1,409 @@
+package com.motondon.lazyloaddemoapp.benchmark;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.LinearGradient;
+import android.graphics.Paint;
+import android.graphics.Shader;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+
+import com.motondon.lazyloaddemoapp.imageloader.ImageLoadListener;
+import com.motondon.lazyloaddemoapp.imageloader.ImageLoadMetrics;
+import com.motondon.lazyloaddemoapp.imageloader.ImageLoaderManager;
+import com.motondon.lazyloaddemoapp.imageloader.ImageLoaderManagerFactory;
+import com.motondon.lazyloaddemoapp.imageloader.manual.cache.FileCache;
+import com.motondon.lazyloaddemoapp.imageloader.manual.manager.ManualImageLoaderManager;
+import com.motondon.lazyloaddemoapp.model.ImageDownloaderEngine;
+import com.motondon.lazyloaddemoapp.model.ImageModel;
+import com.motondon.lazyloaddemoapp.provider.Images;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Loads the same image set through every engine and measures it, so that the engines can be compared with numbers instead of
+ * by scrolling the list.
+ *
+ * The images are served by a LocalImageServer (one synthetic JPEG per url of Images.imageThumbUrls or Images.imageUrls, with
+ * the same dimensions as the real ones), so that the results do not depend on the real network. Every engine runs three passes:
+ *   - COLD: a query parameter unique to the run makes urls the engine never cached
+ *   - DISK_WARM: the same urls after clearing the memory cache
+ *   - MEMORY_WARM: the same urls again
+ *
+ * Each pass requests all the images at once (as if a screen full of rows was bound) into new views, and measures the time to
+ * the first image, the latency of every image, throughput, peak Java and native heap and the bytes sent by the server.
+ *
+ * Must be started in the UI thread. The engines are always called in the UI thread, like when the list is scrolled.
+ *
+ * The engine of the app must be released before the benchmark is started (and created again once it is finished): most
+ * engines are singletons that the benchmark configures again, and two manual engines must not share a disk cache. The manual
+ * engine of the benchmark uses its own directory anyway (see BENCHMARK_CACHE_DIR), which is emptied at the end.
+ *
+ */
+public class BenchmarkRunner {
+
+    private static final String TAG = BenchmarkRunner.class.getSimpleName();
+
+    public interface Callback {
+        void onProgress(String message);
+
+        void onFinished(List<BenchmarkResult> results);
+    }
+
+    // Simulated network round trip for every response
+    private static final long RESPONSE_DELAY_MS = 50;
+
+    // A pass that takes longer than this is finished with the missing images counted as failures
+    private static final long PASS_TIMEOUT_MS = 120000;
+
+    private static final long HEAP_SAMPLING_INTERVAL_MS = 20;
+
+    // Disk cache of the manual engine, in the app cache directory. Big enough for the large images of every pass.
+    private static final String BENCHMARK_CACHE_DIR = "benchmark";
+    private static final long BENCHMARK_CACHE_SIZE = 50 * 1024 * 1024;
+
+    // Dimensions of the real images (see the "s240" and "s1024" url parameters)
+    private static final int THUMB_WIDTH = 240;
+    private static final int THUMB_HEIGHT = 160;
+    private static final int LARGE_WIDTH = 1024;
+    private static final int LARGE_HEIGHT = 683;
+
+    private final Context mContext;
+    private final boolean useLargeImages;
+    private final Bitmap.Config bitmapConfig;
+    private final Callback callback;
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private HandlerThread workerThread;
+    private Handler workerHandler;
+
+    private final LocalImageServer server = new LocalImageServer();
+    private final List<String> paths = new ArrayList<>();
+
+    private final List<ImageDownloaderEngine> engines = new ArrayList<>();
+    private final List<BenchmarkResult> results = new ArrayList<>();
+
+    // State of the current pass. Only accessed in the UI thread.
+    private ImageLoaderManager imageLoaderManager;
+    private ImageDownloaderEngine engine;
+    private BenchmarkResult.CacheState cacheState;
+    private int runId = 0;
+    private final Map<String, Long> pendingImages = new HashMap<>();
+    private final List<Double> latencies = new ArrayList<>();
+    private int imageCount;
+    private int failureCount;
+    private long passStartTime;
+    private long firstImageTime;
+
+    // Some engines only hold weak references to the views, so keep them alive until the pass is finished
+    private final List<ImageView> passViews = new ArrayList<>();
+
+    // Written by the worker thread, read in the UI thread when the pass is finished
+    private volatile boolean sampling;
+    private volatile long peakJavaHeap;
+    private volatile long peakNativeHeap;
+
+    public BenchmarkRunner(Context context, boolean useLargeImages, Bitmap.Config bitmapConfig, Callback callback) {
+        this.mContext = context;
+        this.useLargeImages = useLargeImages;
+        this.bitmapConfig = bitmapConfig;
+        this.callback = callback;
+    }
+
+    public void start() {
+        workerThread = new HandlerThread("Benchmark");
+        workerThread.start();
+        workerHandler = new Handler(workerThread.getLooper());
+
+        for (ImageDownloaderEngine engine : ImageDownloaderEngine.values()) {
+            engines.add(engine);
+        }
+
+        callback.onProgress("Generating images");
+
+        workerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    prepareServer();
+                } catch (IOException e) {
+                    Log.e(TAG, "start() - Could not start the local server: " + e.getMessage());
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            finish();
+                        }
+                    });
+                    return;
+                }
+
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        startNextEngine();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Generate one JPEG per image of the selected set and serve them on the loopback interface. Runs in the worker thread.
+     *
+     * @throws IOException
+     */
+    private void prepareServer() throws IOException {
+        int count = useLargeImages ? Images.imageUrls.length : Images.imageThumbUrls.length;
+        int width = useLargeImages ? LARGE_WIDTH : THUMB_WIDTH;
+        int height = useLargeImages ? LARGE_HEIGHT : THUMB_HEIGHT;
+        String set = useLargeImages ? "large" : "thumb";
+
+        for (int i = 0; i < count; i++) {
+            String path = "/" + set + "/" + i + ".jpg";
+            server.put(path, generateImage(i, width, height));
+            paths.add(path);
+        }
+
+        server.setResponseDelay(RESPONSE_DELAY_MS);
+        server.start();
+
+        Log.i(TAG, "prepareServer() - Serving " + count + " images on port " + server.getPort());
+    }
+
+    /**
+     * A gradient with a few random shapes. The seed is the image index, so every run gets exactly the same bytes.
+     *
+     * @param index
+     * @param width
+     * @param height
+     * @return
+     */
+    private byte[] generateImage(int index, int width, int height) {
+        Random random = new Random(index);
+
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+
+        Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        paint.setShader(new LinearGradient(0, 0, width, height, randomColor(random), randomColor(random), Shader.TileMode.CLAMP));
+        canvas.drawRect(0, 0, width, height, paint);
+        paint.setShader(null);
+
+        for (int i = 0; i < 30; i++) {
+            paint.setColor(randomColor(random));
+            canvas.drawCircle(random.nextInt(width), random.nextInt(height), random.nextInt(Math.max(1, height / 4)) + 2, paint);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, 85, out);
+        bitmap.recycle();
+
+        return out.toByteArray();
+    }
+
+    private static int randomColor(Random random) {
+        return Color.rgb(random.nextInt(256), random.nextInt(256), random.nextInt(256));
+    }
+
+    private void startNextEngine() {
+        if (engines.isEmpty()) {
+            finish();
+            return;
+        }
+
+        engine = engines.remove(0);
+        if (engine == ImageDownloaderEngine.MANUAL) {
+            imageLoaderManager = new ManualImageLoaderManager(mContext, true, true, new FileCache(getCacheDir(), BENCHMARK_CACHE_SIZE));
+        } else {
+            imageLoaderManager = ImageLoaderManagerFactory.create(mContext, engine, true, true);
+        }
+        imageLoaderManager.setImageLoadListener(imageLoadListener);
+        imageLoaderManager.setBitmapConfig(bitmapConfig);
+
+        runId++;
+        startPass(BenchmarkResult.CacheState.COLD);
+    }
+
+    private File getCacheDir() {
+        return new File(mContext.getCacheDir(), BENCHMARK_CACHE_DIR);
+    }
+
+    private void startPass(BenchmarkResult.CacheState state) {
+        cacheState = state;
+        callback.onProgress("Running " + engine + " " + cacheState);
+
+        if (state == BenchmarkResult.CacheState.DISK_WARM) {
+            imageLoaderManager.clearMemoryCache();
+        }
+
+        // Do not let the garbage of the previous pass count for this one
+        Runtime.getRuntime().gc();
+
+        pendingImages.clear();
+        passViews.clear();
+        latencies.clear();
+        failureCount = 0;
+        firstImageTime = 0;
+        imageCount = paths.size();
+        server.resetCounters();
+        startHeapSampling();
+
+        // Views the size of the grid cells, so that engines that decode to the view size do the same work as in the list
+        int cellSize = mContext.getResources().getDisplayMetrics().widthPixels / 3;
+
+        passStartTime = SystemClock.elapsedRealtimeNanos();
+        for (String path : paths) {
+            String url = server.getUrl(path) + "?run=" + runId;
+
+            ImageView imageView = new ImageView(mContext);
+            imageView.setLayoutParams(new ViewGroup.LayoutParams(cellSize, cellSize));
+            passViews.add(imageView);
+
+            pendingImages.put(url, SystemClock.elapsedRealtimeNanos());
+            imageLoaderManager.loadImage(new ImageModel(url, imageView));
+        }
+
+        mainHandler.postDelayed(passTimeout, PASS_TIMEOUT_MS);
+    }
+
+    private final ImageLoadListener imageLoadListener = new ImageLoadListener() {
+        @Override
+        public void onImageLoaded(ImageLoadMetrics metrics) {
+            Long start = pendingImages.remove(metrics.getUrl());
+            if (start == null) {
+                // Not from this pass
+                return;
+            }
+
+            long now = SystemClock.elapsedRealtimeNanos();
+            if (metrics.isSuccess()) {
+                latencies.add((now - start) / 1e6);
+                if (firstImageTime == 0) {
+                    firstImageTime = now;
+                }
+            } else {
+                failureCount++;
+            }
+
+            if (pendingImages.isEmpty()) {
+                mainHandler.removeCallbacks(passTimeout);
+                finishPass();
+            }
+        }
+    };
+
+    private final Runnable passTimeout = new Runnable() {
+        @Override
+        public void run() {
+            Log.w(TAG, "passTimeout() - " + pendingImages.size() + " images were not loaded by " + engine + " in time");
+            failureCount += pendingImages.size();
+            pendingImages.clear();
+            finishPass();
+        }
+    };
+
+    private void finishPass() {
+        long end = SystemClock.elapsedRealtimeNanos();
+        stopHeapSampling();
+
+        double[] passLatencies = new double[latencies.size()];
+        for (int i = 0; i < passLatencies.length; i++) {
+            passLatencies[i] = latencies.get(i);
+        }
+
+        BenchmarkResult result = new BenchmarkResult(engine, cacheState, imageCount, failureCount,
+                firstImageTime > 0 ? (firstImageTime - passStartTime) / 1e6 : Double.NaN,
+                (end - passStartTime) / 1e6, passLatencies, peakJavaHeap, peakNativeHeap, server.getBytesSent());
+        results.add(result);
+        Log.i(TAG, "finishPass() - " + result);
+
+        // Let the callbacks of this pass return before starting the next one
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                switch (cacheState) {
+                    case COLD:
+                        startPass(BenchmarkResult.CacheState.DISK_WARM);
+                        break;
+
+                    case DISK_WARM:
+                        startPass(BenchmarkResult.CacheState.MEMORY_WARM);
+                        break;
+
+                    case MEMORY_WARM:
+                        imageLoaderManager.setImageLoadListener(null);
+                        imageLoaderManager.release();
+                        startNextEngine();
+                        break;
+                }
+            }
+        });
+    }
+
+    private void startHeapSampling() {
+        peakJavaHeap = 0;
+        peakNativeHeap = 0;
+        sampling = true;
+        workerHandler.post(heapSampler);
+    }
+
+    private void stopHeapSampling() {
+        sampling = false;
+        workerHandler.removeCallbacks(heapSampler);
+
+        // Take a last sample, in case the pass was shorter than the sampling interval
+        heapSampler.run();
+    }
+
+    private final Runnable heapSampler = new Runnable() {
+        @Override
+        public void run() {
+            Runtime runtime = Runtime.getRuntime();
+            peakJavaHeap = Math.max(peakJavaHeap, runtime.totalMemory() - runtime.freeMemory());
+
+            // Fresco keeps its bitmaps out of the Java heap, so the native heap must be measured too
+            peakNativeHeap = Math.max(peakNativeHeap, Debug.getNativeHeapAllocatedSize());
+
+            if (sampling) {
+                workerHandler.postDelayed(this, HEAP_SAMPLING_INTERVAL_MS);
+            }
+        }
+    };
+
+    private void finish() {
+        passViews.clear();
+        server.shutdown();
+        workerThread.quit();
+
+        // The manual engine was released (and its cache closed) when its last pass finished
+        File[] files = getCacheDir().listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+
+        StringBuilder sb = new StringBuilder(BenchmarkResult.getHeader());
+        for (BenchmarkResult result : results) {
+            sb.append('\n').append(result);
+        }
+        Log.i(TAG, "finish() - Benchmark results:\n" + sb);
+
+        callback.onFinished(results);
+    }
+}
@@ -0,0 +1,424 @@
+package com.motondon.lazyloaddemoapp.benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A minimal HTTP/1.1 server bound to the loopback interface, used as a stand-in for the image hosts, so that the benchmark does
+ * not depend on the real network (and on the availability of the real images).
+ *
+ * It only supports what the engines need: GET requests, keep alive connections, Content-Length bodies, Cache-Control/ETag
+ * headers and conditional requests (If-None-Match). In order to simulate a real network, every response can be delayed
+ * (latency), bodies can be sent at a limited rate (bandwidth), and a fraction of the requests can fail, either with a 503 or
+ * with the connection being closed in the middle of the body.
+ *
+ * The query string is ignored when looking up a resource, so the benchmark can add a parameter to get urls the engines never
+ * cached before.
+ *
+ * This class has no Android dependency on purpose, so that it can be used by the unit tests too.
+ *
+ */
+public class LocalImageServer {
+
+    // Connections idle for longer than this are closed
+    private static final int KEEP_ALIVE_TIMEOUT_MS = 15000;
+
+    private static final int MAX_HEADER_LINE = 8 * 1024;
+
+    private final Map<String, byte[]> resources = new ConcurrentHashMap<>();
+
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong requestCount = new AtomicLong();
+
+    private final AtomicLong errorCount = new AtomicLong();
+    private final AtomicLong truncationCount = new AtomicLong();
+
+    private volatile long responseDelayMs = 0;
+    private volatile int maxAgeSeconds = 3600;
+    private volatile long bytesPerSecond = 0;
+    private volatile double errorRate = 0;
+    private volatile double truncationRate = 0;
+
+    // Decides which requests fail. Guarded by itself.
+    private final Random random = new Random();
+
+    private ServerSocket serverSocket;
+    private ExecutorService executor;
+
+    /**
+     * Add (or replace) the body served for a path (e.g.: "/thumb/1.jpg").
+     *
+     * @param path
+     * @param body
+     */
+    public void put(String path, byte[] body) {
+        resources.put(path, body);
+    }
+
+    /**
+     * Delay applied before every response is sent, in order to simulate the network round trip.
+     *
+     * @param responseDelayMs
+     */
+    public void setResponseDelay(long responseDelayMs) {
+        this.responseDelayMs = responseDelayMs;
+    }
+
+    public void setMaxAge(int maxAgeSeconds) {
+        this.maxAgeSeconds = maxAgeSeconds;
+    }
+
+    /**
+     * Rate at which the bodies are sent to each connection. 0 (the default) means no limit.
+     *
+     * @param bytesPerSecond
+     */
+    public void setBandwidth(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Fraction (0 to 1) of the requests answered with "503 Service Unavailable".
+     *
+     * @param errorRate
+     */
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * Fraction (0 to 1) of the successful responses whose connection is closed after sending only half of the body.
+     *
+     * @param truncationRate
+     */
+    public void setTruncationRate(double truncationRate) {
+        this.truncationRate = truncationRate;
+    }
+
+    /**
+     * Make the failures above happen for the same requests on every run (as long as the requests arrive in the same order).
+     *
+     * @param seed
+     */
+    public void setRandomSeed(long seed) {
+        synchronized (random) {
+            random.setSeed(seed);
+        }
+    }
+
+    public synchronized void start() throws IOException {
+        if (serverSocket != null) {
+            return;
+        }
+
+        serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        executor = Executors.newCachedThreadPool();
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        });
+    }
+
+    public synchronized void shutdown() {
+        if (serverSocket == null) {
+            return;
+        }
+
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        executor.shutdownNow();
+
+        serverSocket = null;
+        executor = null;
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public String getUrl(String path) {
+        return "http://127.0.0.1:" + getPort() + path;
+    }
+
+    /**
+     * Total bytes (headers and bodies) written to the clients since the last call to resetCounters().
+     *
+     * @return
+     */
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    public long getErrorCount() {
+        return errorCount.get();
+    }
+
+    public long getTruncationCount() {
+        return truncationCount.get();
+    }
+
+    public void resetCounters() {
+        bytesSent.set(0);
+        requestCount.set(0);
+        errorCount.set(0);
+        truncationCount.set(0);
+    }
+
+    private void acceptConnections() {
+        ServerSocket socket = serverSocket;
+        while (socket != null && !socket.isClosed()) {
+            try {
+                final Socket client = socket.accept();
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(client);
+                    }
+                });
+            } catch (SocketException e) {
+                // Server socket was closed by shutdown()
+                return;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Serve the requests of a connection until the client closes it (or asks for it to be closed).
+     *
+     * @param client
+     */
+    private void serve(Socket client) {
+        try {
+            client.setSoTimeout(KEEP_ALIVE_TIMEOUT_MS);
+            client.setTcpNoDelay(true);
+
+            InputStream in = new BufferedInputStream(client.getInputStream());
+            OutputStream out = new BufferedOutputStream(client.getOutputStream());
+
+            boolean keepAlive = true;
+            while (keepAlive) {
+                String requestLine = readLine(in);
+                if (requestLine == null) {
+                    break;
+                }
+                if (requestLine.isEmpty()) {
+                    continue;
+                }
+
+                Map<String, String> headers = new HashMap<>();
+                String line;
+                while ((line = readLine(in)) != null && !line.isEmpty()) {
+                    int colon = line.indexOf(':');
+                    if (colon > 0) {
+                        headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+                    }
+                }
+
+                keepAlive = !"close".equalsIgnoreCase(headers.get("connection"));
+                requestCount.incrementAndGet();
+
+                if (responseDelayMs > 0) {
+                    Thread.sleep(responseDelayMs);
+                }
+
+                boolean complete = respond(requestLine, headers, out);
+                out.flush();
+
+                // The client is still waiting for the rest of a truncated body. Closing the connection is how it finds out.
+                if (!complete) {
+                    break;
+                }
+            }
+
+        } catch (IOException e) {
+            // Client went away or connection was idle for too long
+        } catch (InterruptedException e) {
+            // Server is shutting down
+        } finally {
+            try {
+                client.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Answer a request.
+     *
+     * @param requestLine
+     * @param headers
+     * @param out
+     * @return false if the connection must be closed (i.e. the response was truncated)
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private boolean respond(String requestLine, Map<String, String> headers, OutputStream out) throws IOException, InterruptedException {
+        String[] parts = requestLine.split(" ");
+        if (parts.length < 2 || !("GET".equals(parts[0]) || "HEAD".equals(parts[0]))) {
+            writeResponse(out, "405 Method Not Allowed", null, null, false, false);
+            return true;
+        }
+
+        if (nextFailure(errorRate)) {
+            errorCount.incrementAndGet();
+            writeResponse(out, "503 Service Unavailable", null, null, false, false);
+            return true;
+        }
+
+        String path = parts[1];
+        int query = path.indexOf('?');
+        if (query >= 0) {
+            path = path.substring(0, query);
+        }
+
+        byte[] body = resources.get(path);
+        if (body == null) {
+            writeResponse(out, "404 Not Found", null, null, false, false);
+            return true;
+        }
+
+        // Resources never change, so their ETag only has to tell them apart
+        String etag = "\"" + Integer.toHexString(path.hashCode()) + "-" + body.length + "\"";
+        if (etag.equals(headers.get("if-none-match"))) {
+            writeResponse(out, "304 Not Modified", null, etag, false, false);
+            return true;
+        }
+
+        boolean truncate = nextFailure(truncationRate);
+        if (truncate) {
+            truncationCount.incrementAndGet();
+        }
+
+        writeResponse(out, "200 OK", body, etag, "HEAD".equals(parts[0]), truncate);
+        return !truncate;
+    }
+
+    private boolean nextFailure(double rate) {
+        if (rate <= 0) {
+            return false;
+        }
+        synchronized (random) {
+            return random.nextDouble() < rate;
+        }
+    }
+
+    private void writeResponse(OutputStream out, String status, byte[] body, String etag, boolean headOnly, boolean truncate)
+            throws IOException, InterruptedException {
+        int length = body != null ? body.length : 0;
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("HTTP/1.1 ").append(status).append("\r\n");
+        if (body != null) {
+            sb.append("Content-Type: image/jpeg\r\n");
+        }
+        // A 304 has no body, so it must not have a Content-Length either
+        if (!status.startsWith("304")) {
+            sb.append("Content-Length: ").append(length).append("\r\n");
+        }
+        if (etag != null) {
+            sb.append("ETag: ").append(etag).append("\r\n");
+            sb.append("Cache-Control: public, max-age=").append(maxAgeSeconds).append("\r\n");
+        }
+        sb.append("\r\n");
+
+        byte[] head = sb.toString().getBytes("US-ASCII");
+        out.write(head);
+        bytesSent.addAndGet(head.length);
+
+        if (body != null && !headOnly) {
+            writeBody(out, body, truncate ? body.length / 2 : body.length);
+        }
+    }
+
+    /**
+     * Write the first "length" bytes of a body. When the bandwidth is limited, the body is written in chunks and the thread
+     * sleeps between them, so that it never gets ahead of the configured rate.
+     *
+     * @param out
+     * @param body
+     * @param length
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void writeBody(OutputStream out, byte[] body, int length) throws IOException, InterruptedException {
+        long rate = bytesPerSecond;
+        if (rate <= 0) {
+            out.write(body, 0, length);
+            bytesSent.addAndGet(length);
+            return;
+        }
+
+        // About 20 chunks per second, so that the rate is smooth but the thread does not sleep too often
+        int chunkSize = (int) Math.max(1, Math.min(length, rate / 20));
+        long start = System.nanoTime();
+        int written = 0;
+
+        while (written < length) {
+            int count = Math.min(chunkSize, length - written);
+            out.write(body, written, count);
+            out.flush();
+            written += count;
+            bytesSent.addAndGet(count);
+
+            long dueNanos = written * 1000000000L / rate;
+            long aheadMs = (dueNanos - (System.nanoTime() - start)) / 1000000;
+            if (aheadMs > 0) {
+                Thread.sleep(aheadMs);
+            }
+        }
+    }
+
+    /**
+     * Read a CRLF (or LF) terminated line. Returns null at the end of the stream.
+     *
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int last = sb.length() - 1;
+                if (last >= 0 && sb.charAt(last) == '\r') {
+                    sb.setLength(last);
+                }
+                return sb.toString();
+            }
+            if (sb.length() >= MAX_HEADER_LINE) {
+                throw new IOException("Header line too long");
+            }
+            sb.append((char) c);
+        }
+        return sb.length() > 0 ? sb.toString() : null;
+    }
+}
@@ -0,0 +1,14 @@
+package com.motondon.lazyloaddemoapp.imageloader;
+
+/**
+ * Notified by every ImageLoaderManager once for every loadImage() call, when the request was completed (i.e. the image or the
+ * error image was delivered to its view) or cancelled. Used by the benchmark to measure the engines, and can be used to export
+ * the metrics (e.g.: cache hit ratio and latency) to a telemetry service.
+ *
+ * Always called in the UI thread.
+ *
+ */
+public interface ImageLoadListener {
+
+    void onImageLoaded(ImageLoadMetrics metrics);
+}
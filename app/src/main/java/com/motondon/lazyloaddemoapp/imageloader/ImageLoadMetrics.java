@@ -0,0 +1,161 @@
+package com.motondon.lazyloaddemoapp.imageloader;
+
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+
+import com.motondon.lazyloaddemoapp.model.ImageModel;
+
+import java.util.Locale;
+
+/**
+ * What happened to a single loadImage() request: where the image came from, how long it took (in total and in each stage) and
+ * the size of the bitmap it produced. Every ImageLoaderManager reports exactly one of these for every loadImage() call, either
+ * when the image (or the error image) is delivered to its view or when the request is cancelled (i.e. the view was rebound to
+ * another url or detached from the window before the image arrived).
+ *
+ * Times are in milliseconds. Stages an engine does not expose (or that did not happen, e.g.: the network time of a memory cache
+ * hit) are UNKNOWN_TIME:
+ *   - queue wait: from loadImage() until the engine started working on the request in a background thread
+ *   - network time: from the request being sent until the response body was read. When an engine decodes straight from the
+ *     network (i.e. without writing to its disk cache first), the decode happens while the body is read, so both overlap.
+ *   - decode time: time spent decoding the image
+ *
+ */
+public class ImageLoadMetrics {
+
+    public enum Source {
+        MEMORY,
+        DISK,
+        NETWORK,
+        // The engine does not tell, or the request failed/was cancelled before it found out
+        UNKNOWN
+    }
+
+    public static final double UNKNOWN_TIME = -1;
+
+    private final String url;
+    private final Source source;
+    private final boolean success;
+    private final boolean cancelled;
+    private final double totalTime;
+    private final double queueWaitTime;
+    private final double networkTime;
+    private final double decodeTime;
+    private final long bitmapBytes;
+
+    private ImageLoadMetrics(Builder builder, boolean success, boolean cancelled, Bitmap bitmap) {
+        this.url = builder.imageModel.getUrl();
+        this.source = builder.source;
+        this.success = success;
+        this.cancelled = cancelled;
+        this.totalTime = (SystemClock.elapsedRealtimeNanos() - builder.startTime) / 1e6;
+        this.queueWaitTime = builder.queueWaitTime;
+        this.networkTime = builder.networkTime;
+        this.decodeTime = builder.decodeTime;
+        this.bitmapBytes = bitmap != null ? bitmap.getAllocationByteCount() : 0;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public Source getSource() {
+        return source;
+    }
+
+    public boolean isSuccess() {
+        return success;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public double getTotalTime() {
+        return totalTime;
+    }
+
+    public double getQueueWaitTime() {
+        return queueWaitTime;
+    }
+
+    public double getNetworkTime() {
+        return networkTime;
+    }
+
+    public double getDecodeTime() {
+        return decodeTime;
+    }
+
+    /**
+     * Memory used by the bitmap delivered to the view (0 when there is none).
+     *
+     * @return
+     */
+    public long getBitmapBytes() {
+        return bitmapBytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "ImageLoadMetrics{url=%s, source=%s, success=%b, cancelled=%b, total=%.1fms, queueWait=%.1fms, "
+                        + "network=%.1fms, decode=%.1fms, bitmapBytes=%d}",
+                url, source, success, cancelled, totalTime, queueWaitTime, networkTime, decodeTime, bitmapBytes);
+    }
+
+    /**
+     * Collects the metrics of a request while it is in flight. Created by ImageLoaderManager::startMetrics() and filled in by
+     * the engine as the request goes through its stages, possibly from background threads.
+     */
+    public static class Builder {
+
+        private final ImageModel imageModel;
+        private final long startTime = SystemClock.elapsedRealtimeNanos();
+
+        private volatile Source source = Source.UNKNOWN;
+        private volatile double queueWaitTime = UNKNOWN_TIME;
+        private volatile double networkTime = UNKNOWN_TIME;
+        private volatile double decodeTime = UNKNOWN_TIME;
+
+        Builder(ImageModel imageModel) {
+            this.imageModel = imageModel;
+        }
+
+        ImageModel getImageModel() {
+            return imageModel;
+        }
+
+        public Builder setSource(Source source) {
+            this.source = source;
+            return this;
+        }
+
+        /**
+         * Record the time (SystemClock.elapsedRealtimeNanos()) the engine started working on the request. Only the first call
+         * counts, so engines can call it from every stage that might be the first one.
+         *
+         * @param time
+         * @return
+         */
+        public Builder setStartedAt(long time) {
+            if (queueWaitTime == UNKNOWN_TIME) {
+                queueWaitTime = Math.max(0, (time - startTime) / 1e6);
+            }
+            return this;
+        }
+
+        public Builder setNetworkTime(double networkTime) {
+            this.networkTime = networkTime;
+            return this;
+        }
+
+        public Builder setDecodeTime(double decodeTime) {
+            this.decodeTime = decodeTime;
+            return this;
+        }
+
+        ImageLoadMetrics build(boolean success, boolean cancelled, Bitmap bitmap) {
+            return new ImageLoadMetrics(this, success, cancelled, bitmap);
+        }
+    }
+}
@@ -2,10 +2,17 @@ package com.motondon.lazyloaddemoapp.imageloader;
 
 import com.motondon.lazyloaddemoapp.model.ImageModel;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
 import android.util.Log;
 import android.widget.ImageView;
 
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
 /**
  * Created by Joca on 4/13/2016.
  */
@@ -18,18 +25,113 @@ public abstract class ImageLoaderManager {
     protected Boolean diskCache;
     protected Boolean memoryCache;
 
+    // Config the images are decoded to. See setBitmapConfig().
+    protected Bitmap.Config bitmapConfig = Bitmap.Config.ARGB_8888;
+
+    private ImageLoadListener imageLoadListener;
+
+    // Metrics of the requests whose views are still waiting for their images. Only accessed in the UI thread.
+    private final Map<ImageView, ImageLoadMetrics.Builder> pendingMetrics = new WeakHashMap<>();
+
     public abstract void loadImage(ImageModel imageModel);
 
     public abstract void clearCache();
 
-    // Currently this method is only used in the Fresco implementation. See Fresco implementation for details.
-    public abstract void onViewDetachedFromWindow(String url);
+    // Clear only the memory cache, so that the next requests will be served from the disk cache. Used by the benchmark.
+    public abstract void clearMemoryCache();
+
+    // Clear only the decoded images kept in memory (e.g.: after the bitmap config changed, see setBitmapConfig()). Engines
+    // that keep the encoded images in memory as well (Manual) keep them, since they do not depend on the config. The others
+    // just clear their memory cache.
+    public void clearDecodedMemoryCache() {
+        clearMemoryCache();
+    }
+
+    // Currently this method is used by the Fresco, Picasso and Manual implementations. See them for details.
+    public abstract void onViewDetachedFromWindow(ImageModel imageModel);
+
+    // Called when a view is recycled, i.e. it is going to be bound to another image or dropped. Only used by the Manual
+    // implementation, which counts the references to its bitmaps.
+    public void onViewRecycled(ImageModel imageModel) {
+    }
+
+    // Load the images of the rows the user is about to scroll to into the caches (with low priority), so that they are shown
+    // right away when their rows are bound. See PrefetchScrollListener.
+    public abstract void prefetch(List<String> urls);
+
+    // Stop and restart loading images. Used to avoid loading images during a fling, since most of them would be scrolled off
+    // the screen before being displayed.
+    public abstract void pause();
+
+    public abstract void resume();
+
+    // Release part of the memory cache, according to how much the system needs memory back. Called in the UI thread (see
+    // getTrimRatio()). Unlike clearMemoryCache(), the most recently used images (i.e. the ones on the screen) are kept as long
+    // as possible, so that the grid does not have to be reloaded.
+    public abstract void trimMemory(int level);
+
+    // Registered while this manager is in use, so that every engine gives memory back before the system has to kill the app
+    // (and before the decoders run into an OutOfMemoryError).
+    private final ComponentCallbacks2 componentCallbacks = new ComponentCallbacks2() {
+        @Override
+        public void onTrimMemory(int level) {
+            Log.d(TAG, "onTrimMemory() - level: " + level);
+            trimMemory(level);
+        }
+
+        @Override
+        public void onLowMemory() {
+            Log.d(TAG, "onLowMemory()");
+            trimMemory(TRIM_MEMORY_COMPLETE);
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+        }
+    };
 
     public ImageLoaderManager(Context context, boolean useDiskCache, boolean useMemoryCache) {
     	Log.v(TAG, "ctor()");
         this.mContext = context;
         this.diskCache = useDiskCache;
         this.memoryCache = useMemoryCache;
+
+        mContext.getApplicationContext().registerComponentCallbacks(componentCallbacks);
+    }
+
+    /**
+     * Must be called when this manager is not going to be used anymore (e.g.: the user switched to another engine). Otherwise
+     * it would keep receiving the memory callbacks (and stay reachable) for as long as the application lives.
+     */
+    public void release() {
+        Log.v(TAG, "release()");
+        mContext.getApplicationContext().unregisterComponentCallbacks(componentCallbacks);
+    }
+
+    /**
+     * Fraction (from 0 to 1) of the memory cache to be released for a trim level:
+     *   - while the app is running, the lower the level, the more of the cache is kept, since its images are being shown
+     *   - when the UI is hidden, half of the cache goes, since the images will not be needed until the user comes back
+     *   - when the app is in the background, most of it goes, and everything when the app is about to be killed
+     *
+     * @param level
+     * @return
+     */
+    protected static double getTrimRatio(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            return 1;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            return 0.75;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            return 0.5;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            return 0.75;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            return 0.5;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            return 0.25;
+        }
+        return 0;
     }
 
     public void setMemoryCache(Boolean memoryCache) {
@@ -41,4 +143,98 @@ public abstract class ImageLoaderManager {
         Log.v(TAG, "setDiskCache: " + diskCache);
         this.diskCache = diskCache;
     }
+
+    /**
+     * Set the config the images are decoded to. RGB_565 takes half the memory of ARGB_8888 (so the memory caches hold twice as
+     * many images), at the cost of the alpha channel and some color depth, which is fine for opaque photos such as ours. Engines
+     * that can tell an image has alpha before decoding it (Manual and Glide) still decode it to ARGB_8888.
+     *
+     * Bitmaps already in the memory caches keep their config, so the caller should clear them (see clearDecodedMemoryCache()).
+     *
+     * Note that Bitmap.Config.HARDWARE (which would move the pixels out of the heap altogether) requires API 26.
+     *
+     * @param bitmapConfig
+     */
+    public void setBitmapConfig(Bitmap.Config bitmapConfig) {
+        Log.v(TAG, "setBitmapConfig: " + bitmapConfig);
+        this.bitmapConfig = bitmapConfig;
+    }
+
+    public Bitmap.Config getBitmapConfig() {
+        return bitmapConfig;
+    }
+
+    public void setImageLoadListener(ImageLoadListener imageLoadListener) {
+        this.imageLoadListener = imageLoadListener;
+    }
+
+    /**
+     * Must be called by the implementations in the UI thread when loadImage() is called, before anything else. The returned
+     * builder collects the metrics of the request until it is passed to finishMetrics().
+     *
+     * If the view was still waiting for a previous request, that request is reported as cancelled, since its image will not be
+     * shown anymore.
+     *
+     * @param imageModel
+     * @return
+     */
+    protected ImageLoadMetrics.Builder startMetrics(ImageModel imageModel) {
+        ImageLoadMetrics.Builder metrics = new ImageLoadMetrics.Builder(imageModel);
+
+        ImageLoadMetrics.Builder previous = pendingMetrics.put(imageModel.getImageView(), metrics);
+        if (previous != null) {
+            reportMetrics(previous.build(false, true, null));
+        }
+        return metrics;
+    }
+
+    /**
+     * Returns the metrics of a request that is still waiting for its image, or null if it was already completed or cancelled.
+     *
+     * @param imageModel
+     * @return
+     */
+    protected ImageLoadMetrics.Builder getPendingMetrics(ImageModel imageModel) {
+        ImageLoadMetrics.Builder metrics = pendingMetrics.get(imageModel.getImageView());
+        if (metrics == null || metrics.getImageModel() != imageModel) {
+            return null;
+        }
+        return metrics;
+    }
+
+    /**
+     * Must be called by the implementations in the UI thread when a request was completed, after its image (or the error image
+     * when bitmap is null) was set in the view. Does nothing if the request was already cancelled.
+     *
+     * @param imageModel
+     * @param bitmap
+     */
+    protected void finishMetrics(ImageModel imageModel, Bitmap bitmap) {
+        ImageLoadMetrics.Builder metrics = getPendingMetrics(imageModel);
+        if (metrics == null) {
+            return;
+        }
+
+        pendingMetrics.remove(imageModel.getImageView());
+        reportMetrics(metrics.build(bitmap != null, false, bitmap));
+    }
+
+    /**
+     * Must be called by the implementations in the UI thread when a view stops waiting for its image (i.e. it was detached from
+     * the window).
+     *
+     * @param imageView
+     */
+    protected void cancelMetrics(ImageView imageView) {
+        ImageLoadMetrics.Builder metrics = pendingMetrics.remove(imageView);
+        if (metrics != null) {
+            reportMetrics(metrics.build(false, true, null));
+        }
+    }
+
+    private void reportMetrics(ImageLoadMetrics metrics) {
+        if (imageLoadListener != null) {
+            imageLoadListener.onImageLoaded(metrics);
+        }
+    }
 }
@@ -0,0 +1,36 @@
+package com.motondon.lazyloaddemoapp.imageloader;
+
+import android.content.Context;
+
+import com.motondon.lazyloaddemoapp.imageloader.fresco.FrescoImageLoaderManager;
+import com.motondon.lazyloaddemoapp.imageloader.glide.GlideImageLoaderManager;
+import com.motondon.lazyloaddemoapp.imageloader.manual.manager.ManualImageLoaderManager;
+import com.motondon.lazyloaddemoapp.imageloader.picasso.PicassoImageLoaderManager;
+import com.motondon.lazyloaddemoapp.imageloader.uil.UilImageLoaderManager;
+import com.motondon.lazyloaddemoapp.model.ImageDownloaderEngine;
+
+/**
+ * Creates the ImageLoaderManager implementation for an engine. Used by both the presenter and the benchmark.
+ */
+public class ImageLoaderManagerFactory {
+
+    public static ImageLoaderManager create(Context context, ImageDownloaderEngine downloadEngine, boolean useDiskCache, boolean useMemoryCache) {
+        switch (downloadEngine) {
+            case PICASSO:
+                return new PicassoImageLoaderManager(context, useDiskCache, useMemoryCache);
+
+            case GLIDE:
+                return new GlideImageLoaderManager(context, useDiskCache, useMemoryCache);
+
+            case UIL:
+                return new UilImageLoaderManager(context, useDiskCache, useMemoryCache);
+
+            case FRESCO:
+                return new FrescoImageLoaderManager(context, useDiskCache, useMemoryCache);
+
+            case MANUAL:
+            default:
+                return new ManualImageLoaderManager(context, useDiskCache, useMemoryCache);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.motondon.lazyloaddemoapp.imageloader;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+
+/**
+ * How many images each engine should download (and decode) at the same time, according to the network the device is on and
+ * to its number of cores.
+ *
+ * On a slow cellular network a few parallel downloads already take all the bandwidth, and more of them only make every image
+ * arrive later (they all share the same link). On Wi-Fi a handful of downloads leaves the link idle most of the time, since
+ * each one spends most of its time waiting for the server. These are only the starting points: the manual engine adjusts its
+ * number of downloads from there, according to the throughput it measures (see AdaptiveConcurrencyLimiter).
+ *
+ * Needs the ACCESS_NETWORK_STATE permission. Without it (or without an active network) the values for an unknown network are
+ * used.
+ *
+ */
+public class NetworkConcurrency {
+
+    private static final String TAG = NetworkConcurrency.class.getSimpleName();
+
+    public enum NetworkType {
+        // Initial and maximum number of parallel downloads for each type
+        FAST(4, 8),         // Wi-Fi, Ethernet
+        MOBILE_4G(3, 4),    // LTE, HSPA+, eHRPD
+        MOBILE_3G(2, 3),    // UMTS, EVDO, HSPA
+        MOBILE_2G(1, 2),    // GPRS, EDGE
+        UNKNOWN(3, 6);
+
+        private final int initialDownloads;
+        private final int maxDownloads;
+
+        NetworkType(int initialDownloads, int maxDownloads) {
+            this.initialDownloads = initialDownloads;
+            this.maxDownloads = maxDownloads;
+        }
+
+        public int getInitialDownloads() {
+            return initialDownloads;
+        }
+
+        public int getMaxDownloads() {
+            return maxDownloads;
+        }
+    }
+
+    private NetworkConcurrency() {
+    }
+
+    /**
+     * Returns the type of the active network.
+     *
+     * @param context
+     * @return
+     */
+    public static NetworkType getNetworkType(Context context) {
+        NetworkInfo info;
+        try {
+            ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+            info = cm != null ? cm.getActiveNetworkInfo() : null;
+        } catch (SecurityException e) {
+            Log.w(TAG, "getNetworkType() - ACCESS_NETWORK_STATE permission is missing. Message: " + e.getMessage());
+            return NetworkType.UNKNOWN;
+        }
+
+        if (info == null || !info.isConnected()) {
+            return NetworkType.UNKNOWN;
+        }
+
+        switch (info.getType()) {
+            case ConnectivityManager.TYPE_WIFI:
+            case ConnectivityManager.TYPE_WIMAX:
+            case ConnectivityManager.TYPE_ETHERNET:
+                return NetworkType.FAST;
+
+            case ConnectivityManager.TYPE_MOBILE:
+                switch (info.getSubtype()) {
+                    case TelephonyManager.NETWORK_TYPE_LTE:
+                    case TelephonyManager.NETWORK_TYPE_HSPAP:
+                    case TelephonyManager.NETWORK_TYPE_EHRPD:
+                        return NetworkType.MOBILE_4G;
+
+                    case TelephonyManager.NETWORK_TYPE_UMTS:
+                    case TelephonyManager.NETWORK_TYPE_CDMA:
+                    case TelephonyManager.NETWORK_TYPE_EVDO_0:
+                    case TelephonyManager.NETWORK_TYPE_EVDO_A:
+                    case TelephonyManager.NETWORK_TYPE_EVDO_B:
+                    case TelephonyManager.NETWORK_TYPE_HSDPA:
+                    case TelephonyManager.NETWORK_TYPE_HSUPA:
+                    case TelephonyManager.NETWORK_TYPE_HSPA:
+                        return NetworkType.MOBILE_3G;
+
+                    case TelephonyManager.NETWORK_TYPE_GPRS:
+                    case TelephonyManager.NETWORK_TYPE_EDGE:
+                    case TelephonyManager.NETWORK_TYPE_1xRTT:
+                        return NetworkType.MOBILE_2G;
+
+                    default:
+                        return NetworkType.UNKNOWN;
+                }
+
+            default:
+                return NetworkType.UNKNOWN;
+        }
+    }
+
+    /**
+     * The most downloads the manual engine can ever run at the same time, whatever the network (see
+     * AdaptiveConcurrencyLimiter, which never goes above the maximum of the current network type).
+     *
+     * @return
+     */
+    public static int getMaxDownloads() {
+        int max = 1;
+        for (NetworkType type : NetworkType.values()) {
+            max = Math.max(max, type.getMaxDownloads());
+        }
+        return max;
+    }
+
+    /**
+     * Number of threads for the engines that download and decode in the same pool (e.g.: UIL, Glide): the downloads the
+     * network can take, plus a thread per core (see getDecodeThreads()) so that the decodes do not wait for the downloads.
+     *
+     * @param context
+     * @return
+     */
+    public static int getThreadPoolSize(Context context) {
+        NetworkType type = getNetworkType(context);
+        int size = type.getInitialDownloads() + getDecodeThreads();
+
+        Log.d(TAG, "getThreadPoolSize() - Network: " + type + ". Using " + size + " threads");
+        return size;
+    }
+
+    /**
+     * Decoding is CPU bound, so more decodes than cores just take turns on them (and hold more memory at the same time).
+     *
+     * @return
+     */
+    public static int getDecodeThreads() {
+        return Math.max(2, Runtime.getRuntime().availableProcessors());
+    }
+}
@@ -0,0 +1,68 @@
+package com.motondon.lazyloaddemoapp.imageloader;
+
+import android.os.SystemClock;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Wraps a response body in order to measure how long it takes to be read. The time starts when the stream is created (the
+ * caller should create it as soon as the response arrives, passing the time the request was sent) and stops the first time the
+ * end of the stream is reached or the stream is closed.
+ *
+ * Used to get the network time of the engines that only give us the response stream.
+ *
+ */
+public class TimedInputStream extends FilterInputStream {
+
+    public interface Callback {
+        void onFinished(double elapsedTime);
+    }
+
+    private final long requestTime;
+    private final Callback callback;
+    private boolean finished = false;
+
+    /**
+     * @param in
+     * @param requestTime SystemClock.elapsedRealtimeNanos() of when the request was sent
+     * @param callback
+     */
+    public TimedInputStream(InputStream in, long requestTime, Callback callback) {
+        super(in);
+        this.requestTime = requestTime;
+        this.callback = callback;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b == -1) {
+            finish();
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        int read = super.read(buffer, offset, count);
+        if (read == -1) {
+            finish();
+        }
+        return read;
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+        super.close();
+    }
+
+    private void finish() {
+        if (!finished) {
+            finished = true;
+            callback.onFinished((SystemClock.elapsedRealtimeNanos() - requestTime) / 1e6);
+        }
+    }
+}
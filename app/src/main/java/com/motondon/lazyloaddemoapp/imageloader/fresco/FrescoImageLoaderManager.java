@@ -1,5 +1,6 @@
 package com.motondon.lazyloaddemoapp.imageloader.fresco;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.net.Uri;
@@ -8,21 +9,28 @@ import android.util.Log;
 import android.widget.ImageView;
 
 import com.facebook.common.executors.UiThreadImmediateExecutorService;
+import com.facebook.common.memory.MemoryTrimType;
 import com.facebook.common.references.CloseableReference;
 import com.facebook.datasource.DataSource;
 import com.facebook.datasource.DataSubscriber;
 import com.facebook.drawee.backends.pipeline.Fresco;
+import com.facebook.imagepipeline.common.Priority;
 import com.facebook.imagepipeline.common.ResizeOptions;
 import com.facebook.imagepipeline.core.ImagePipeline;
+import com.facebook.imagepipeline.core.ImagePipelineConfig;
 import com.facebook.imagepipeline.datasource.BaseBitmapDataSubscriber;
 import com.facebook.imagepipeline.image.CloseableImage;
+import com.facebook.imagepipeline.listener.RequestListener;
 import com.facebook.imagepipeline.request.ImageRequest;
 import com.facebook.imagepipeline.request.ImageRequestBuilder;
 import com.motondon.lazyloaddemoapp.R;
+import com.motondon.lazyloaddemoapp.imageloader.ImageLoadMetrics;
 import com.motondon.lazyloaddemoapp.imageloader.ImageLoaderManager;
 import com.motondon.lazyloaddemoapp.model.ImageModel;
 
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 
 public class FrescoImageLoaderManager extends ImageLoaderManager {
 
@@ -32,12 +40,48 @@ public class FrescoImageLoaderManager extends ImageLoaderManager {
     private HashMap<String, DataSource<CloseableReference<CloseableImage>>> pendingImageLoad = new HashMap<>();
     private Object sync = new Object();
 
+    // Memory caches (and pools) of the pipeline, so that they can be trimmed. See trimMemory().
+    private final TrimmableRegistry trimmableRegistry = new TrimmableRegistry();
+
     public FrescoImageLoaderManager(Context context, boolean useDiskCache, boolean useMemoryCache) {
         super(context, useDiskCache, useMemoryCache);
 
         Log.v(TAG, "ctor()");
-        
-        Fresco.initialize(mContext);
+
+        initializePipeline();
+    }
+
+    private void initializePipeline() {
+        // The pipeline reports the steps of every request to this listener, which turns them into the metrics of our requests
+        ImagePipelineConfig config = ImagePipelineConfig.newBuilder(mContext)
+                .setRequestListeners(Collections.<RequestListener>singleton(new MetricsRequestListener()))
+                .setMemoryTrimmableRegistry(trimmableRegistry)
+                .setBitmapsConfig(bitmapConfig)
+                .build();
+
+        Fresco.initialize(mContext, config);
+    }
+
+    /**
+     * This version of Fresco only takes the bitmap config in the pipeline configuration (and applies it to every image, whether
+     * it has alpha or not), so the pipeline is initialized again with the new one. Its caches go with the old pipeline.
+     *
+     * @param bitmapConfig
+     */
+    @Override
+    public void setBitmapConfig(Bitmap.Config bitmapConfig) {
+        if (bitmapConfig == this.bitmapConfig) {
+            return;
+        }
+
+        super.setBitmapConfig(bitmapConfig);
+
+        // Nobody will ask the old pipeline for its bitmaps anymore, so give their memory back right away
+        Fresco.getImagePipeline().clearMemoryCaches();
+
+        // The new pipeline registers its own caches and pools
+        trimmableRegistry.clear();
+        initializePipeline();
     }
 
     /**
@@ -52,6 +96,8 @@ public class FrescoImageLoaderManager extends ImageLoaderManager {
         String url = imageModel.getUrl();
         final ImageView imageView = imageModel.getImageView();
 
+        ImageLoadMetrics.Builder metrics = startMetrics(imageModel);
+
         imageView.setImageDrawable(mContext.getResources().getDrawable(R.drawable.ic_placeholder));
 
         if (memoryCache) {
@@ -70,10 +116,19 @@ public class FrescoImageLoaderManager extends ImageLoaderManager {
             Fresco.getImagePipeline().evictFromDiskCache(Uri.parse(url));
         }
 
-        setBaseBitmapDataSubscriber(mContext, Uri.parse(url), 0, 0, imageView);
+        setBaseBitmapDataSubscriber(metrics, Uri.parse(url), 0, 0, imageModel);
     }
 
-    private void setBaseBitmapDataSubscriber(Context context, final Uri uri, int width, int height, final ImageView imageView) {
+    /**
+     * @param metrics passed as the caller context of the request, so that MetricsRequestListener can fill it in
+     * @param uri
+     * @param width
+     * @param height
+     * @param imageModel
+     */
+    private void setBaseBitmapDataSubscriber(ImageLoadMetrics.Builder metrics, final Uri uri, int width, int height, final ImageModel imageModel) {
+        final ImageView imageView = imageModel.getImageView();
+
     	Log.d(TAG, "setBaseBitmapDataSubscriber()");
     	
         // This is the subscriber recommended in the Fresco documentation when what we need is just a bitmap.
@@ -95,6 +150,10 @@ public class FrescoImageLoaderManager extends ImageLoaderManager {
                     synchronized (sync) {
                         pendingImageLoad.remove(uri.toString());
                     }
+
+                    finishMetrics(imageModel, bitmapCloned);
+                } else {
+                    finishMetrics(imageModel, null);
                 }
             }
 
@@ -109,20 +168,22 @@ public class FrescoImageLoaderManager extends ImageLoaderManager {
                 synchronized (sync) {
                     pendingImageLoad.remove(uri.toString());
                 }
+
+                finishMetrics(imageModel, null);
             }
         };
 
-        subscribe(context, uri, width, height, baseBitmapDataSubscriber);
+        subscribe(metrics, uri, width, height, baseBitmapDataSubscriber);
     }
 
     /**
-     * @param context
+     * @param callerContext
      * @param uri
      * @param width
      * @param height
      * @param dataSubscriber
      */
-    public void subscribe(Context context, Uri uri, int width, int height, DataSubscriber dataSubscriber) {
+    public void subscribe(Object callerContext, Uri uri, int width, int height, DataSubscriber dataSubscriber) {
     	Log.d(TAG, "subscribe()");
     	
         final ImagePipeline imagePipeline = Fresco.getImagePipeline();
@@ -137,7 +198,7 @@ public class FrescoImageLoaderManager extends ImageLoaderManager {
         ImageRequest request = builder.build();
 
         // Now create a datasource. It will be used if we need to cancel the download while it is in progress
-        DataSource<CloseableReference<CloseableImage>> dataSource = imagePipeline.fetchDecodedImage(request, context);
+        DataSource<CloseableReference<CloseableImage>> dataSource = imagePipeline.fetchDecodedImage(request, callerContext);
 
         // And finally subscribe the dataSubscriber informing which kind of executor to be used (we will use one that allows us to deal
         // with the view in the UI thread. 
@@ -151,6 +212,68 @@ public class FrescoImageLoaderManager extends ImageLoaderManager {
         }
     }
 
+    /**
+     * Use the image pipeline prefetch support. Decoded bitmaps are only prefetched when memory cache is ON, otherwise only the
+     * encoded image goes to the disk cache.
+     *
+     * @param urls
+     */
+    @Override
+    public void prefetch(List<String> urls) {
+        final ImagePipeline imagePipeline = Fresco.getImagePipeline();
+
+        for (String url : urls) {
+            ImageRequest request = ImageRequestBuilder.newBuilderWithSource(Uri.parse(url)).build();
+
+            if (memoryCache) {
+                if (!imagePipeline.isInBitmapMemoryCache(request)) {
+                    imagePipeline.prefetchToBitmapCache(request, mContext);
+                }
+            } else if (diskCache) {
+                imagePipeline.prefetchToDiskCache(request, mContext, Priority.LOW);
+            }
+        }
+    }
+
+    @Override
+    public void pause() {
+        Fresco.getImagePipeline().pause();
+    }
+
+    @Override
+    public void resume() {
+        Fresco.getImagePipeline().resume();
+    }
+
+    /**
+     * Fresco only knows two trim ratios: half of each cache, or all of it. Either way, only the images nobody is showing are
+     * released.
+     *
+     * @param level
+     */
+    @Override
+    public void trimMemory(int level) {
+        double ratio = getTrimRatio(level);
+
+        MemoryTrimType trimType;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            trimType = MemoryTrimType.OnSystemLowMemoryWhileAppInBackground;
+        } else if (ratio >= 0.5) {
+            trimType = MemoryTrimType.OnSystemLowMemoryWhileAppInForeground;
+        } else {
+            return;
+        }
+
+        Log.d(TAG, "trimMemory() - Trimming the pipeline caches: " + trimType);
+        trimmableRegistry.trim(trimType);
+    }
+
+    @Override
+    public void clearMemoryCache() {
+        Log.d(TAG, "clearMemoryCache()");
+        Fresco.getImagePipeline().clearMemoryCaches();
+    }
+
     @Override
     public void clearCache() {
         Log.d(TAG, "clearCache() - Clearing both disk and memory caches");
@@ -167,10 +290,13 @@ public class FrescoImageLoaderManager extends ImageLoaderManager {
      *
      * See this link for details: http://stackoverflow.com/questions/33961167/fresco-cancel-prefetch-requests
      *
-     * @param url
+     * @param imageModel
      */
     @Override
-    public void onViewDetachedFromWindow(String url) {
+    public void onViewDetachedFromWindow(ImageModel imageModel) {
+        cancelMetrics(imageModel.getImageView());
+
+        String url = imageModel.getUrl();
         synchronized (sync) {
             DataSource<CloseableReference<CloseableImage>> ds = pendingImageLoad.get(url);
             if (ds != null) {
@@ -0,0 +1,164 @@
+package com.motondon.lazyloaddemoapp.imageloader.fresco;
+
+import android.os.SystemClock;
+
+import com.facebook.imagepipeline.listener.RequestListener;
+import com.facebook.imagepipeline.producers.BitmapMemoryCacheGetProducer;
+import com.facebook.imagepipeline.producers.BitmapMemoryCacheProducer;
+import com.facebook.imagepipeline.producers.DecodeProducer;
+import com.facebook.imagepipeline.producers.DiskCacheReadProducer;
+import com.facebook.imagepipeline.producers.EncodedMemoryCacheProducer;
+import com.facebook.imagepipeline.producers.NetworkFetchProducer;
+import com.facebook.imagepipeline.producers.ThreadHandoffProducer;
+import com.facebook.imagepipeline.request.ImageRequest;
+import com.motondon.lazyloaddemoapp.imageloader.ImageLoadMetrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The image pipeline reports every step of a request (each one is a "producer") to its RequestListeners. This listener turns
+ * those events into the ImageLoadMetrics of the requests made by loadImage() (their ImageLoadMetrics.Builder is the caller
+ * context of the request):
+ *   - source: the first cache producer that found the image, or the network fetch producer
+ *   - queue wait: until the request was handed off to a background thread
+ *   - network time: duration of the network fetch producer
+ *   - decode time: duration of the decode producer
+ *
+ * Producers run in several threads, so this class must be thread safe.
+ *
+ */
+public class MetricsRequestListener implements RequestListener {
+
+    // State of the requests being measured, by request id
+    private final ConcurrentHashMap<String, RequestState> requests = new ConcurrentHashMap<>();
+
+    private static class RequestState {
+        final ImageLoadMetrics.Builder metrics;
+        volatile boolean sourceFound = false;
+        volatile long networkStart;
+        volatile long decodeStart;
+
+        RequestState(ImageLoadMetrics.Builder metrics) {
+            this.metrics = metrics;
+        }
+    }
+
+    @Override
+    public void onRequestStart(ImageRequest request, Object callerContext, String requestId, boolean isPrefetch) {
+        if (callerContext instanceof ImageLoadMetrics.Builder) {
+            requests.put(requestId, new RequestState((ImageLoadMetrics.Builder) callerContext));
+        }
+    }
+
+    @Override
+    public void onRequestSuccess(ImageRequest request, String requestId, boolean isPrefetch) {
+        requests.remove(requestId);
+    }
+
+    @Override
+    public void onRequestFailure(ImageRequest request, String requestId, Throwable throwable, boolean isPrefetch) {
+        requests.remove(requestId);
+    }
+
+    @Override
+    public void onRequestCancellation(String requestId) {
+        requests.remove(requestId);
+    }
+
+    @Override
+    public void onProducerStart(String requestId, String producerName) {
+        RequestState state = requests.get(requestId);
+        if (state == null) {
+            return;
+        }
+
+        if (NetworkFetchProducer.PRODUCER_NAME.equals(producerName)) {
+            state.networkStart = SystemClock.elapsedRealtimeNanos();
+        } else if (DecodeProducer.PRODUCER_NAME.equals(producerName)) {
+            state.decodeStart = SystemClock.elapsedRealtimeNanos();
+        }
+    }
+
+    @Override
+    public void onProducerEvent(String requestId, String producerName, String eventName) {
+    }
+
+    @Override
+    public void onProducerFinishWithSuccess(String requestId, String producerName, Map<String, String> extraMap) {
+        RequestState state = requests.get(requestId);
+        if (state == null) {
+            return;
+        }
+
+        long now = SystemClock.elapsedRealtimeNanos();
+
+        switch (producerName) {
+            case ThreadHandoffProducer.PRODUCER_NAME:
+                // The hand off finishes when the request starts running in the background thread
+                state.metrics.setStartedAt(now);
+                break;
+
+            case BitmapMemoryCacheGetProducer.PRODUCER_NAME:
+            case BitmapMemoryCacheProducer.PRODUCER_NAME:
+            case EncodedMemoryCacheProducer.PRODUCER_NAME:
+                if (isCachedValueFound(extraMap)) {
+                    setSource(state, ImageLoadMetrics.Source.MEMORY);
+                }
+                break;
+
+            case DiskCacheReadProducer.PRODUCER_NAME:
+                if (isCachedValueFound(extraMap)) {
+                    setSource(state, ImageLoadMetrics.Source.DISK);
+                }
+                break;
+
+            case NetworkFetchProducer.PRODUCER_NAME:
+                setSource(state, ImageLoadMetrics.Source.NETWORK);
+                state.metrics.setNetworkTime((now - state.networkStart) / 1e6);
+                break;
+
+            case DecodeProducer.PRODUCER_NAME:
+                state.metrics.setDecodeTime((now - state.decodeStart) / 1e6);
+                break;
+        }
+    }
+
+    @Override
+    public void onProducerFinishWithFailure(String requestId, String producerName, Throwable t, Map<String, String> extraMap) {
+    }
+
+    @Override
+    public void onProducerFinishWithCancellation(String requestId, String producerName, Map<String, String> extraMap) {
+    }
+
+    /**
+     * The cache producers only report whether they found the image in the extra map, so ask for it for our requests.
+     *
+     * @param requestId
+     * @return
+     */
+    @Override
+    public boolean requiresExtraMap(String requestId) {
+        return requests.containsKey(requestId);
+    }
+
+    private boolean isCachedValueFound(Map<String, String> extraMap) {
+        return extraMap != null && Boolean.parseBoolean(extraMap.get(BitmapMemoryCacheProducer.EXTRA_CACHED_VALUE_FOUND));
+    }
+
+    /**
+     * A cache producer that does not find the image reports it right away, before passing the request on to the next producer,
+     * so only the producer the image came from reports it as found. Keep the first one anyway, in case two requests for the same
+     * image are merged by the pipeline.
+     *
+     * @param state
+     * @param source
+     */
+    private void setSource(RequestState state, ImageLoadMetrics.Source source) {
+        if (!state.sourceFound) {
+            state.sourceFound = true;
+            state.metrics.setSource(source);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.motondon.lazyloaddemoapp.imageloader.fresco;
+
+import com.facebook.common.memory.MemoryTrimType;
+import com.facebook.common.memory.MemoryTrimmable;
+import com.facebook.common.memory.MemoryTrimmableRegistry;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The pipeline registers its memory caches and pools here, so that they can be trimmed when the system is low on memory. The
+ * default registry (NoOpMemoryTrimmableRegistry) just ignores them, so Fresco would never give memory back on its own.
+ *
+ */
+public class TrimmableRegistry implements MemoryTrimmableRegistry {
+
+    private final CopyOnWriteArrayList<MemoryTrimmable> trimmables = new CopyOnWriteArrayList<>();
+
+    @Override
+    public void registerMemoryTrimmable(MemoryTrimmable trimmable) {
+        trimmables.addIfAbsent(trimmable);
+    }
+
+    @Override
+    public void unregisterMemoryTrimmable(MemoryTrimmable trimmable) {
+        trimmables.remove(trimmable);
+    }
+
+    /**
+     * Forget every cache and pool registered so far. Must be called before the pipeline is initialized again (see
+     * FrescoImageLoaderManager.setBitmapConfig()), otherwise the ones of the old pipeline would still be trimmed (and so kept
+     * reachable) along with the new ones.
+     */
+    public void clear() {
+        trimmables.clear();
+    }
+
+    /**
+     * Each cache releases its unused entries until it is reduced by the ratio suggested for the trim type.
+     *
+     * @param trimType
+     */
+    public void trim(MemoryTrimType trimType) {
+        for (MemoryTrimmable trimmable : trimmables) {
+            trimmable.trim(trimType);
+        }
+    }
+}
@@ -1,34 +1,59 @@
 package com.motondon.lazyloaddemoapp.imageloader.glide;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.util.Log;
 import android.widget.ImageView;
 
-import com.bumptech.glide.DrawableRequestBuilder;
-import com.bumptech.glide.DrawableTypeRequest;
+import com.bumptech.glide.BitmapRequestBuilder;
+import com.bumptech.glide.BitmapTypeRequest;
 import com.bumptech.glide.Glide;
 import com.bumptech.glide.Priority;
 import com.bumptech.glide.RequestManager;
+import com.bumptech.glide.load.DecodeFormat;
 import com.bumptech.glide.load.engine.DiskCacheStrategy;
-import com.bumptech.glide.load.resource.bitmap.GlideBitmapDrawable;
-import com.bumptech.glide.load.resource.drawable.GlideDrawable;
 import com.bumptech.glide.request.RequestListener;
 import com.bumptech.glide.request.animation.GlideAnimation;
 import com.bumptech.glide.request.target.SimpleTarget;
 import com.bumptech.glide.request.target.Target;
 import com.motondon.lazyloaddemoapp.R;
+import com.motondon.lazyloaddemoapp.imageloader.ImageLoadMetrics;
 import com.motondon.lazyloaddemoapp.imageloader.ImageLoaderManager;
 import com.motondon.lazyloaddemoapp.model.ImageModel;
 
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
 public class GlideImageLoaderManager extends ImageLoaderManager {
 
     private static final String TAG = GlideImageLoaderManager.class.getSimpleName();
 
     private RequestManager requestManager;
 
+    // Network time of the images downloaded since their request was completed, by url. See NetworkTimingUrlLoader.
+    private final ConcurrentHashMap<String, Double> networkTimes = new ConcurrentHashMap<>();
+
+    // Number of loadImage() requests waiting for each url. Only their downloads are recorded in networkTimes: a prefetch is never
+    // completed by a listener, so its network time would stay there until a later request for the same url took it (and
+    // reported a disk cache hit as a download).
+    private final HashMap<String, Integer> trackedUrls = new HashMap<>();
+
+    private final NetworkTimingUrlLoader.Callback networkTimingCallback = new NetworkTimingUrlLoader.Callback() {
+        @Override
+        public void onDownloaded(String url, double networkTime) {
+            if (isTracked(url)) {
+                networkTimes.put(url, networkTime);
+            }
+        }
+    };
+
     public GlideImageLoaderManager(Context context, boolean useDiskCache, boolean useMemoryCache) {
         super(context, useDiskCache, useMemoryCache);
         Log.v(TAG, "ctor()");
+
+        // The loader itself is registered only once, by NetworkAwareGlideModule. From now on it reports to this instance.
+        NetworkTimingUrlLoader.setCallback(networkTimingCallback);
     }
 
     /**
@@ -37,47 +62,50 @@ public class GlideImageLoaderManager extends ImageLoaderManager {
      * @param imageModel
      */
     @Override
-    public void loadImage(ImageModel imageModel) {
+    public void loadImage(final ImageModel imageModel) {
         Log.d(TAG, "loadImage() - Loading image from URL: " + imageModel.getUrl());
 
         final String url = imageModel.getUrl();
         final ImageView imageView = imageModel.getImageView();
 
+        // Glide does not expose the queue wait or the decode time, only where the image came from and the network time
+        ImageLoadMetrics.Builder metrics = startMetrics(imageModel);
+        track(url);
+
         requestManager = Glide.with(mContext);
 
-        DrawableTypeRequest<String> drawableTypeRequest = requestManager.load(url);
+        // This call forces Glide to return a Bitmap object since Glide can also load Gifs or videos. It returns a new request, which
+        // is the one to be configured from now on (only a bitmap request allows us to choose the decode format).
+        // See link below for details:
+        // https://futurestud.io/blog/glide-callbacks-simpletarget-and-viewtarget-for-custom-view-classes
+        BitmapTypeRequest<String> bitmapTypeRequest = requestManager.load(url).asBitmap();
 
         // Add a listener so that we can listen for errors.
-        addCustomListener(drawableTypeRequest);
+        addCustomListener(bitmapTypeRequest, imageModel, metrics);
 
-        // This call forces Glide to return a Bitmap object since Glide can also load Gifs or videos. 
-        // See link below for details:
-        // https://futurestud.io/blog/glide-callbacks-simpletarget-and-viewtarget-for-custom-view-classes
-        drawableTypeRequest.asBitmap();
+        // Decode to the configured config. Unlike the other engines, Glide only "prefers" it: images with alpha are still decoded
+        // to ARGB_8888.
+        bitmapTypeRequest.format(getDecodeFormat());
 
         // Set a placeholder image to be displayed while image is being loaded
         // drawableTypeRequest.placeholder(R.drawable.ic_placeholder);
         imageView.setImageDrawable(mContext.getResources().getDrawable(R.drawable.ic_placeholder));
 
         // Set an error image to be displayed if image cannot be downloaded successfully
-        drawableTypeRequest.error(R.drawable.no_cover);
+        bitmapTypeRequest.error(R.drawable.no_cover);
 
-        // Change the crossFate time (300ms is the default value)
-        drawableTypeRequest.crossFade(250);
-
-        // Display the image without a crossfade effect
-        // drawableTypeRequest.dontAnimate();
+        // There is no crossFade() for bitmap requests (it used to be set here, but our SimpleTarget ignores the animation anyway)
 
         // Resize the image to these dimensions (in pixel). This is a "resize()" Picasso method equivalent.
-        // drawableTypeRequest.override(600, 200);
+        // bitmapTypeRequest.override(600, 200);
 
         //  Prioritize the image loading with other simultaneously Glide loading requests. Default value is NORMAL.
-        drawableTypeRequest.priority(Priority.HIGH);
+        bitmapTypeRequest.priority(Priority.HIGH);
 
         if (!memoryCache) {
             Log.d(TAG, "loadImage() - Detected Memory cache is OFF");
             // Skip memory cache
-            drawableTypeRequest = (DrawableTypeRequest<String>) drawableTypeRequest.skipMemoryCache(true);
+            bitmapTypeRequest.skipMemoryCache(true);
         } else {
             Log.d(TAG, "loadImage() - Detected Memory cache is ON");
         }
@@ -85,49 +113,177 @@ public class GlideImageLoaderManager extends ImageLoaderManager {
         if (!diskCache) {
             Log.d(TAG, "loadImage() - Detected Disk cache is OFF");
             // Skip disk cache
-            drawableTypeRequest = (DrawableTypeRequest<String>) drawableTypeRequest.diskCacheStrategy(DiskCacheStrategy.NONE);
+            bitmapTypeRequest.diskCacheStrategy(DiskCacheStrategy.NONE);
         } else {
             Log.d(TAG, "loadImage() - Detected Disk cache is ON");
         }
 
         // Create a Target (i.e. a callback) in order to be able to take any action before display the image.
-        SimpleTarget target = new SimpleTarget<GlideBitmapDrawable>() {
+        SimpleTarget<Bitmap> target = new SimpleTarget<Bitmap>() {
             @Override
-            public void onResourceReady(GlideBitmapDrawable drawable, GlideAnimation glideAnimation) {
+            public void onResourceReady(Bitmap bitmap, GlideAnimation glideAnimation) {
             	Log.d(TAG, "loadImage::onResourceReady() - Download for image: " + url + " finished successfully");
-            	imageView.setImageBitmap( drawable.getBitmap() );
+            	imageView.setImageBitmap(bitmap);
+            	finishMetrics(imageModel, bitmap);
             }
         };
         
         // And finally request Glide to download the image
-        drawableTypeRequest.into(target);
+        bitmapTypeRequest.into(target);
+    }
+
+    /**
+     * Glide 3 only takes a "preferred" format. Configs other than RGB_565 are decoded to ARGB_8888.
+     *
+     * @return
+     */
+    private DecodeFormat getDecodeFormat() {
+        return bitmapConfig == Bitmap.Config.RGB_565 ? DecodeFormat.PREFER_RGB_565 : DecodeFormat.PREFER_ARGB_8888;
     }
 
     /**
      * This method adds a custom listener so that we have a chance to listen for errors. Here we just print a log message.
      *
      * Also we can also take some actions when the image is ready (by adding some code to the onResourceReady() method). This is called
-     * prior the SimpleTarget::onResourceReady() method.
+     * prior the SimpleTarget::onResourceReady() method. We use it to find out where the image came from.
      *
-     * @param drawableTypeRequest
+     * @param bitmapRequest
+     * @param imageModel
+     * @param metrics
      */
-    private void addCustomListener(DrawableRequestBuilder<String> drawableTypeRequest) {
-        RequestListener<String, GlideDrawable> requestListener = new RequestListener<String, GlideDrawable>() {
+    private void addCustomListener(BitmapRequestBuilder<String, Bitmap> bitmapRequest, final ImageModel imageModel, final ImageLoadMetrics.Builder metrics) {
+        final String url = imageModel.getUrl();
+
+        RequestListener<String, Bitmap> requestListener = new RequestListener<String, Bitmap>() {
             @Override
-            public boolean onException(Exception e, String model, Target<GlideDrawable> target, boolean isFirstResource) {
-                Log.e(TAG, "addCustomListener::onException() - Error while loading image: " + e.getMessage());
+            public boolean onException(Exception e, String model, Target<Bitmap> target, boolean isFirstResource) {
+                Log.e(TAG, "addCustomListener::onException() - Error while loading image: " + (e != null ? e.getMessage() : url));
+                untrack(url);
+                finishMetrics(imageModel, null);
 
                 // Do not forget to to return false so the error placeholder can be placed!
                 return false;
             }
 
             @Override
-            public boolean onResourceReady(GlideDrawable resource, String model, Target<GlideDrawable> target, boolean isFromMemoryCache, boolean isFirstResource) {
+            public boolean onResourceReady(Bitmap resource, String model, Target<Bitmap> target, boolean isFromMemoryCache, boolean isFirstResource) {
+                // Always consume the network time, so that it is not taken by a later request for the same url
+                Double networkTime = untrack(url);
+
+                if (isFromMemoryCache) {
+                    metrics.setSource(ImageLoadMetrics.Source.MEMORY);
+                } else if (networkTime != null) {
+                    metrics.setSource(ImageLoadMetrics.Source.NETWORK).setNetworkTime(networkTime);
+                } else {
+                    metrics.setSource(ImageLoadMetrics.Source.DISK);
+                }
                 return false;
             }
         };
 
-        drawableTypeRequest.listener(requestListener);
+        bitmapRequest.listener(requestListener);
+    }
+
+    private void track(String url) {
+        synchronized (trackedUrls) {
+            Integer count = trackedUrls.get(url);
+            trackedUrls.put(url, count == null ? 1 : count + 1);
+        }
+    }
+
+    /**
+     * A request for the url completed. Returns the network time recorded for it, if any.
+     *
+     * @param url
+     * @return
+     */
+    private Double untrack(String url) {
+        synchronized (trackedUrls) {
+            Integer count = trackedUrls.get(url);
+            if (count == null || count <= 1) {
+                trackedUrls.remove(url);
+            } else {
+                trackedUrls.put(url, count - 1);
+            }
+            return networkTimes.remove(url);
+        }
+    }
+
+    private boolean isTracked(String url) {
+        synchronized (trackedUrls) {
+            return trackedUrls.containsKey(url);
+        }
+    }
+
+    /**
+     * Glide::preload() loads the image into the caches without a view. Like loadImage(), it uses the original size (a SimpleTarget
+     * does not give Glide any size), so it will be a memory cache hit when the row is bound.
+     *
+     * @param urls
+     */
+    @Override
+    public void prefetch(List<String> urls) {
+        if (!memoryCache && !diskCache) {
+            // There is no cache to warm
+            return;
+        }
+
+        RequestManager requestManager = Glide.with(mContext);
+        for (String url : urls) {
+            BitmapTypeRequest<String> request = requestManager.load(url).asBitmap();
+            request.format(getDecodeFormat());
+            request.priority(Priority.LOW);
+
+            if (!memoryCache) {
+                request.skipMemoryCache(true);
+            }
+            if (!diskCache) {
+                request.diskCacheStrategy(DiskCacheStrategy.NONE);
+            }
+
+            request.preload();
+        }
+    }
+
+    /**
+     * Besides the memory callbacks, stop receiving the download times (unless another instance already took them over).
+     */
+    @Override
+    public void release() {
+        super.release();
+        NetworkTimingUrlLoader.clearCallback(networkTimingCallback);
+    }
+
+    @Override
+    public void pause() {
+        Glide.with(mContext).pauseRequests();
+    }
+
+    @Override
+    public void resume() {
+        Glide.with(mContext).resumeRequests();
+    }
+
+    @Override
+    public void clearMemoryCache() {
+        Log.d(TAG, "clearMemoryCache()");
+
+        // Glide::clearMemory() method must be called in the Main UI Thread
+        Glide.get(mContext).clearMemory();
+    }
+
+    /**
+     * Glide already knows how to trim both its memory cache and its bitmap pool for every level. It just does not register
+     * itself for the callbacks.
+     *
+     * @param level
+     */
+    @Override
+    public void trimMemory(int level) {
+        Log.d(TAG, "trimMemory() - level: " + level);
+
+        // Glide::trimMemory() method must be called in the Main UI Thread
+        Glide.get(mContext).trimMemory(level);
     }
 
     @Override
@@ -147,7 +303,8 @@ public class GlideImageLoaderManager extends ImageLoaderManager {
     }
 
     @Override
-    public void onViewDetachedFromWindow(String url) {
-        // Not used by Glide
+    public void onViewDetachedFromWindow(ImageModel imageModel) {
+        // Glide does not cancel the request, but the view is not waiting for it anymore
+        cancelMetrics(imageModel.getImageView());
     }
 }
\ No newline at end of file
@@ -0,0 +1,42 @@
+package com.motondon.lazyloaddemoapp.imageloader.glide;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.GlideBuilder;
+import com.bumptech.glide.load.engine.executor.FifoPriorityThreadPoolExecutor;
+import com.bumptech.glide.load.model.GlideUrl;
+import com.bumptech.glide.module.GlideModule;
+import com.motondon.lazyloaddemoapp.imageloader.NetworkConcurrency;
+
+import java.io.InputStream;
+
+/**
+ * Sizes the pool Glide downloads and decodes the images in (its "source" executor) according to the network and the number of
+ * cores (see NetworkConcurrency), instead of using one thread per core whatever the network is.
+ *
+ * Glide only reads its modules (declared in AndroidManifest.xml) once, before it is first used, so the pool keeps the size of
+ * the network the app started on.
+ *
+ * It also registers NetworkTimingUrlLoader, so that the downloads are timed.
+ *
+ */
+public class NetworkAwareGlideModule implements GlideModule {
+
+    private static final String TAG = NetworkAwareGlideModule.class.getSimpleName();
+
+    @Override
+    public void applyOptions(Context context, GlideBuilder builder) {
+        int threadPoolSize = NetworkConcurrency.getThreadPoolSize(context);
+        Log.d(TAG, "applyOptions() - Using " + threadPoolSize + " threads for downloading and decoding the images");
+
+        builder.setResizeService(new FifoPriorityThreadPoolExecutor(threadPoolSize));
+    }
+
+    @Override
+    public void registerComponents(Context context, Glide glide) {
+        // Registered once for the whole process. It reports to the current GlideImageLoaderManager (see setCallback()).
+        glide.register(GlideUrl.class, InputStream.class, new NetworkTimingUrlLoader.Factory());
+    }
+}
@@ -0,0 +1,115 @@
+package com.motondon.lazyloaddemoapp.imageloader.glide;
+
+import android.content.Context;
+import android.os.SystemClock;
+
+import com.bumptech.glide.Priority;
+import com.bumptech.glide.load.data.DataFetcher;
+import com.bumptech.glide.load.model.GenericLoaderFactory;
+import com.bumptech.glide.load.model.GlideUrl;
+import com.bumptech.glide.load.model.ModelLoader;
+import com.bumptech.glide.load.model.ModelLoaderFactory;
+import com.bumptech.glide.load.model.stream.HttpUrlGlideUrlLoader;
+import com.motondon.lazyloaddemoapp.imageloader.TimedInputStream;
+
+import java.io.InputStream;
+
+/**
+ * Glide does not tell whether an image that did not come from its memory cache came from its disk cache or from the network.
+ * This loader wraps the default one (HttpUrlGlideUrlLoader), so images are still downloaded exactly the same way, and reports
+ * every download and how long it took. An image for which no download was reported came from the disk cache.
+ *
+ * Glide is a singleton, so the loader is registered only once (see NetworkAwareGlideModule) and reports to whichever callback
+ * is set at the time (the current GlideImageLoaderManager, if any).
+ *
+ */
+public class NetworkTimingUrlLoader implements ModelLoader<GlideUrl, InputStream> {
+
+    public interface Callback {
+        void onDownloaded(String url, double networkTime);
+    }
+
+    private static volatile Callback callback;
+
+    private final ModelLoader<GlideUrl, InputStream> delegate;
+
+    public NetworkTimingUrlLoader(ModelLoader<GlideUrl, InputStream> delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Set the callback the downloads are reported to from now on, or null to stop reporting them.
+     *
+     * @param callback
+     */
+    public static synchronized void setCallback(Callback callback) {
+        NetworkTimingUrlLoader.callback = callback;
+    }
+
+    /**
+     * Clear the callback, unless another one was set since (e.g.: by the engine that replaced the one being released).
+     *
+     * @param callback
+     */
+    public static synchronized void clearCallback(Callback callback) {
+        if (NetworkTimingUrlLoader.callback == callback) {
+            NetworkTimingUrlLoader.callback = null;
+        }
+    }
+
+    @Override
+    public DataFetcher<InputStream> getResourceFetcher(final GlideUrl model, int width, int height) {
+        final DataFetcher<InputStream> fetcher = delegate.getResourceFetcher(model, width, height);
+
+        return new DataFetcher<InputStream>() {
+            @Override
+            public InputStream loadData(Priority priority) throws Exception {
+                long requestTime = SystemClock.elapsedRealtimeNanos();
+                InputStream in = fetcher.loadData(priority);
+                if (in == null) {
+                    return null;
+                }
+
+                return new TimedInputStream(in, requestTime, new TimedInputStream.Callback() {
+                    @Override
+                    public void onFinished(double elapsedTime) {
+                        Callback current = callback;
+                        if (current != null) {
+                            current.onDownloaded(model.toStringUrl(), elapsedTime);
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void cleanup() {
+                fetcher.cleanup();
+            }
+
+            @Override
+            public String getId() {
+                return fetcher.getId();
+            }
+
+            @Override
+            public void cancel() {
+                fetcher.cancel();
+            }
+        };
+    }
+
+    public static class Factory implements ModelLoaderFactory<GlideUrl, InputStream> {
+
+        private final HttpUrlGlideUrlLoader.Factory delegate = new HttpUrlGlideUrlLoader.Factory();
+
+        @Override
+        public ModelLoader<GlideUrl, InputStream> build(Context context, GenericLoaderFactory factories) {
+            return new NetworkTimingUrlLoader(delegate.build(context, factories));
+        }
+
+        @Override
+        public void teardown() {
+            delegate.teardown();
+        }
+    }
+}
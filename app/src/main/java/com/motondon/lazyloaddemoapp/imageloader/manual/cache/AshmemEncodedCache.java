@@ -0,0 +1,279 @@
+package com.motondon.lazyloaddemoapp.imageloader.manual.cache;
+
+import android.os.MemoryFile;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * EncodedCache that keeps the images out of the Java heap, in a shared memory (ashmem) region mapped into the process. The
+ * region does not count against the heap limit and is never scanned by the GC, so hundreds of images can be kept without making
+ * the heap (or the GC pauses) any bigger. Only the index lives on the heap.
+ *
+ * On Android, ByteBuffer.allocateDirect() returns a non movable array on the Java heap, so a direct buffer would not get the
+ * images out of the heap. A memory mapped file would, but its dirty pages would be written back to the flash for nothing, since
+ * the content does not have to survive the process.
+ *
+ * The region is split into slabs of the same size. Images are appended to the current slab, and when it is full the next one
+ * is taken from the free slabs or, if there are none, the least recently used slab is evicted as a whole (with every image in
+ * it). This way there is no fragmentation and no need to move images around, at the cost of evicting a few images at once.
+ *
+ * Reads copy the image to a (short lived) array, since a slab can be reused by another thread as soon as the lock is released.
+ *
+ */
+public class AshmemEncodedCache implements EncodedCache {
+
+    private static final String TAG = "AshmemEncodedCache";
+
+    private static final class Slab {
+        final int offset;
+
+        // Where the next image will be written, relative to the slab
+        int writeOffset;
+
+        // Bytes of the images in this slab that are still in the index
+        long liveBytes;
+
+        // Value of the access clock when an image in this slab was last read or written
+        long lastAccess;
+
+        // Urls written to this slab. Some of them might have been removed (or written again to another slab) since.
+        final List<String> urls = new ArrayList<>();
+
+        Slab(int offset) {
+            this.offset = offset;
+        }
+
+        void reset() {
+            writeOffset = 0;
+            liveBytes = 0;
+            urls.clear();
+        }
+    }
+
+    private static final class Location {
+        final Slab slab;
+        final int offset;
+        final int length;
+        final CacheMetadata metadata;
+
+        Location(Slab slab, int offset, int length, CacheMetadata metadata) {
+            this.slab = slab;
+            this.offset = offset;
+            this.length = length;
+            this.metadata = metadata;
+        }
+    }
+
+    private final MemoryFile memoryFile;
+    private final int slabSize;
+
+    // Everything below is guarded by "this"
+    private final Slab[] slabs;
+    private final ArrayDeque<Slab> freeSlabs = new ArrayDeque<>();
+    private final HashMap<String, Location> index = new HashMap<>();
+    private Slab currentSlab;
+    private long accessClock = 0;
+    private long size = 0;
+    private boolean closed = false;
+
+    /**
+     * @param slabCount
+     * @param slabSize also the biggest image that can be cached
+     * @throws IOException if the shared memory region could not be created
+     */
+    public AshmemEncodedCache(int slabCount, int slabSize) throws IOException {
+        this.slabSize = slabSize;
+        this.memoryFile = new MemoryFile(TAG, slabCount * slabSize);
+
+        slabs = new Slab[slabCount];
+        for (int i = 0; i < slabCount; i++) {
+            slabs[i] = new Slab(i * slabSize);
+            freeSlabs.add(slabs[i]);
+        }
+
+        Log.i(TAG, "AshmemEncodedCache will use up to " + slabCount * slabSize / 1024. / 1024. + "MB out of the Java heap");
+    }
+
+    @Override
+    public synchronized Entry get(String url) {
+        Location location = index.get(url);
+        if (location == null || closed) {
+            return null;
+        }
+
+        byte[] data = new byte[location.length];
+        try {
+            memoryFile.readBytes(data, location.slab.offset + location.offset, 0, location.length);
+        } catch (IOException e) {
+            Log.e(TAG, "get() - Error while reading image: " + url + ". Message: " + e.getMessage());
+            remove(url);
+            return null;
+        }
+
+        location.slab.lastAccess = ++accessClock;
+        return new Entry(data, location.metadata);
+    }
+
+    /**
+     * The image is copied into the shared memory, so the array can be reused by the caller.
+     */
+    @Override
+    public synchronized void put(String url, byte[] data, CacheMetadata metadata) {
+        if (url == null || data == null || closed) {
+            return;
+        }
+
+        // Do not keep an older version of the image in any case
+        remove(url);
+
+        if (data.length > slabSize) {
+            return;
+        }
+
+        if (currentSlab == null || currentSlab.writeOffset + data.length > slabSize) {
+            currentSlab = obtainSlab();
+        }
+
+        try {
+            memoryFile.writeBytes(data, 0, currentSlab.offset + currentSlab.writeOffset, data.length);
+        } catch (IOException e) {
+            Log.e(TAG, "put() - Error while writing image: " + url + ". Message: " + e.getMessage());
+            return;
+        }
+
+        index.put(url, new Location(currentSlab, currentSlab.writeOffset, data.length, metadata));
+        currentSlab.urls.add(url);
+        currentSlab.writeOffset += data.length;
+        currentSlab.liveBytes += data.length;
+        currentSlab.lastAccess = ++accessClock;
+        size += data.length;
+    }
+
+    @Override
+    public synchronized void remove(String url) {
+        Location location = index.remove(url);
+        if (location == null) {
+            return;
+        }
+
+        size -= location.length;
+        location.slab.liveBytes -= location.length;
+
+        // A slab whose images were all removed can be reused right away (unless images are still being appended to it)
+        if (location.slab.liveBytes == 0 && location.slab != currentSlab) {
+            location.slab.reset();
+            freeSlabs.add(location.slab);
+        }
+    }
+
+    /**
+     * Evicts whole slabs, so the cache might end up a bit smaller than maxSize.
+     */
+    @Override
+    public synchronized void trimToSize(long maxSize) {
+        while (size > maxSize) {
+            Slab slab = getLeastRecentlyUsedSlab(null);
+            if (slab == null) {
+                break;
+            }
+
+            evict(slab);
+            if (slab == currentSlab) {
+                currentSlab = null;
+            }
+            freeSlabs.add(slab);
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        index.clear();
+        freeSlabs.clear();
+        for (Slab slab : slabs) {
+            slab.reset();
+            freeSlabs.add(slab);
+        }
+        currentSlab = null;
+        size = 0;
+    }
+
+    @Override
+    public synchronized void close() {
+        clear();
+        closed = true;
+        memoryFile.close();
+    }
+
+    @Override
+    public synchronized long size() {
+        return size;
+    }
+
+    @Override
+    public long getMaxEntrySize() {
+        return slabSize;
+    }
+
+    /**
+     * Returns an empty slab: a free one, or the least recently used one after evicting its images.
+     *
+     * @return
+     */
+    private Slab obtainSlab() {
+        Slab slab = freeSlabs.poll();
+        if (slab != null) {
+            return slab;
+        }
+
+        // The current slab is full, which is why a new one is needed, but it might be the only one there is
+        slab = getLeastRecentlyUsedSlab(currentSlab);
+        if (slab == null) {
+            slab = currentSlab;
+        }
+
+        evict(slab);
+        return slab;
+    }
+
+    /**
+     * Returns the least recently used slab that holds any image, other than "excluded", or null if there is none.
+     *
+     * @param excluded
+     * @return
+     */
+    private Slab getLeastRecentlyUsedSlab(Slab excluded) {
+        // Just a few dozen slabs, so a linear scan is cheaper than keeping them ordered
+        Slab eldest = null;
+        for (Slab slab : slabs) {
+            if (slab != excluded && slab.writeOffset > 0 && (eldest == null || slab.lastAccess < eldest.lastAccess)) {
+                eldest = slab;
+            }
+        }
+        return eldest;
+    }
+
+    /**
+     * Remove every image stored in the slab from the index and reset it.
+     *
+     * @param slab
+     */
+    private void evict(Slab slab) {
+        int evicted = 0;
+        for (String url : slab.urls) {
+            Location location = index.get(url);
+            if (location != null && location.slab == slab) {
+                index.remove(url);
+                size -= location.length;
+                evicted++;
+            }
+        }
+        slab.reset();
+
+        Log.d(TAG, "evict() - Evicted " + evicted + " images. New size " + size + " length=" + index.size());
+    }
+}
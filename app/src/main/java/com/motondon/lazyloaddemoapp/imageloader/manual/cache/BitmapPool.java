@@ -0,0 +1,225 @@
+package com.motondon.lazyloaddemoapp.imageloader.manual.cache;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Holds bitmaps that are no longer used, so that their memory can be reused by the next decode (see
+ * BitmapFactory.Options.inBitmap) instead of allocating a new bitmap for every image and leaving the old ones for the GC.
+ *
+ * A bitmap can only be reused when nobody is showing or caching it anymore. So this class also counts the references to the
+ * bitmaps created by the manual engine: the memory cache and every view showing a bitmap hold a reference (see acquire() and
+ * release()), and a bitmap goes to the pool when its last reference is released. A view that is dropped without releasing its
+ * reference keeps its bitmap out of the pool (and in memory) for as long as the pool lives, so views must release theirs when
+ * they are recycled.
+ *
+ * Pooled bitmaps are bucketed by their allocation size. Since API 19 a bitmap can be reused by any decode whose result fits in
+ * its allocation, so get() returns the smallest pooled bitmap that is big enough.
+ *
+ */
+public class BitmapPool {
+
+    private static final String TAG = "BitmapPool";
+
+    // Do not reuse a bitmap much bigger than needed, otherwise a few small images would retain a lot of memory
+    private static final int MAX_SIZE_MULTIPLE = 4;
+
+    // Reference counts of the bitmaps in use. Guarded by "this".
+    private final IdentityHashMap<Bitmap, int[]> references = new IdentityHashMap<>();
+
+    // Pooled bitmaps, keyed by allocation size. Guarded by "this".
+    private final TreeMap<Integer, ArrayDeque<Bitmap>> buckets = new TreeMap<>();
+
+    // Pooled bitmaps in the order they were added, so that the oldest ones are evicted first. Guarded by "this".
+    private final ArrayDeque<Bitmap> pooled = new ArrayDeque<>();
+    private final IdentityHashMap<Bitmap, Boolean> pooledSet = new IdentityHashMap<>();
+
+    private long size = 0;
+    private final long maxSize;
+
+    public BitmapPool(long maxSize) {
+        this.maxSize = maxSize;
+        Log.i(TAG, "BitmapPool will use up to " + maxSize / 1024. / 1024. + "MB");
+    }
+
+    /**
+     * Someone (a view or the memory cache) started using this bitmap. It will not be reused until released.
+     *
+     * @param bitmap
+     */
+    public synchronized void acquire(Bitmap bitmap) {
+        if (bitmap == null) {
+            return;
+        }
+
+        int[] count = references.get(bitmap);
+        if (count == null) {
+            references.put(bitmap, new int[] { 1 });
+        } else {
+            count[0]++;
+        }
+    }
+
+    /**
+     * Acquire a reference to a bitmap only if someone else still holds one (e.g.: a bitmap just read from the memory cache,
+     * which might have been evicted and put in the pool in the meantime). A bitmap that is not referenced anymore might already
+     * be reused by a decode, so it must not be shown. A bitmap that went through the pool and was decoded into again is
+     * referenced too, so the caller must check afterwards that the bitmap still holds the image it expects.
+     *
+     * @param bitmap
+     * @return whether the reference was acquired
+     */
+    public synchronized boolean acquireIfReferenced(Bitmap bitmap) {
+        if (bitmap == null) {
+            return false;
+        }
+
+        int[] count = references.get(bitmap);
+        if (count == null) {
+            return false;
+        }
+
+        count[0]++;
+        return true;
+    }
+
+    /**
+     * Someone stopped using this bitmap. When there are no references left, it goes to the pool. Bitmaps that were never
+     * acquired (e.g.: the placeholder) are ignored.
+     *
+     * @param bitmap
+     */
+    public synchronized void release(Bitmap bitmap) {
+        if (bitmap == null) {
+            return;
+        }
+
+        int[] count = references.get(bitmap);
+        if (count == null) {
+            return;
+        }
+
+        if (--count[0] <= 0) {
+            references.remove(bitmap);
+            put(bitmap);
+        }
+    }
+
+    /**
+     * Put a bitmap in the pool if nobody holds a reference to it (e.g.: a bitmap decoded for views that were all reused in the
+     * meantime, with the memory cache OFF).
+     *
+     * @param bitmap
+     */
+    public synchronized void releaseIfUnreferenced(Bitmap bitmap) {
+        if (bitmap != null && !references.containsKey(bitmap)) {
+            put(bitmap);
+        }
+    }
+
+    private void put(Bitmap bitmap) {
+        if (!bitmap.isMutable() || bitmap.isRecycled() || pooledSet.containsKey(bitmap)) {
+            return;
+        }
+
+        int allocationSize = bitmap.getAllocationByteCount();
+        if (allocationSize > maxSize) {
+            return;
+        }
+
+        ArrayDeque<Bitmap> bucket = buckets.get(allocationSize);
+        if (bucket == null) {
+            bucket = new ArrayDeque<>();
+            buckets.put(allocationSize, bucket);
+        }
+        bucket.addLast(bitmap);
+        pooled.addLast(bitmap);
+        pooledSet.put(bitmap, Boolean.TRUE);
+        size += allocationSize;
+
+        trimToSize(maxSize);
+    }
+
+    /**
+     * Returns a pooled bitmap whose allocation can hold a bitmap with the given dimensions and config, or null if there is none.
+     * The returned bitmap is no longer in the pool.
+     *
+     * @param width
+     * @param height
+     * @param config
+     * @return
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        long needed = (long) width * height * getBytesPerPixel(config);
+        if (needed <= 0 || needed > Integer.MAX_VALUE) {
+            return null;
+        }
+
+        Map.Entry<Integer, ArrayDeque<Bitmap>> entry = buckets.ceilingEntry((int) needed);
+        if (entry == null || entry.getKey() > needed * MAX_SIZE_MULTIPLE) {
+            return null;
+        }
+
+        ArrayDeque<Bitmap> bucket = entry.getValue();
+        Bitmap bitmap = bucket.pollLast();
+        if (bucket.isEmpty()) {
+            buckets.remove(entry.getKey());
+        }
+
+        pooled.removeFirstOccurrence(bitmap);
+        pooledSet.remove(bitmap);
+        size -= entry.getKey();
+
+        return bitmap;
+    }
+
+    /**
+     * Evict the oldest pooled bitmaps until the pool fits in the given size.
+     *
+     * @param targetSize
+     */
+    public synchronized void trimToSize(long targetSize) {
+        Iterator<Bitmap> iter = pooled.iterator();
+        while (size > targetSize && iter.hasNext()) {
+            Bitmap bitmap = iter.next();
+            iter.remove();
+            pooledSet.remove(bitmap);
+
+            int allocationSize = bitmap.getAllocationByteCount();
+            ArrayDeque<Bitmap> bucket = buckets.get(allocationSize);
+            if (bucket != null) {
+                bucket.removeFirstOccurrence(bitmap);
+                if (bucket.isEmpty()) {
+                    buckets.remove(allocationSize);
+                }
+            }
+            size -= allocationSize;
+        }
+    }
+
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == null) {
+            return 4;
+        }
+
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            default:
+                return 4;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.motondon.lazyloaddemoapp.imageloader.manual.cache;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * HTTP metadata of a FileCache entry: its validators (ETag and Last-Modified) and the time it stops being fresh (computed from
+ * Cache-Control/Expires when it was downloaded).
+ *
+ * A stale entry is not downloaded again. It is revalidated instead with a conditional GET (If-None-Match/If-Modified-Since), and
+ * the server answers 304 Not Modified (without a body) when the image did not change.
+ *
+ */
+public class CacheMetadata {
+
+    // Entries that never go stale (i.e. the server sent neither validators nor freshness information, so revalidating them would
+    // mean downloading them again). This is how the cache worked before it stored any metadata.
+    public static final long NEVER_EXPIRES = Long.MAX_VALUE;
+
+    // Used when the freshness is computed from Last-Modified only (see RFC 7234, section 4.2.2)
+    private static final int HEURISTIC_FRESHNESS_DIVISOR = 10;
+    private static final long MAX_HEURISTIC_FRESHNESS = 24 * 60 * 60 * 1000L;
+
+    private static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
+
+    private final String etag;
+    private final String lastModified;
+    private final long expiresAt;
+    private final boolean noStore;
+
+    public CacheMetadata(String etag, String lastModified, long expiresAt) {
+        this(etag, lastModified, expiresAt, false);
+    }
+
+    private CacheMetadata(String etag, String lastModified, long expiresAt, boolean noStore) {
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.expiresAt = expiresAt;
+        this.noStore = noStore;
+    }
+
+    /**
+     * Build the metadata from the headers of a response (either a 200 or a 304).
+     *
+     * A 304 does not have to repeat the validators, so the ones missing are taken from the previous metadata (if any).
+     *
+     * @param etag ETag header (or null)
+     * @param lastModified Last-Modified header (or null)
+     * @param cacheControl Cache-Control header (or null)
+     * @param expires Expires header (or null)
+     * @param date Date header (or null)
+     * @param responseTime local time the response was received
+     * @param previous metadata of the entry being revalidated (or null)
+     * @return
+     */
+    public static CacheMetadata fromResponse(String etag, String lastModified, String cacheControl, String expires, String date,
+                                             long responseTime, CacheMetadata previous) {
+        if (previous != null) {
+            if (etag == null) {
+                etag = previous.etag;
+            }
+            if (lastModified == null) {
+                lastModified = previous.lastModified;
+            }
+        }
+
+        boolean noStore = false;
+        boolean noCache = false;
+        long maxAgeSeconds = -1;
+
+        if (cacheControl != null) {
+            for (String directive : cacheControl.split(",")) {
+                directive = directive.trim().toLowerCase(Locale.US);
+                if (directive.equals("no-store")) {
+                    noStore = true;
+                } else if (directive.startsWith("no-cache")) {
+                    noCache = true;
+                } else if (directive.startsWith("max-age=")) {
+                    maxAgeSeconds = parseSeconds(directive.substring("max-age=".length()));
+                }
+            }
+        }
+
+        long serverDate = parseHttpDate(date);
+        long expiresAt;
+
+        if (noCache) {
+            // Can be stored, but must be revalidated every time
+            expiresAt = 0;
+        } else if (maxAgeSeconds >= 0) {
+            expiresAt = responseTime + maxAgeSeconds * 1000;
+        } else if (expires != null) {
+            // An invalid Expires (e.g.: "0") means already expired. Compute it relative to the server clock when possible.
+            long expiresDate = parseHttpDate(expires);
+            if (expiresDate <= 0) {
+                expiresAt = 0;
+            } else if (serverDate > 0) {
+                expiresAt = responseTime + Math.max(0, expiresDate - serverDate);
+            } else {
+                expiresAt = expiresDate;
+            }
+        } else if (lastModified != null && parseHttpDate(lastModified) > 0) {
+            // No explicit freshness. An image that did not change for a long time is likely to not change soon.
+            long age = (serverDate > 0 ? serverDate : responseTime) - parseHttpDate(lastModified);
+            expiresAt = responseTime + Math.min(MAX_HEURISTIC_FRESHNESS, Math.max(0, age / HEURISTIC_FRESHNESS_DIVISOR));
+        } else if (etag != null || lastModified != null) {
+            expiresAt = 0;
+        } else {
+            expiresAt = NEVER_EXPIRES;
+        }
+
+        return new CacheMetadata(etag, lastModified, expiresAt, noStore);
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    /**
+     * Whether the server asked the response not to be stored at all (Cache-Control: no-store).
+     *
+     * @return
+     */
+    public boolean isNoStore() {
+        return noStore;
+    }
+
+    public boolean isStale(long now) {
+        return now >= expiresAt;
+    }
+
+    private static long parseSeconds(String value) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the time in milliseconds of an RFC 1123 date (the format HTTP requires), or -1 if it cannot be parsed.
+     *
+     * @param value
+     * @return
+     */
+    static long parseHttpDate(String value) {
+        if (value == null) {
+            return -1;
+        }
+
+        // SimpleDateFormat is not thread safe, and this is only used once per download
+        SimpleDateFormat format = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            Date date = format.parse(value.trim());
+            return date.getTime();
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CacheMetadata{etag=" + etag + ", lastModified=" + lastModified + ", expiresAt=" + expiresAt + "}";
+    }
+}
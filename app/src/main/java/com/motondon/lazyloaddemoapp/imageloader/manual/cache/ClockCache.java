@@ -0,0 +1,225 @@
+package com.motondon.lazyloaddemoapp.imageloader.manual.cache;
+
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A size bounded cache whose eviction order is given by a CLOCK (second chance) algorithm. The entries live in a
+ * ConcurrentHashMap: a read only flags the entry as referenced (no lock is taken), and only the writers that push the cache
+ * above its limit take the eviction lock in order to sweep the clock. Each evicted entry is visited at most twice, so eviction
+ * is O(1) amortized.
+ *
+ * Subclasses tell how big each value is (see getSizeInBytes()). MemoryCache holds the decoded bitmaps of the manual engine.
+ *
+ * @param <V>
+ */
+public abstract class ClockCache<V> {
+
+    private static final String TAG = "ClockCache";
+
+    private final ConcurrentHashMap<String, Entry<V>> cache = new ConcurrentHashMap<>(64, 0.75f, 8);
+
+    // The clock ring. Entries are offered at the tail and the clock hand is always the head. Entries that were replaced or
+    // removed from the map are left here (they are dead) and will be discarded when the hand reaches them.
+    private final ConcurrentLinkedQueue<Entry<V>> clock = new ConcurrentLinkedQueue<>();
+
+    // Number of dead entries still held by the clock ring. When it gets bigger than the map, the ring is purged.
+    private final AtomicInteger deadEntries = new AtomicInteger();
+
+    // Only writers take this lock (and only when the limit is exceeded). Readers never block on it.
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    //current allocated size
+    private final AtomicLong size = new AtomicLong();
+
+    //max size of the cache in bytes
+    private volatile long limit = 1000000;
+
+    private static final class Entry<V> {
+        final String key;
+        final V value;
+        final long sizeInBytes;
+
+        // Set by the readers and cleared by the clock hand. A benign race here only means an entry gets (or loses) its
+        // second chance, which is harmless.
+        volatile boolean referenced;
+
+        Entry(String key, V value, long sizeInBytes) {
+            this.key = key;
+            this.value = value;
+            this.sizeInBytes = sizeInBytes;
+        }
+    }
+
+    public void setLimit(long newLimit) {
+        limit = newLimit;
+        Log.i(TAG, getClass().getSimpleName() + " will use up to " + limit / 1024. / 1024. + "MB");
+
+        checkSize();
+    }
+
+    public V get(String key) {
+        Entry<V> entry = cache.get(key);
+        if (entry == null) {
+            return null;
+        }
+
+        // Avoid writing to the shared cache line when the flag is already set
+        if (!entry.referenced) {
+            entry.referenced = true;
+        }
+        return entry.value;
+    }
+
+    public void put(String key, V value) {
+        if (key == null || value == null) {
+            return;
+        }
+
+        Entry<V> entry = new Entry<>(key, value, getSizeInBytes(value));
+        Entry<V> previous = cache.put(key, entry);
+
+        size.addAndGet(entry.sizeInBytes - (previous != null ? previous.sizeInBytes : 0));
+        clock.offer(entry);
+
+        if (previous != null) {
+            deadEntries.incrementAndGet();
+            onEvicted(previous.key, previous.value);
+        }
+
+        checkSize();
+    }
+
+    /**
+     * Evict entries (least recently referenced first) until the cache holds at most maxSize bytes. The limit itself does not
+     * change, so the cache grows back as new entries are added. Used when the system is low on memory.
+     *
+     * @param maxSize
+     */
+    public void trimToSize(long maxSize) {
+        if (size.get() > maxSize) {
+            evict(maxSize);
+        }
+    }
+
+    private void checkSize() {
+        long currentLimit = limit;
+        if (size.get() > currentLimit) {
+            evict(currentLimit);
+        }
+
+        if (deadEntries.get() > cache.size()) {
+            purgeDeadEntries();
+        }
+    }
+
+    /**
+     * Advance the clock hand until the cache size fits in maxSize. Referenced entries get a second chance (their flag is
+     * cleared and they go back to the tail), the others are removed from the map.
+     *
+     * @param maxSize
+     */
+    private void evict(long maxSize) {
+        evictionLock.lock();
+        try {
+            int evicted = 0;
+
+            // Bound the sweep so that readers hitting the same entries over and over again cannot keep the hand spinning. After
+            // two full turns, entries are evicted regardless of their reference flag.
+            int secondChances = 2 * cache.size();
+
+            while (size.get() > maxSize) {
+                Entry<V> entry = clock.poll();
+                if (entry == null) {
+                    break;
+                }
+
+                if (cache.get(entry.key) != entry) {
+                    deadEntries.decrementAndGet();
+                    continue;
+                }
+
+                if (entry.referenced && secondChances-- > 0) {
+                    entry.referenced = false;
+                    clock.offer(entry);
+                    continue;
+                }
+
+                // The conditional remove fails when the entry has just been replaced by another thread. In that case the
+                // replacing thread already accounted for its size.
+                if (cache.remove(entry.key, entry)) {
+                    size.addAndGet(-entry.sizeInBytes);
+                    evicted++;
+                    onEvicted(entry.key, entry.value);
+                } else {
+                    deadEntries.decrementAndGet();
+                }
+            }
+
+            Log.i(TAG, "Clean cache. Evicted " + evicted + " entries. New size " + size.get() + " length=" + cache.size());
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private void purgeDeadEntries() {
+        if (!evictionLock.tryLock()) {
+            // Someone is already sweeping the clock, which also discards dead entries
+            return;
+        }
+        try {
+            Iterator<Entry<V>> iter = clock.iterator();
+            while (iter.hasNext()) {
+                Entry<V> entry = iter.next();
+                if (cache.get(entry.key) != entry) {
+                    iter.remove();
+                    deadEntries.decrementAndGet();
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    public void clear() {
+        // Remove entry by entry, so that the size stays accurate even when other threads are adding entries at the same time.
+        // Entries left in the clock ring are now dead and will be discarded later.
+        for (Map.Entry<String, Entry<V>> mapEntry : cache.entrySet()) {
+            Entry<V> entry = mapEntry.getValue();
+            if (cache.remove(mapEntry.getKey(), entry)) {
+                size.addAndGet(-entry.sizeInBytes);
+                deadEntries.incrementAndGet();
+                onEvicted(entry.key, entry.value);
+            }
+        }
+
+        purgeDeadEntries();
+    }
+
+    /**
+     * Sum of the sizes (in bytes) of the values in the cache.
+     *
+     * @return
+     */
+    public long size() {
+        return size.get();
+    }
+
+    /**
+     * Called whenever a value leaves the cache (evicted, replaced or cleared). It can be called by any thread.
+     *
+     * @param key
+     * @param value
+     */
+    protected void onEvicted(String key, V value) {
+    }
+
+    abstract long getSizeInBytes(V value);
+}
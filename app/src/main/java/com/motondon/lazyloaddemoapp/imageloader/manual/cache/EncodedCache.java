@@ -0,0 +1,84 @@
+package com.motondon.lazyloaddemoapp.imageloader.manual.cache;
+
+/**
+ * Second tier of the memory cache: the encoded (i.e. compressed JPEG) bytes of the images, keyed by url. They are about an order
+ * of magnitude smaller than the decoded ARGB_8888 bitmaps held by MemoryCache, so the same amount of memory keeps many more
+ * images hot. An image evicted from MemoryCache is decoded again from here in a few milliseconds, without reading the disk
+ * (or the network).
+ *
+ * Entries keep the HTTP metadata they were downloaded with (if any), so that a stale image is still revalidated as if it came
+ * from the FileCache.
+ *
+ * Implementations must be thread safe.
+ *
+ */
+public interface EncodedCache {
+
+    final class Entry {
+        private final byte[] data;
+        private final CacheMetadata metadata;
+
+        public Entry(byte[] data, CacheMetadata metadata) {
+            this.data = data;
+            this.metadata = metadata;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        /**
+         * @return the HTTP metadata of the image, or null if it never goes stale
+         */
+        public CacheMetadata getMetadata() {
+            return metadata;
+        }
+    }
+
+    /**
+     * Returns the encoded image cached for the url, or null if there is none.
+     *
+     * @param url
+     * @return
+     */
+    Entry get(String url);
+
+    /**
+     * Cache the encoded bytes of an image. Images bigger than getMaxEntrySize() are ignored.
+     *
+     * @param url
+     * @param data
+     * @param metadata
+     */
+    void put(String url, byte[] data, CacheMetadata metadata);
+
+    void remove(String url);
+
+    /**
+     * Evict the least recently used images until the cache holds at most maxSize bytes.
+     *
+     * @param maxSize
+     */
+    void trimToSize(long maxSize);
+
+    void clear();
+
+    /**
+     * Sum of the sizes (in bytes) of the encoded images in the cache.
+     *
+     * @return
+     */
+    long size();
+
+    /**
+     * Images bigger than this are not cached. PhotosLoader uses it to decide whether a download is worth keeping in memory.
+     *
+     * @return
+     */
+    long getMaxEntrySize();
+
+    /**
+     * Release the memory of the cache. It must not be used afterwards.
+     */
+    void close();
+}
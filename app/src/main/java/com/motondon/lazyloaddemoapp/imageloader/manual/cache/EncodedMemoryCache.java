@@ -0,0 +1,99 @@
+package com.motondon.lazyloaddemoapp.imageloader.manual.cache;
+
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * EncodedCache that keeps the images on the Java heap. Used when the off-heap one (see AshmemEncodedCache) cannot be created.
+ *
+ */
+public class EncodedMemoryCache implements EncodedCache {
+
+    private static final String TAG = "EncodedMemoryCache";
+
+    // An image bigger than this would evict too many others, so it is not cached here
+    private static final int MAX_ENTRY_SIZE_DIVISOR = 8;
+
+    // Last argument true for LRU ordering. Guarded by "this".
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(0, 0.75f, true);
+    private long size = 0;
+
+    private final long maxSize;
+
+    public EncodedMemoryCache(long maxSize) {
+        this.maxSize = maxSize;
+        Log.i(TAG, "EncodedMemoryCache will use up to " + maxSize / 1024. / 1024. + "MB");
+    }
+
+    @Override
+    public synchronized Entry get(String url) {
+        return entries.get(url);
+    }
+
+    /**
+     * The array is kept as it is, so the caller must not change it afterwards.
+     */
+    @Override
+    public synchronized void put(String url, byte[] data, CacheMetadata metadata) {
+        if (url == null || data == null) {
+            return;
+        }
+
+        if (data.length > getMaxEntrySize()) {
+            // Do not keep an older version of the image either
+            remove(url);
+            return;
+        }
+
+        Entry previous = entries.put(url, new Entry(data, metadata));
+        if (previous != null) {
+            size -= previous.getData().length;
+        }
+        size += data.length;
+
+        trimToSize(maxSize);
+    }
+
+    @Override
+    public synchronized void remove(String url) {
+        Entry previous = entries.remove(url);
+        if (previous != null) {
+            size -= previous.getData().length;
+        }
+    }
+
+    @Override
+    public synchronized void trimToSize(long maxSize) {
+        Iterator<Map.Entry<String, Entry>> iter = entries.entrySet().iterator();
+
+        //least recently accessed item will be the first one iterated
+        while (size > maxSize && iter.hasNext()) {
+            size -= iter.next().getValue().getData().length;
+            iter.remove();
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    @Override
+    public void close() {
+        clear();
+    }
+
+    @Override
+    public synchronized long size() {
+        return size;
+    }
+
+    @Override
+    public long getMaxEntrySize() {
+        return maxSize / MAX_ENTRY_SIZE_DIVISOR;
+    }
+}
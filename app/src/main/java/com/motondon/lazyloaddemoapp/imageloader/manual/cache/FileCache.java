@@ -1,26 +1,93 @@
 package com.motondon.lazyloaddemoapp.imageloader.manual.cache;
 
 import android.content.Context;
+import android.util.Log;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
 
 /**
- * Code downloaded from https://github.com/thest1/LazyList
+ * Originally downloaded from https://github.com/thest1/LazyList
+ *
+ * The original implementation named the files after String.hashCode() of the URL (so two URLs with colliding hashes would
+ * share the same file), had no size bound and only clear() could remove files.
+ *
+ * This is now a DiskLruCache like store:
+ *   - files are named after the SHA-256 of the URL
+ *   - every change is appended to a journal file, so that the LRU order and the entry sizes survive app restarts
+ *   - the cache is bounded in bytes and the least recently used entries are evicted when the limit is exceeded
+ *   - an entry is first written to a temporary file and then atomically renamed, so a reader never sees a partial file
+ *   - the HTTP metadata of an entry (see CacheMetadata) is kept in a "<key>.meta" file next to it, so that a stale entry can
+ *     be revalidated instead of downloaded again
  *
  */
 public class FileCache {
 
-    private File cacheDir;
+    private static final String TAG = "FileCache";
+
+    static final String JOURNAL_FILE = "journal";
+    static final String JOURNAL_FILE_TMP = "journal.tmp";
+    static final String MAGIC = "com.motondon.lazyloaddemoapp.FileCache";
+    static final String VERSION = "1";
+
+    private static final String CLEAN = "CLEAN";
+    private static final String REMOVE = "REMOVE";
+    private static final String READ = "READ";
+
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+    private static final String METADATA_FILE_SUFFIX = ".meta";
+
+    private static final String METADATA_ETAG = "etag";
+    private static final String METADATA_LAST_MODIFIED = "lastModified";
+    private static final String METADATA_EXPIRES_AT = "expiresAt";
+
+    // Same disk cache size used in the UIL configuration
+    private static final long DEFAULT_MAX_SIZE = 50 * 1024 * 1024;
+
+    // The journal is compacted when it holds this many redundant operations (and at least as many as live entries)
+    private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+
+    private final File cacheDir;
+    private final File journalFile;
+    private final long maxSize;
+
+    // Last argument true for LRU ordering. Maps a key to the length of its file. Guarded by "this".
+    private final LinkedHashMap<String, Long> lruEntries = new LinkedHashMap<>(0, 0.75f, true);
+    private long size = 0;
+
+    private Writer journalWriter;
+    private int redundantOpCount;
+
+    // Set by close(). Guarded by "this".
+    private boolean closed = false;
 
     public FileCache(Context context){
+        this(getDefaultCacheDir(context), DEFAULT_MAX_SIZE);
+    }
 
-        //Find the dir at SDCARD to save cached images
-        if (android.os.Environment.getExternalStorageState().equals(android.os.Environment.MEDIA_MOUNTED)) {
-            cacheDir = new File(android.os.Environment.getExternalStorageDirectory(), "LazyList");
-        } else {
-            // if checking on simulator the create cache dir in your application context
-            cacheDir = context.getCacheDir();
-        }
+    public FileCache(File cacheDir, long maxSize) {
+        this.cacheDir = cacheDir;
+        this.journalFile = new File(cacheDir, JOURNAL_FILE);
+        this.maxSize = maxSize;
 
         if (!cacheDir.exists()) {
             // create cache dir in your application context
@@ -28,24 +95,528 @@ public class FileCache {
             // first granted access to write on the external drive. Otherwise this is not going to work
             cacheDir.mkdirs();
         }
+
+        open();
+    }
+
+    private static File getDefaultCacheDir(Context context) {
+        //Find the dir at SDCARD to save cached images
+        if (android.os.Environment.getExternalStorageState().equals(android.os.Environment.MEDIA_MOUNTED)) {
+            return new File(android.os.Environment.getExternalStorageDirectory(), "LazyList");
+        } else {
+            // if checking on simulator the create cache dir in your application context
+            return context.getCacheDir();
+        }
     }
 
-    public File getFile(String url){
-        //Identify images by hashcode or encode by URLEncoder.encode.
-        String filename=String.valueOf(url.hashCode());
+    /**
+     * Returns the cached file for the given url, or null if there is no such entry.
+     *
+     * @param url
+     * @return
+     */
+    public synchronized File getFile(String url){
+        String key = keyFor(url);
+
+        if (!lruEntries.containsKey(key)) {
+            return null;
+        }
+
+        File f = new File(cacheDir, key);
+        if (!f.exists()) {
+            // Someone removed the file behind our back
+            removeEntry(key);
+            return null;
+        }
 
-        File f = new File(cacheDir, filename);
+        // lruEntries.get() moved the entry to the most recently used position. Record that in the journal too.
+        lruEntries.get(key);
+        journalAppend(READ + ' ' + key, false);
         return f;
     }
 
+    /**
+     * Creates a temporary file to be filled by the caller. When it is completely written, it must be either passed to commit()
+     * or to abort().
+     *
+     * @param url
+     * @return
+     * @throws IOException
+     */
+    public File newTempFile(String url) throws IOException {
+        // Every writer gets its own temp file, so that two concurrent downloads for the same url do not corrupt each other
+        return File.createTempFile(keyFor(url) + ".", TEMP_FILE_SUFFIX, cacheDir);
+    }
+
+    /**
+     * Atomically publish a temporary file created by newTempFile() as the cached file for the given url.
+     *
+     * @param url
+     * @param tempFile
+     * @return
+     */
+    public boolean commit(String url, File tempFile) {
+        return commit(url, tempFile, null);
+    }
+
+    /**
+     * Same as commit(url, tempFile), but also stores the HTTP metadata of the download. Entries without metadata never go stale.
+     *
+     * @param url
+     * @param tempFile
+     * @param metadata
+     * @return
+     */
+    public synchronized boolean commit(String url, File tempFile, CacheMetadata metadata) {
+        String key = keyFor(url);
+        File f = new File(cacheDir, key);
+
+        // A download that finished after close() could not be recorded in the journal, so the next open() would delete it anyway
+        if (closed) {
+            tempFile.delete();
+            return false;
+        }
+
+        if (!tempFile.renameTo(f)) {
+            Log.w(TAG, "commit() - Could not rename " + tempFile + " to " + f);
+            tempFile.delete();
+            return false;
+        }
+
+        // Metadata of a previous version of this entry must not be applied to the new one
+        if (metadata != null) {
+            writeMetadata(key, metadata);
+        } else {
+            getMetadataFile(key).delete();
+        }
+
+        long length = f.length();
+        Long previous = lruEntries.put(key, length);
+        if (previous != null) {
+            size -= previous;
+            redundantOpCount++;
+        }
+        size += length;
+
+        journalAppend(CLEAN + ' ' + key + ' ' + length, true);
+        trimToSize();
+        return true;
+    }
+
+    /**
+     * Returns the HTTP metadata stored for the url, or null if there is none (e.g.: an entry created before metadata was stored).
+     *
+     * @param url
+     * @return
+     */
+    public synchronized CacheMetadata getMetadata(String url) {
+        String key = keyFor(url);
+        if (!lruEntries.containsKey(key)) {
+            return null;
+        }
+
+        File metadataFile = getMetadataFile(key);
+        try {
+            InputStream is = new FileInputStream(metadataFile);
+            try {
+                Properties properties = new Properties();
+                properties.load(is);
+
+                return new CacheMetadata(
+                        properties.getProperty(METADATA_ETAG),
+                        properties.getProperty(METADATA_LAST_MODIFIED),
+                        Long.parseLong(properties.getProperty(METADATA_EXPIRES_AT)));
+            } finally {
+                is.close();
+            }
+
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException | NumberFormatException e) {
+            Log.w(TAG, "getMetadata() - Metadata file " + metadataFile + " is corrupt. Message: " + e.getMessage());
+            metadataFile.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Replace the HTTP metadata of an existing entry (e.g.: after the server answered 304 Not Modified with a new expiration).
+     *
+     * @param url
+     * @param metadata
+     */
+    public synchronized void updateMetadata(String url, CacheMetadata metadata) {
+        String key = keyFor(url);
+        if (lruEntries.containsKey(key)) {
+            writeMetadata(key, metadata);
+        }
+    }
+
+    private File getMetadataFile(String key) {
+        return new File(cacheDir, key + METADATA_FILE_SUFFIX);
+    }
+
+    /**
+     * Write the metadata to a temporary file and rename it, so that a reader never sees a partial metadata file.
+     *
+     * @param key
+     * @param metadata
+     */
+    private void writeMetadata(String key, CacheMetadata metadata) {
+        File metadataFile = getMetadataFile(key);
+
+        Properties properties = new Properties();
+        if (metadata.getEtag() != null) {
+            properties.setProperty(METADATA_ETAG, metadata.getEtag());
+        }
+        if (metadata.getLastModified() != null) {
+            properties.setProperty(METADATA_LAST_MODIFIED, metadata.getLastModified());
+        }
+        properties.setProperty(METADATA_EXPIRES_AT, String.valueOf(metadata.getExpiresAt()));
+
+        try {
+            File tempFile = File.createTempFile(key + ".", TEMP_FILE_SUFFIX, cacheDir);
+            OutputStream os = new FileOutputStream(tempFile);
+            try {
+                properties.store(os, null);
+            } finally {
+                os.close();
+            }
+
+            if (!tempFile.renameTo(metadataFile)) {
+                tempFile.delete();
+                throw new IOException("Could not rename " + tempFile + " to " + metadataFile);
+            }
+
+        } catch (IOException e) {
+            // Without metadata the entry is still served, it just never goes stale
+            Log.e(TAG, "writeMetadata() - Error while writing the metadata: " + e.getMessage());
+            metadataFile.delete();
+        }
+    }
+
+    public void abort(File tempFile) {
+        if (tempFile != null) {
+            tempFile.delete();
+        }
+    }
+
+    public synchronized void remove(String url) {
+        removeEntry(keyFor(url));
+    }
+
+    public synchronized long size() {
+        return size;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
     /**
      * Delete all files in the cache directory
      */
-    public void clear(){
+    public synchronized void clear(){
+        closeJournal();
+
     	File[] files=cacheDir.listFiles();
-        if(files==null)
+        if(files!=null) {
+            for (File f : files)
+                f.delete();
+        }
+
+        lruEntries.clear();
+        size = 0;
+        rebuildJournal();
+    }
+
+    /**
+     * Close the journal. Another FileCache can then be opened on the same directory (e.g.: by the next engine instance) without
+     * this one appending to a journal that the new one replaced. Entries can still be read, but nothing is committed anymore.
+     */
+    public synchronized void close() {
+        if (closed) {
             return;
-        for(File f:files)
-            f.delete();
+        }
+
+        flushJournal();
+        closeJournal();
+        closed = true;
+    }
+
+    private void removeEntry(String key) {
+        Long length = lruEntries.remove(key);
+        if (length == null) {
+            return;
+        }
+
+        new File(cacheDir, key).delete();
+        getMetadataFile(key).delete();
+        size -= length;
+        journalAppend(REMOVE + ' ' + key, true);
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Long>> iter = lruEntries.entrySet().iterator();
+
+        //least recently accessed item will be the first one iterated
+        while (size > maxSize && iter.hasNext()) {
+            Map.Entry<String, Long> entry = iter.next();
+            String key = entry.getKey();
+
+            new File(cacheDir, key).delete();
+            getMetadataFile(key).delete();
+            size -= entry.getValue();
+            iter.remove();
+            journalAppend(REMOVE + ' ' + key, false);
+        }
+
+        flushJournal();
+    }
+
+    /**
+     * Read the journal (if any) in order to restore the entries and their LRU order. Any file that is not referenced by the
+     * journal (e.g.: a temp file of an interrupted download or a file created by the old hash code based naming) is deleted,
+     * except for the metadata files of the entries.
+     */
+    private void open() {
+        if (journalFile.exists()) {
+            try {
+                readJournal();
+            } catch (IOException e) {
+                Log.w(TAG, "open() - Journal is corrupt. Cache will be cleared. Message: " + e.getMessage());
+                lruEntries.clear();
+                size = 0;
+            }
+        }
+
+        File[] files = cacheDir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                String name = f.getName();
+                if (name.endsWith(METADATA_FILE_SUFFIX)) {
+                    name = name.substring(0, name.length() - METADATA_FILE_SUFFIX.length());
+                }
+                if (!name.equals(JOURNAL_FILE) && !lruEntries.containsKey(name)) {
+                    f.delete();
+                }
+            }
+        }
+
+        // Drop the entries whose files have disappeared
+        for (String key : new ArrayList<>(lruEntries.keySet())) {
+            if (!new File(cacheDir, key).exists()) {
+                getMetadataFile(key).delete();
+                size -= lruEntries.remove(key);
+            }
+        }
+
+        rebuildJournal();
+        trimToSize();
+
+        Log.i(TAG, "FileCache opened with " + lruEntries.size() + " entries (" + size / 1024. / 1024. + "MB). It will use up to " + maxSize / 1024. / 1024. + "MB");
+    }
+
+    /**
+     * Replay the journal. The appends are buffered, so if the process was killed while the buffer was being written, the last
+     * line might be cut. That line is dropped (the journal is rebuilt right after, see open()), like DiskLruCache does: only
+     * the last operation is lost. A bad header or a bad line anywhere else means the journal cannot be trusted.
+     *
+     * @throws IOException if the journal is corrupt
+     */
+    private void readJournal() throws IOException {
+        boolean lastLineComplete = endsWithNewLine(journalFile);
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), "US-ASCII"));
+        try {
+            String magic = reader.readLine();
+            String version = reader.readLine();
+            if (!MAGIC.equals(magic) || !VERSION.equals(version)) {
+                throw new IOException("Unexpected journal header: [" + magic + ", " + version + "]");
+            }
+
+            String line = reader.readLine();
+            while (line != null) {
+                String next = reader.readLine();
+                boolean last = next == null;
+
+                if (last && !lastLineComplete) {
+                    Log.w(TAG, "readJournal() - Dropping truncated journal line: " + line);
+                    break;
+                }
+
+                try {
+                    readJournalLine(line);
+                } catch (IOException e) {
+                    if (!last) {
+                        throw e;
+                    }
+                    Log.w(TAG, "readJournal() - Dropping last journal line. Message: " + e.getMessage());
+                }
+
+                line = next;
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void readJournalLine(String line) throws IOException {
+        String[] parts = line.split(" ");
+        if (parts.length < 2) {
+            throw new IOException("Unexpected journal line: " + line);
+        }
+
+        String key = parts[1];
+        if (CLEAN.equals(parts[0]) && parts.length == 3) {
+            long length;
+            try {
+                length = Long.parseLong(parts[2]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Unexpected journal entry size: " + line);
+            }
+
+            Long previous = lruEntries.put(key, length);
+            if (previous != null) {
+                size -= previous;
+            }
+            size += length;
+        } else if (REMOVE.equals(parts[0]) && parts.length == 2) {
+            Long previous = lruEntries.remove(key);
+            if (previous != null) {
+                size -= previous;
+            }
+        } else if (READ.equals(parts[0]) && parts.length == 2) {
+            lruEntries.get(key);
+        } else {
+            throw new IOException("Unexpected journal line: " + line);
+        }
+    }
+
+    /**
+     * Whether the last byte of the file is a line feed, i.e. its last line was completely written.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    private static boolean endsWithNewLine(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long length = raf.length();
+            if (length == 0) {
+                return true;
+            }
+            raf.seek(length - 1);
+            return raf.read() == '\n';
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Write a new journal containing only the live entries (in LRU order) and atomically replace the current one.
+     */
+    private void rebuildJournal() {
+        closeJournal();
+        if (closed) {
+            return;
+        }
+
+        File journalFileTmp = new File(cacheDir, JOURNAL_FILE_TMP);
+        try {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFileTmp), "US-ASCII"));
+            try {
+                writer.write(MAGIC + '\n');
+                writer.write(VERSION + '\n');
+                for (Map.Entry<String, Long> entry : lruEntries.entrySet()) {
+                    writer.write(CLEAN + ' ' + entry.getKey() + ' ' + entry.getValue() + '\n');
+                }
+            } finally {
+                writer.close();
+            }
+
+            if (!journalFileTmp.renameTo(journalFile)) {
+                throw new IOException("Could not rename " + journalFileTmp + " to " + journalFile);
+            }
+
+            journalWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFile, true), "US-ASCII"));
+            redundantOpCount = 0;
+
+        } catch (IOException e) {
+            // Without a journal the cache still works for this session, but the LRU order will be lost on the next start.
+            Log.e(TAG, "rebuildJournal() - Error while writing the journal: " + e.getMessage());
+            journalWriter = null;
+        }
+    }
+
+    private void journalAppend(String line, boolean flush) {
+        redundantOpCount++;
+
+        if (journalWriter == null) {
+            return;
+        }
+
+        try {
+            journalWriter.write(line + '\n');
+            if (flush) {
+                journalWriter.flush();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "journalAppend() - Error while writing the journal: " + e.getMessage());
+        }
+
+        if (redundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD && redundantOpCount >= lruEntries.size()) {
+            rebuildJournal();
+        }
+    }
+
+    private void flushJournal() {
+        if (journalWriter == null) {
+            return;
+        }
+
+        try {
+            journalWriter.flush();
+        } catch (IOException e) {
+            Log.e(TAG, "flushJournal() - Error while flushing the journal: " + e.getMessage());
+        }
+    }
+
+    private void closeJournal() {
+        if (journalWriter == null) {
+            return;
+        }
+
+        try {
+            journalWriter.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        journalWriter = null;
+    }
+
+    /**
+     * Identify images by the SHA-256 of their url (hex encoded), so that the file name is safe and collisions are not a concern.
+     *
+     * @param url
+     * @return
+     */
+    static String keyFor(String url) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(url.getBytes("UTF-8"));
+
+            StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            // Both SHA-256 and UTF-8 are always available on Android
+            throw new AssertionError(e);
+        }
     }
-}
\ No newline at end of file
+}
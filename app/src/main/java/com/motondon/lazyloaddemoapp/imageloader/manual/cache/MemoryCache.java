@@ -1,31 +1,28 @@
 package com.motondon.lazyloaddemoapp.imageloader.manual.cache;
 
 import android.graphics.Bitmap;
-import android.util.Log;
-
-import java.util.Collections;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.Map.Entry;
 
 /**
- * Code downloaded from https://github.com/thest1/LazyList
+ * Originally downloaded from https://github.com/thest1/LazyList
+ *
+ * The original implementation wrapped an access ordered LinkedHashMap in a synchronized map. Since in an access ordered map
+ * every get() is a structural change, all the PhotosLoader workers and the UI thread were serialized on the same monitor.
+ *
+ * Now the entries live in a ClockCache, whose reads take no lock and whose eviction is given by a CLOCK (second chance)
+ * algorithm. This class only adds what is specific to the bitmaps: their size and the eviction notifications.
  *
  */
-public class MemoryCache {
-
-    private static final String TAG = "MemoryCache";
-
-    //Last argument true for LRU ordering
-    private Map<String, Bitmap> cache = Collections.synchronizedMap(
-            new LinkedHashMap<String, Bitmap>(10,1.5f,true));
-
-    //current allocated size
-    private long size=0;
+public class MemoryCache extends ClockCache<Bitmap> {
+
+    /**
+     * Notified whenever a bitmap leaves the cache (evicted, replaced or cleared), so that it can be reused once nobody else is
+     * showing it. See BitmapPool.
+     */
+    public interface OnEvictedListener {
+        void onEvicted(String id, Bitmap bitmap);
+    }
 
-    //max memory cache folder used to download images in bytes
-    private long limit=1000000;
+    private volatile OnEvictedListener onEvictedListener;
 
     public MemoryCache(){
 
@@ -33,68 +30,35 @@ public class MemoryCache {
         setLimit(Runtime.getRuntime().maxMemory()/4);
     }
 
-    public void setLimit(long new_limit){
-
-        limit=new_limit;
-        Log.i(TAG, "MemoryCache will use up to "+limit/1024./1024.+"MB");
+    public void setOnEvictedListener(OnEvictedListener listener) {
+        this.onEvictedListener = listener;
     }
 
     public Bitmap getImageFromCache(String id){
-        try{
-            if(!cache.containsKey(id))
-                return null;
-
-            return cache.get(id);
-
-        }catch(NullPointerException ex){
-            ex.printStackTrace();
-            return null;
-        }
+        return get(id);
     }
 
+    /**
+     * @param id
+     * @param bitmap there is nothing to be cached for a failed download, so null is ignored
+     */
     public void addImageToCache(String id, Bitmap bitmap){
-        try{
-            if(cache.containsKey(id))
-                size-=getSizeInBytes(cache.get(id));
-            cache.put(id, bitmap);
-            size+=getSizeInBytes(bitmap);
-            checkSize();
-        }catch(Throwable th){
-            th.printStackTrace();
-        }
-    }
-
-    private void checkSize() {
-        Log.i(TAG, "cache size="+size+" length="+cache.size());
-        if(size>limit){
-
-            //least recently accessed item will be the first one iterated
-            Iterator<Entry<String, Bitmap>> iter=cache.entrySet().iterator();
-
-            while(iter.hasNext()){
-                Entry<String, Bitmap> entry=iter.next();
-                size-=getSizeInBytes(entry.getValue());
-                iter.remove();
-                if(size<=limit)
-                    break;
-            }
-            Log.i(TAG, "Clean cache. New size "+cache.size());
-        }
+        put(id, bitmap);
     }
 
-    public void clear() {
-        try{
-            // Clear cache
-            cache.clear();
-            size=0;
-        }catch(NullPointerException ex){
-            ex.printStackTrace();
+    @Override
+    protected void onEvicted(String id, Bitmap bitmap) {
+        OnEvictedListener listener = onEvictedListener;
+        if (listener != null) {
+            listener.onEvicted(id, bitmap);
         }
     }
 
+    @Override
     long getSizeInBytes(Bitmap bitmap) {
         if(bitmap==null)
             return 0;
-        return bitmap.getRowBytes() * bitmap.getHeight();
+        // A bitmap that reuses the memory of a bigger one (see BitmapPool) holds its whole allocation, not just its pixels
+        return bitmap.getAllocationByteCount();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,43 @@
+package com.motondon.lazyloaddemoapp.imageloader.manual.manager;
+
+import android.widget.ImageView;
+
+import com.motondon.lazyloaddemoapp.model.ImageModel;
+
+/**
+ * A request of the manual engine for a view: the ImageModel it was made with, plus the binding of the view and its generation
+ * at that time (see ViewBinding). Prefetch requests have no view, so they are plain ImageModels.
+ *
+ * Kept in the manual engine, so that the model shared by every engine does not depend on it.
+ *
+ */
+final class BoundImageModel extends ImageModel {
+
+    private final ViewBinding binding;
+    private final int generation;
+
+    /**
+     * @param source
+     * @param binding
+     * @param generation
+     */
+    BoundImageModel(ImageModel source, ViewBinding binding, int generation) {
+        this(source.getUrl(), source.getThumbnailUrl(), source.getImageView(), binding, generation);
+        setTargetSize(source.getTargetWidth(), source.getTargetHeight());
+        setRequestKey(source.getRequestKey());
+    }
+
+    BoundImageModel(String url, String thumbnailUrl, ImageView imageView, ViewBinding binding, int generation) {
+        super(url, thumbnailUrl, imageView);
+        this.binding = binding;
+        this.generation = generation;
+    }
+
+    ViewBinding getBinding() {
+        return binding;
+    }
+
+    int getGeneration() {
+        return generation;
+    }
+}
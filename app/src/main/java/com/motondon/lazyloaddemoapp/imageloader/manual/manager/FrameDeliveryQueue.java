@@ -0,0 +1,121 @@
+package com.motondon.lazyloaddemoapp.imageloader.manual.manager;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.Choreographer;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Delivers the decoded images to their views once per frame, instead of posting one message per image to the UI thread.
+ *
+ * When a fling stops, dozens of loaders finish at about the same time. With one message each, the UI thread runs them one after
+ * the other between (or instead of) frames, and each view update can end up in a different frame. Here the deliveries are
+ * queued by the workers and run by a Choreographer frame callback, which runs right before the frame is laid out and drawn, so
+ * all the images that are ready go to the screen in the same frame.
+ *
+ * A frame only runs deliveries for up to frameBudgetNanos (at least one, so the queue always makes progress). Whatever is left
+ * is delivered in the next frame, so a big burst is spread over a few frames instead of dropping them.
+ *
+ */
+public class FrameDeliveryQueue {
+
+    private static final String TAG = FrameDeliveryQueue.class.getSimpleName();
+
+    // A quarter of a 60fps frame, leaving the rest for the layout and the drawing of the updated views
+    public static final long DEFAULT_FRAME_BUDGET_NANOS = TimeUnit.MILLISECONDS.toNanos(4);
+
+    private final long frameBudgetNanos;
+
+    // Offered by any thread, polled in the UI thread
+    private final ConcurrentLinkedQueue<Runnable> deliveries = new ConcurrentLinkedQueue<>();
+
+    // Whether a frame callback is already scheduled (or about to be). Prevents a callback per delivery.
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // Only accessed in the UI thread, since a Choreographer belongs to the thread that got it
+    private Choreographer choreographer;
+
+    private final Runnable scheduleFrame = new Runnable() {
+        @Override
+        public void run() {
+            if (choreographer == null) {
+                choreographer = Choreographer.getInstance();
+            }
+            choreographer.postFrameCallback(frameCallback);
+        }
+    };
+
+    private final Choreographer.FrameCallback frameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            deliver();
+        }
+    };
+
+    public FrameDeliveryQueue() {
+        this(DEFAULT_FRAME_BUDGET_NANOS);
+    }
+
+    public FrameDeliveryQueue(long frameBudgetNanos) {
+        this.frameBudgetNanos = frameBudgetNanos;
+    }
+
+    /**
+     * Queue a delivery to be run in the UI thread, at the beginning of the next frame. Can be called from any thread.
+     *
+     * @param delivery
+     */
+    public void post(Runnable delivery) {
+        deliveries.offer(delivery);
+
+        if (scheduled.compareAndSet(false, true)) {
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                scheduleFrame.run();
+            } else {
+                mainHandler.post(scheduleFrame);
+            }
+        }
+    }
+
+    private void deliver() {
+        long deadline = System.nanoTime() + frameBudgetNanos;
+        int delivered = 0;
+
+        Runnable delivery;
+        while ((delivery = deliveries.poll()) != null) {
+            try {
+                delivery.run();
+            } catch (RuntimeException e) {
+                // Do not lose the rest of the batch because of a single delivery
+                Log.e(TAG, "deliver() - Error while delivering an image. Message: " + e.getMessage(), e);
+            }
+            delivered++;
+
+            if (System.nanoTime() >= deadline) {
+                break;
+            }
+        }
+
+        if (delivered > 1) {
+            Log.d(TAG, "deliver() - Delivered " + delivered + " images in this frame");
+        }
+
+        if (!deliveries.isEmpty()) {
+            choreographer.postFrameCallback(frameCallback);
+            return;
+        }
+
+        // A worker might have offered a delivery after the poll above, but before the flag is cleared. It saw the flag set, so
+        // it did not schedule a frame. Check again after clearing it.
+        scheduled.set(false);
+        if (!deliveries.isEmpty() && scheduled.compareAndSet(false, true)) {
+            choreographer.postFrameCallback(frameCallback);
+        }
+    }
+}
@@ -1,24 +1,44 @@
 package com.motondon.lazyloaddemoapp.imageloader.manual.manager;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.graphics.Bitmap;
-import android.os.Handler;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.net.ConnectivityManager;
 import android.util.Log;
+import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
 import android.widget.ImageView;
 
 import com.motondon.lazyloaddemoapp.R;
+import com.motondon.lazyloaddemoapp.imageloader.ImageLoadMetrics;
 import com.motondon.lazyloaddemoapp.imageloader.ImageLoaderManager;
+import com.motondon.lazyloaddemoapp.imageloader.NetworkConcurrency;
+import com.motondon.lazyloaddemoapp.imageloader.manual.cache.BitmapPool;
+import com.motondon.lazyloaddemoapp.imageloader.manual.cache.CacheMetadata;
+import com.motondon.lazyloaddemoapp.imageloader.manual.cache.AshmemEncodedCache;
+import com.motondon.lazyloaddemoapp.imageloader.manual.cache.EncodedCache;
+import com.motondon.lazyloaddemoapp.imageloader.manual.cache.EncodedMemoryCache;
 import com.motondon.lazyloaddemoapp.imageloader.manual.cache.FileCache;
 import com.motondon.lazyloaddemoapp.imageloader.manual.cache.MemoryCache;
+import com.motondon.lazyloaddemoapp.imageloader.manual.network.HttpUrlConnectionFetcher;
+import com.motondon.lazyloaddemoapp.imageloader.manual.network.NetworkFetcher;
+import com.motondon.lazyloaddemoapp.imageloader.manual.network.OkHttpFetcher;
+import com.motondon.lazyloaddemoapp.imageloader.manual.task.AdaptiveConcurrencyLimiter;
+import com.motondon.lazyloaddemoapp.imageloader.manual.task.DownloadScheduler;
 import com.motondon.lazyloaddemoapp.imageloader.manual.task.PhotosLoader;
 import com.motondon.lazyloaddemoapp.model.ImageModel;
 
 import java.io.File;
-import java.util.Collections;
-import java.util.Map;
-import java.util.WeakHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
 
 /**
  * Code downloaded from: http://androidexample.com/Download_Images_From_Web_And_Lazy_Load_In_ListView_-_Android_Example/index.php?view=article_discription&aid=112&aaid=134
@@ -30,31 +50,151 @@ public class ManualImageLoaderManager extends ImageLoaderManager {
 
     private static final String TAG = ManualImageLoaderManager.class.getSimpleName();
 
+    // 16MB of shared memory for the encoded images. A slab is also the biggest image that is kept there.
+    private static final int ASHMEM_SLAB_COUNT = 64;
+    private static final int ASHMEM_SLAB_SIZE = 256 * 1024;
+
+    // Downloaded images that can wait for the decode stage, per decode thread
+    private static final int DECODE_QUEUE_SLOTS_PER_THREAD = 2;
+
     // Initialize MemoryCache
     private MemoryCache mMemoryCacheObject;
 
+    // Second memory tier, holding the encoded images. An image evicted from mMemoryCacheObject is decoded again from here.
+    private EncodedCache encodedMemoryCache;
+
     // Use to store images on the disk
     private FileCache fileCache;
 
-    // Hold a reference to every image being downloaded. This way we will be able to cancel a download when needed.
-    private Map<ImageView, String> imageViews = Collections.synchronizedMap(new WeakHashMap<ImageView, String>());
+    // Bitmaps nobody is using anymore. Their memory is reused by the next decodes.
+    private BitmapPool bitmapPool;
+
+    // Downloads in progress, keyed by request key (see getRequestKey()). A new request for an url that is already being downloaded is attached to the running
+    // PhotosLoader, so that the image is downloaded and decoded only once no matter how many views are waiting for it.
+    private final ConcurrentHashMap<String, PhotosLoader> inFlightLoaders = new ConcurrentHashMap<>();
+
+    // The two stages of a load (see PhotosLoader.run()). The download scheduler only waits for the network and has a thread per
+    // download slot. The decode scheduler looks the images up in the caches and decodes them, with a thread per core.
+    private DownloadScheduler downloadScheduler;
+    private DownloadScheduler decodeScheduler;
+
+    // How many downloads run at the same time. Starts from what the network type allows and follows the measured throughput.
+    private final AdaptiveConcurrencyLimiter downloadLimiter;
+
+    private final int decodeThreads = NetworkConcurrency.getDecodeThreads();
+
+    // Downloaded images waiting for (or being) decoded. A download worker that finds them all taken waits before handing its
+    // image over (backpressure), so that the downloads never run far ahead of the decoders and pile up in memory or in
+    // temporary files. New requests (which hold nothing yet) are queued in the decode stage without a slot, since the UI thread
+    // must never wait.
+    private final Semaphore decodeSlots = new Semaphore(DECODE_QUEUE_SLOTS_PER_THREAD * decodeThreads);
+
+    // Starts over with the limits of the new network whenever the device switches to another one
+    private final BroadcastReceiver connectivityReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            NetworkConcurrency.NetworkType type = NetworkConcurrency.getNetworkType(context);
+            Log.d(TAG, "onReceive() - Network changed to: " + type);
+            downloadLimiter.reset(type.getInitialDownloads(), type.getMaxDownloads());
+        }
+    };
+
+    // Request keys of the last prefetch() call. Only accessed from the UI thread.
+    private Set<String> prefetchedKeys = new HashSet<>();
 
-    private ExecutorService executorService;
+    // Used by PhotosLoader to download the images
+    private volatile NetworkFetcher networkFetcher;
 
     // Define a placeholder image
     final int stub_id = R.drawable.ic_placeholder;
 
-    // Handler to display images in UI thread
-    private Handler handler = new Handler();
+    // Displays the images in the UI thread, all the ones that are ready in the same frame
+    private final FrameDeliveryQueue deliveryQueue = new FrameDeliveryQueue();
+
+    // Size of the last view that could be measured. Since all the cells in our grid have the same size, it is used for views
+    // that were not laid out yet.
+    private int lastTargetWidth;
+    private int lastTargetHeight;
 
     public ManualImageLoaderManager(Context context, boolean useDiskCache, boolean useMemoryCache) {
+        this(context, useDiskCache, useMemoryCache, new FileCache(context));
+    }
+
+    /**
+     * @param context
+     * @param useDiskCache
+     * @param useMemoryCache
+     * @param fileCache disk cache to use. Two FileCache instances must never be open on the same directory, so an instance that
+     *                  runs next to the one of the app (e.g.: the benchmark) must have its own directory.
+     */
+    public ManualImageLoaderManager(Context context, boolean useDiskCache, boolean useMemoryCache, FileCache fileCache) {
         super(context, useDiskCache, useMemoryCache);
 
         mMemoryCacheObject = new MemoryCache();
-        fileCache = new FileCache(context);
+        encodedMemoryCache = createEncodedCache();
+        this.fileCache = fileCache;
+
+        // use 1/16 of the available heap size for bitmaps waiting to be reused
+        bitmapPool = new BitmapPool(Runtime.getRuntime().maxMemory() / 16);
 
-        // Creates a thread pool that reuses a fixed number of threads operating off a shared unbounded queue.
-        executorService = Executors.newFixedThreadPool(5);
+        // The memory cache holds a reference to every bitmap in it. Release it when the bitmap is evicted.
+        mMemoryCacheObject.setOnEvictedListener(new MemoryCache.OnEvictedListener() {
+            @Override
+            public void onEvicted(String id, Bitmap bitmap) {
+                bitmapPool.release(bitmap);
+            }
+        });
+
+        // Both schedulers run the most recent (i.e. visible) requests first. The download pool follows the download limit as it
+        // changes.
+        NetworkConcurrency.NetworkType networkType = NetworkConcurrency.getNetworkType(context);
+        downloadLimiter = new AdaptiveConcurrencyLimiter(networkType.getInitialDownloads(), networkType.getMaxDownloads());
+        downloadScheduler = new DownloadScheduler(downloadLimiter.getLimit());
+        decodeScheduler = new DownloadScheduler(decodeThreads);
+        downloadLimiter.setOnLimitChangedListener(new AdaptiveConcurrencyLimiter.OnLimitChangedListener() {
+            @Override
+            public void onLimitChanged(int limit) {
+                // Notifications might arrive out of order, so use the current limit
+                downloadScheduler.setThreadCount(downloadLimiter.getLimit());
+            }
+        });
+        Log.d(TAG, "ctor() - Network: " + networkType + ". Starting with " + downloadLimiter.getLimit() + " downloads");
+
+        mContext.getApplicationContext().registerReceiver(connectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+
+        networkFetcher = createNetworkFetcher();
+    }
+
+    /**
+     * OkHttp keeps connections alive (and uses HTTP/2 when possible), so most images do not pay for a TCP connection and a TLS
+     * handshake. If it cannot be loaded for some reason, fall back to HttpURLConnection.
+     *
+     * @return
+     */
+    private NetworkFetcher createNetworkFetcher() {
+        try {
+            return new OkHttpFetcher();
+        } catch (LinkageError e) {
+            Log.w(TAG, "createNetworkFetcher() - OkHttp is not available. Falling back to HttpURLConnection", e);
+            return new HttpUrlConnectionFetcher();
+        }
+    }
+
+    public AdaptiveConcurrencyLimiter getDownloadLimiter() {
+        return downloadLimiter;
+    }
+
+    public NetworkFetcher getNetworkFetcher() {
+        return networkFetcher;
+    }
+
+    /**
+     * Replace the network layer used for the next downloads (e.g.: HttpUrlConnectionFetcher in order to compare both).
+     *
+     * @param networkFetcher
+     */
+    public void setNetworkFetcher(NetworkFetcher networkFetcher) {
+        this.networkFetcher = networkFetcher;
     }
 
     /**
@@ -67,95 +207,651 @@ public class ManualImageLoaderManager extends ImageLoaderManager {
     public void loadImage(ImageModel imageModel) {
         Log.d(TAG, "loadImage() - Loading image from URL: " + imageModel.getUrl());
 
-        String url = imageModel.getUrl();
+        ImageLoadMetrics.Builder metrics = startMetrics(imageModel);
+
+        // Images are decoded to the size of their view, so the same url can be cached in different sizes. Until a view is laid
+        // out, that size is unknown.
+        if (!measureTarget(imageModel)) {
+            deferUntilMeasured(imageModel, metrics);
+            return;
+        }
+
+        load(imageModel, metrics);
+    }
+
+    /**
+     * Load the image of a view whose target size is known (see measureTarget()).
+     *
+     * @param imageModel
+     * @param metrics
+     */
+    private void load(ImageModel imageModel, ImageLoadMetrics.Builder metrics) {
         final ImageView imageView = imageModel.getImageView();
+        String requestKey = getRequestKey(imageModel);
 
-        // Store the image imageView and url in our Map, so that we can avoid issues when an imageView is recycled by the system (i.e.: when
+        // Bind the view to this request, so that we can avoid issues when an imageView is recycled by the system (i.e.: when
         // a download for an image finishes after an user scrolled the list and system reused that same imageView. So in this
         // case we cannot update the image just downloaded). See link below for a better explanation:
         // http://negativeprobability.blogspot.com.br/2011/08/lazy-loading-of-images-in-listview.html
-        imageViews.put(imageView, url);
+        ViewBinding binding = getViewBinding(imageView);
+        String previousKey = binding.getRequestKey();
+        String previousThumbnailKey = binding.getThumbnailKey();
+        BoundImageModel request = new BoundImageModel(imageModel, binding, binding.bind(requestKey));
+
+        // If this view was waiting for another image, it is not anymore. Cancel that download if no other view is waiting for it.
+        if (previousKey != null && !previousKey.equals(requestKey)) {
+            detachFromLoader(previousKey, imageView);
+        }
+
+        // Same for the thumbnail of the previous image. If this is the same image, its thumbnail is requested again below.
+        if (previousThumbnailKey != null) {
+            detachFromLoader(previousThumbnailKey, imageView);
+        }
 
         if (memoryCache) {
-            Log.d(TAG, "loadImage() - Detected Memory cache is ON");
+            Log.d(TAG, "load() - Detected Memory cache is ON");
             //Check image is stored in MemoryCache Map or not. If so, just return it.
-            Bitmap bitmap = mMemoryCacheObject.getImageFromCache(url);
+            Bitmap bitmap = getMemoryCacheAndAcquire(requestKey);
 
             if (bitmap != null) {
-                imageView.setImageBitmap(bitmap);
+                setImageBitmap(imageView, bitmap);
+                metrics.setSource(ImageLoadMetrics.Source.MEMORY);
+                finishMetrics(request, bitmap);
                 return;
             }
         } else {
-            Log.d(TAG, "loadImage() - Detected Memory cache is OFF");
+            Log.d(TAG, "load() - Detected Memory cache is OFF");
         }
 
         if (diskCache) {
-            Log.d(TAG, "loadImage() - Detected Disk cache is ON");
+            Log.d(TAG, "load() - Detected Disk cache is ON");
         } else {
-            Log.d(TAG, "loadImage() - Detected Disk cache is OFF");
+            Log.d(TAG, "load() - Detected Disk cache is OFF");
         }
 
         // Queue the request
-        queuePhoto(new ImageModel(url, imageView));
+        queuePhoto(request, DownloadScheduler.Priority.HIGH);
+
+        //Before downloading image show the placeholder image (unless its thumbnail can be shown right away)
+        if (!loadThumbnail(request)) {
+            setPlaceholder(imageView);
+        }
+    }
+
+    /**
+     * The view was not laid out yet and no other view was measured, so there is no size to decode the image to. Decoding it to
+     * the screen size would take several times the memory of a cell, so wait for the layout pass (which happens right before
+     * the next frame) and start the load from there.
+     *
+     * The view is bound to no request meanwhile, so that what it was waiting for before is cancelled, and so that the deferred
+     * load is dropped if the view is rebound (or detached) before it is laid out.
+     *
+     * @param imageModel
+     * @param metrics
+     */
+    private void deferUntilMeasured(final ImageModel imageModel, final ImageLoadMetrics.Builder metrics) {
+        Log.d(TAG, "deferUntilMeasured() - View was not laid out yet. Deferring image: " + imageModel.getUrl());
+
+        final ImageView imageView = imageModel.getImageView();
+
+        final ViewBinding binding = getViewBinding(imageView);
+        String previousKey = binding.getRequestKey();
+        String previousThumbnailKey = binding.getThumbnailKey();
+        final int generation = binding.bind(null);
+
+        if (previousKey != null) {
+            detachFromLoader(previousKey, imageView);
+        }
+        if (previousThumbnailKey != null) {
+            detachFromLoader(previousThumbnailKey, imageView);
+        }
+
+        setPlaceholder(imageView);
+
+        imageView.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                ViewTreeObserver observer = imageView.getViewTreeObserver();
+                if (observer.isAlive()) {
+                    observer.removeOnPreDrawListener(this);
+                }
+
+                // Still the last request made for this view, and the layout gave it a size
+                if (binding.getGeneration() == generation && measureTarget(imageModel)) {
+                    load(imageModel, metrics);
+                }
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Show the thumbnail of an image (if it has one) until the image itself is loaded. A thumbnail in the memory cache is shown
+     * right away. Otherwise it is loaded with the same priority as the image and, since it is queued after the image, it starts
+     * first. It is only shown if it is ready before the image, and it is cancelled when the image wins (see displayImage()).
+     *
+     * @param imageModel
+     * @return whether the thumbnail was shown
+     */
+    private boolean loadThumbnail(BoundImageModel imageModel) {
+        String thumbnailUrl = imageModel.getThumbnailUrl();
+        if (thumbnailUrl == null) {
+            return false;
+        }
+
+        ImageView imageView = imageModel.getImageView();
+
+        // Decoded to the size of the view, like the image (it is scaled up by the view when it is smaller)
+        String thumbnailKey = getRequestKey(thumbnailUrl, imageModel.getTargetWidth(), imageModel.getTargetHeight());
+
+        if (memoryCache) {
+            Bitmap bitmap = getMemoryCacheAndAcquire(thumbnailKey);
+            if (bitmap != null) {
+                setImageBitmap(imageView, bitmap);
+                return true;
+            }
+        }
+
+        // The thumbnail request belongs to the same bind as the image
+        ImageModel thumbnailModel = new BoundImageModel(thumbnailUrl, null, imageView, imageModel.getBinding(), imageModel.getGeneration());
+        thumbnailModel.setTargetSize(imageModel.getTargetWidth(), imageModel.getTargetHeight());
+        thumbnailModel.setRequestKey(thumbnailKey);
+
+        imageModel.getBinding().setThumbnailKey(thumbnailKey);
+        queuePhoto(thumbnailModel, DownloadScheduler.Priority.HIGH);
+        return false;
+    }
+
+    /**
+     * The view does not need its thumbnail anymore. Cancel its download if no other view is waiting for it.
+     *
+     * @param binding
+     * @param imageView
+     */
+    private void cancelThumbnail(ViewBinding binding, ImageView imageView) {
+        String thumbnailKey = binding.getThumbnailKey();
+        if (thumbnailKey != null) {
+            binding.setThumbnailKey(null);
+            detachFromLoader(thumbnailKey, imageView);
+        }
+    }
 
-        //Before downloading image show the placeholder image
+    /**
+     * Returns the binding kept in the view, creating it on the first bind. Only called in the UI thread.
+     *
+     * @param imageView
+     * @return
+     */
+    private ViewBinding getViewBinding(ImageView imageView) {
+        ViewBinding binding = (ViewBinding) imageView.getTag(R.id.manual_view_binding);
+        if (binding == null) {
+            binding = new ViewBinding();
+            imageView.setTag(R.id.manual_view_binding, binding);
+        }
+        return binding;
+    }
+
+    /**
+     * Look up the memory cache and acquire a reference to the bitmap found (if any).
+     *
+     * The bitmap might be evicted (and its last reference released) right after the lookup. So the reference is only acquired
+     * if the bitmap is still referenced, otherwise it might already be in the pool and it is treated as a miss. This way the UI
+     * thread does not hold the pool lock while looking up the cache.
+     *
+     * Being referenced is not enough, though: in the meantime the bitmap might have gone through the pool, been decoded into
+     * again (see BitmapFactory.Options.inBitmap) and cached under another key. Once our reference is acquired it cannot be
+     * reused anymore, so the cache is looked up again: if the key still maps to the same bitmap, it still holds our image.
+     *
+     * @param requestKey
+     * @return
+     */
+    private Bitmap getMemoryCacheAndAcquire(String requestKey) {
+        Bitmap bitmap = mMemoryCacheObject.getImageFromCache(requestKey);
+        if (bitmap == null) {
+            return null;
+        }
+
+        if (!bitmapPool.acquireIfReferenced(bitmap)) {
+            Log.d(TAG, "getMemoryCacheAndAcquire() - Image was evicted while being looked up: " + requestKey);
+            return null;
+        }
+
+        if (mMemoryCacheObject.getImageFromCache(requestKey) != bitmap) {
+            Log.d(TAG, "getMemoryCacheAndAcquire() - Image was evicted (and its bitmap reused) while being looked up: " + requestKey);
+            bitmapPool.release(bitmap);
+            return null;
+        }
+        return bitmap;
+    }
+
+    /**
+     * Show a bitmap in a view. The caller must have already acquired a reference to the bitmap on behalf of the view. The
+     * reference held for the bitmap the view was showing before is released.
+     *
+     * @param imageView
+     * @param bitmap
+     */
+    private void setImageBitmap(ImageView imageView, Bitmap bitmap) {
+        Bitmap previous = getShownBitmap(imageView);
+        imageView.setImageBitmap(bitmap);
+        bitmapPool.release(previous);
+    }
+
+    private void setPlaceholder(ImageView imageView) {
+        Bitmap previous = getShownBitmap(imageView);
         imageView.setImageResource(stub_id);
+        bitmapPool.release(previous);
+    }
+
+    private Bitmap getShownBitmap(ImageView imageView) {
+        Drawable drawable = imageView.getDrawable();
+        if (drawable instanceof BitmapDrawable) {
+            return ((BitmapDrawable) drawable).getBitmap();
+        }
+        return null;
+    }
+
+    /**
+     * Find out the size the image will be displayed at, so that PhotosLoader can decode it straight to that size instead of
+     * keeping a full resolution bitmap in memory.
+     *
+     * @param imageModel
+     * @return false when the view was not laid out yet and no other view was measured before, so the size is still unknown
+     */
+    private boolean measureTarget(ImageModel imageModel) {
+        ImageView imageView = imageModel.getImageView();
+
+        int width = imageView.getWidth();
+        int height = imageView.getHeight();
+
+        // The view was not laid out yet. Try its layout params.
+        ViewGroup.LayoutParams params = imageView.getLayoutParams();
+        if (width <= 0 && params != null && params.width > 0) {
+            width = params.width;
+        }
+        if (height <= 0 && params != null && params.height > 0) {
+            height = params.height;
+        }
+
+        if (width > 0 && height > 0) {
+            lastTargetWidth = width;
+            lastTargetHeight = height;
+        } else if (lastTargetWidth > 0 && lastTargetHeight > 0) {
+            width = lastTargetWidth;
+            height = lastTargetHeight;
+        } else {
+            return false;
+        }
+
+        imageModel.setTargetSize(width, height);
+        return true;
+    }
+
+    /**
+     * Key used for both memory cache and in flight downloads. It contains the target size, since the same url decoded to
+     * different sizes results in different bitmaps. Disk cache still uses the url only, since it holds the original bytes.
+     *
+     * It is kept in the ImageModel, since the PhotosLoader workers need it several times for the same request.
+     *
+     * @param imageModel
+     * @return
+     */
+    public String getRequestKey(ImageModel imageModel) {
+        String requestKey = imageModel.getRequestKey();
+        if (requestKey == null) {
+            requestKey = getRequestKey(imageModel.getUrl(), imageModel.getTargetWidth(), imageModel.getTargetHeight());
+            imageModel.setRequestKey(requestKey);
+        }
+        return requestKey;
+    }
+
+    private static String getRequestKey(String url, int targetWidth, int targetHeight) {
+        return url + "#" + targetWidth + "x" + targetHeight;
     }
 
     /**
-     * Pass ImageModel object to a new PhotosLoader instance and submit it to the executor. This will start the download
+     * Pass ImageModel object to a new PhotosLoader instance and submit it to the executor. This will start the download.
+     *
+     * If there is already a PhotosLoader downloading the same url, the ImageModel is just attached to it (and that loader is
+     * promoted to the given priority, in case it is a prefetch still waiting in the queue).
      *
      * @param imageModel
+     * @param priority
+     */
+    private void queuePhoto(ImageModel imageModel, DownloadScheduler.Priority priority) {
+        String requestKey = getRequestKey(imageModel);
+        boolean prefetch = imageModel.getImageView() == null;
+
+        while (true) {
+            PhotosLoader loader = inFlightLoaders.get(requestKey);
+            if (loader != null && prefetch) {
+                // Already being loaded. Nothing else to warm up.
+                return;
+            }
+
+            if (loader != null && loader.addTarget(imageModel)) {
+                Log.d(TAG, "queuePhoto() - Attached to an in flight download for image: " + imageModel.getUrl());
+                promote(loader, priority);
+                return;
+            }
+
+            // Either there is no loader for this url or it has just finished (and so it can no longer accept targets). In both
+            // cases, replace it by a new one.
+            PhotosLoader newLoader = new PhotosLoader(this, imageModel, diskCache, memoryCache);
+            boolean installed = loader == null
+                    ? inFlightLoaders.putIfAbsent(requestKey, newLoader) == null
+                    : inFlightLoaders.replace(requestKey, loader, newLoader);
+
+            if (installed) {
+                // Every load starts with a cache lookup, so it never waits behind the downloads
+                decodeScheduler.submit(newLoader, priority);
+                return;
+            }
+        }
+    }
+
+    /**
+     * The loader is queued in one of the schedulers, depending on its stage. The other one leaves it alone.
+     *
+     * @param loader
+     * @param priority
      */
-    private void queuePhoto(ImageModel imageModel) {
-        executorService.submit(new PhotosLoader(this, imageModel, diskCache, memoryCache));
+    private void promote(PhotosLoader loader, DownloadScheduler.Priority priority) {
+        decodeScheduler.promote(loader, priority);
+        downloadScheduler.promote(loader, priority);
     }
 
     /**
-     * Used prior to display the image to an imageView
+     * Called by a PhotosLoader whose image is not in the caches (or must be revalidated), so that it is downloaded.
+     *
+     * @param loader
+     */
+    public void submitDownload(PhotosLoader loader) {
+        downloadScheduler.submit(loader, loader.getPriority());
+    }
+
+    /**
+     * Wait until the decode stage can take another downloaded image. See decodeSlots.
+     *
+     * @throws InterruptedException
+     */
+    public void acquireDecodeSlot() throws InterruptedException {
+        decodeSlots.acquire();
+    }
+
+    public void releaseDecodeSlot() {
+        decodeSlots.release();
+    }
+
+    /**
+     * Called by a PhotosLoader that holds a decode slot (see acquireDecodeSlot()), so that its download is decoded.
+     *
+     * @param loader
+     */
+    public void submitDecode(PhotosLoader loader) {
+        decodeScheduler.submit(loader, loader.getPriority());
+    }
+
+    /**
+     * Stop starting new downloads and decodes (e.g.: during a fling). Requests are still queued and memory cache hits are still
+     * shown.
+     */
+    @Override
+    public void pause() {
+        decodeScheduler.pause();
+        downloadScheduler.pause();
+    }
+
+    @Override
+    public void resume() {
+        decodeScheduler.resume();
+        downloadScheduler.resume();
+    }
+
+    /**
+     * Warm the caches with the images of the rows the user is about to scroll to. They are loaded with LOW priority, so they
+     * never delay the visible rows, and a visible request for the same image simply attaches to (and promotes) the prefetch.
+     *
+     * Prefetches of the previous call that are not in this one and that no view attached to are cancelled, since the prediction
+     * changed (e.g.: the user changed the scroll direction).
+     *
+     * @param urls
+     */
+    @Override
+    public void prefetch(List<String> urls) {
+        if (!memoryCache && !diskCache) {
+            // There is no cache to warm
+            return;
+        }
+
+        if (lastTargetWidth <= 0 || lastTargetHeight <= 0) {
+            // No view was measured yet, so the request keys would not match the ones of the visible requests
+            return;
+        }
+
+        Set<String> keys = new HashSet<>();
+        for (String url : urls) {
+            // Views were not bound yet, so assume the size of the last measured one (all cells in our grid have the same size)
+            ImageModel imageModel = new ImageModel(url, null);
+            imageModel.setTargetSize(lastTargetWidth, lastTargetHeight);
+
+            String requestKey = getRequestKey(imageModel);
+            keys.add(requestKey);
+
+            // Only the memory cache is looked up here, since the UI thread must not touch the disk. An image that is already
+            // on the disk is skipped by the loader (see PhotosLoader.lookup()).
+            if (memoryCache && mMemoryCacheObject.getImageFromCache(requestKey) != null) {
+                continue;
+            }
+
+            queuePhoto(imageModel, DownloadScheduler.Priority.LOW);
+        }
+
+        for (String requestKey : prefetchedKeys) {
+            if (!keys.contains(requestKey)) {
+                PhotosLoader loader = inFlightLoaders.get(requestKey);
+                if (loader != null && loader.cancelIfUnclaimed()) {
+                    inFlightLoaders.remove(requestKey, loader);
+                }
+            }
+        }
+        prefetchedKeys = keys;
+    }
+
+    /**
+     * Detach a view from the loader for the given request key. When there is no view waiting for that loader anymore, it is
+     * cancelled, so that it releases its queue slot or its network connection.
+     *
+     * @param requestKey
+     * @param imageView
+     */
+    private void detachFromLoader(String requestKey, ImageView imageView) {
+        PhotosLoader loader = inFlightLoaders.get(requestKey);
+        if (loader != null && loader.removeTarget(imageView)) {
+            loader.cancel();
+            inFlightLoaders.remove(requestKey, loader);
+        }
+    }
+
+    /**
+     * Called by a PhotosLoader after it finished (successfully or not), so that subsequent requests for the same url will start
+     * a new loader.
+     *
+     * @param loader
+     */
+    public void onLoaderFinished(PhotosLoader loader) {
+        inFlightLoaders.remove(loader.getRequestKey(), loader);
+    }
+
+    /**
+     * Used prior to display the image to an imageView. Called by the PhotosLoader workers, so it only reads the binding the
+     * request was made with (no lock, no access to the view).
      * 
      * @param imageModel
      * @return
      */
     public boolean imageViewReused(ImageModel imageModel) {
+        // Prefetches have no view, so no binding either
+        if (!(imageModel instanceof BoundImageModel)) {
+            return true;
+        }
 
-        String tag = imageViews.get(imageModel.getImageView());
-        //Check url is already exist in imageViews MAP
-        if (tag == null || !tag.equals(imageModel.getUrl())) {
+        // The view was rebound (or detached) since this request was made
+        BoundImageModel request = (BoundImageModel) imageModel;
+        ViewBinding binding = request.getBinding();
+        if (binding.getGeneration() != request.getGeneration()) {
             return true;
         }
 
-        return false;
+        // Same bind. The image is always wanted, but its thumbnail only until one of them is shown.
+        String requestKey = getRequestKey(imageModel);
+        return !requestKey.equals(binding.getRequestKey()) && !requestKey.equals(binding.getThumbnailKey());
     }
 
     /**
-     * Display the image in the thread that handler is attached (in this case the UI thread)
+     * Display the image in the UI thread, at the beginning of the next frame (see FrameDeliveryQueue)
      *
      * @param bmp
      * @param imageModel
+     * @param loader the loader that loaded the image. Its metrics are reported for this view.
      */
-    public void displayImage(final Bitmap bmp, final ImageModel imageModel) {
-        handler.post(new Runnable() {
+    public void displayImage(final Bitmap bmp, final ImageModel imageModel, final PhotosLoader loader) {
+        // Hold a reference on behalf of the view right now, so that the bitmap cannot be reused while this task is queued
+        bitmapPool.acquire(bmp);
+
+        deliveryQueue.post(new Runnable() {
             @Override
             public void run() {
-                if (imageViewReused(imageModel))
+                if (imageViewReused(imageModel)) {
+                    bitmapPool.release(bmp);
                     return;
+                }
+
+                // Not reused, so it is a request for a view
+                ImageView imageView = imageModel.getImageView();
+                ViewBinding binding = ((BoundImageModel) imageModel).getBinding();
+
+                // A thumbnail that was ready before its image. It is not part of the metrics of the request.
+                if (getRequestKey(imageModel).equals(binding.getThumbnailKey())) {
+                    binding.setThumbnailKey(null);
+                    if (bmp != null) {
+                        setImageBitmap(imageView, bmp);
+                    }
+                    return;
+                }
+
+                // The image won, so its thumbnail will not be shown anymore
+                cancelThumbnail(binding, imageView);
 
                 // Show bitmap on UI
                 if (bmp != null)
-                    imageModel.getImageView().setImageBitmap(bmp);
+                    setImageBitmap(imageModel.getImageView(), bmp);
                 else
-                    imageModel.getImageView().setImageResource(stub_id);
+                    setPlaceholder(imageModel.getImageView());
+
+                ImageLoadMetrics.Builder metrics = getPendingMetrics(imageModel);
+                if (metrics != null) {
+                    metrics.setSource(loader.getSource())
+                            .setStartedAt(loader.getStartedAt())
+                            .setNetworkTime(loader.getNetworkTime())
+                            .setDecodeTime(loader.getDecodeTime());
+                }
+                finishMetrics(imageModel, bmp);
             }
         });
     }
 
-    public void addMemoryCache(String url, Bitmap bmp) {
+    public void addMemoryCache(String requestKey, Bitmap bmp) {
+        if (memoryCache && bmp != null) {
+            // The memory cache reference is released by the OnEvictedListener
+            bitmapPool.acquire(bmp);
+            mMemoryCacheObject.addImageToCache(requestKey, bmp);
+        }
+    }
+
+    /**
+     * The encoded images are kept out of the Java heap whenever possible, so that the decoded bitmaps keep the 25% of the heap
+     * they had before the encoded tier existed. Otherwise that budget is shared: most of it goes to the decoded bitmaps, which
+     * are shown right away, but a sixteenth of the heap holds roughly as many encoded images as the rest holds bitmaps.
+     *
+     * @return
+     */
+    private EncodedCache createEncodedCache() {
+        long maxMemory = Runtime.getRuntime().maxMemory();
+
+        try {
+            EncodedCache encodedCache = new AshmemEncodedCache(ASHMEM_SLAB_COUNT, ASHMEM_SLAB_SIZE);
+            mMemoryCacheObject.setLimit(maxMemory / 4);
+            return encodedCache;
+        } catch (IOException e) {
+            Log.w(TAG, "createEncodedCache() - Could not create the shared memory region, keeping the encoded images on the heap. Message: " + e.getMessage());
+        }
+
+        mMemoryCacheObject.setLimit(maxMemory * 3 / 16);
+        return new EncodedMemoryCache(maxMemory / 16);
+    }
+
+    /**
+     * Returns the encoded image cached in memory for the url, or null if memory cache is OFF or there is no such image.
+     *
+     * @param url
+     * @return
+     */
+    public EncodedCache.Entry getEncodedMemoryCache(String url) {
+        if (memoryCache) {
+            return encodedMemoryCache.get(url);
+        } else {
+            return null;
+        }
+    }
+
+    public void addEncodedMemoryCache(String url, byte[] data, CacheMetadata metadata) {
         if (memoryCache) {
-            mMemoryCacheObject.addImageToCache(url, bmp);
+            encodedMemoryCache.put(url, data, metadata);
         }
     }
 
+    public void removeEncodedMemoryCache(String url) {
+        encodedMemoryCache.remove(url);
+    }
+
+    /**
+     * Images bigger than this are not kept in the encoded memory cache, so there is no need to hold a copy of their bytes.
+     *
+     * @return
+     */
+    public long getEncodedMemoryCacheMaxEntrySize() {
+        return memoryCache ? encodedMemoryCache.getMaxEntrySize() : 0;
+    }
+
+    /**
+     * Returns a bitmap that is not used anymore and can hold an image with the given dimensions, or null if there is none.
+     *
+     * @param width
+     * @param height
+     * @param config
+     * @return
+     */
+    public Bitmap getReusableBitmap(int width, int height, Bitmap.Config config) {
+        return bitmapPool.get(width, height, config);
+    }
+
+    /**
+     * Called by PhotosLoader after it delivered a bitmap. If nobody took a reference to it (i.e. no view was waiting for it and
+     * memory cache is OFF), it can be reused right away.
+     *
+     * @param bmp
+     */
+    public void recycleIfUnused(Bitmap bmp) {
+        bitmapPool.releaseIfUnreferenced(bmp);
+    }
+
+    /**
+     * Returns the file cached for the url or null if disk cache is OFF or there is no such file in the cache.
+     *
+     * @param url
+     * @return
+     */
     public File getFileCache(String url) {
         if (diskCache) {
             return fileCache.getFile(url);
@@ -164,10 +860,106 @@ public class ManualImageLoaderManager extends ImageLoaderManager {
         }
     }
 
+    /**
+     * Returns a temporary file to which a download can be written. After it is written, it must be passed to either
+     * commitFileCache() or abortFileCache()
+     *
+     * @param url
+     * @return
+     * @throws IOException
+     */
+    public File newFileCacheTempFile(String url) throws IOException {
+        return fileCache.newTempFile(url);
+    }
+
+    public boolean commitFileCache(String url, File tempFile, CacheMetadata metadata) {
+        return fileCache.commit(url, tempFile, metadata);
+    }
+
+    /**
+     * Returns the HTTP metadata (validators and expiration) of the file cached for the url, or null if there is none.
+     *
+     * @param url
+     * @return
+     */
+    public CacheMetadata getFileCacheMetadata(String url) {
+        return fileCache.getMetadata(url);
+    }
+
+    public void updateFileCacheMetadata(String url, CacheMetadata metadata) {
+        fileCache.updateMetadata(url, metadata);
+    }
+
+    public void abortFileCache(File tempFile) {
+        fileCache.abort(tempFile);
+    }
+
+    public void removeFileCache(String url) {
+        fileCache.remove(url);
+    }
+
+    @Override
     public void clearMemoryCache() {
         if (memoryCache) {
             mMemoryCacheObject.clear();
+            encodedMemoryCache.clear();
         }
+        bitmapPool.clear();
+    }
+
+    /**
+     * The encoded images are kept, so the next requests are decoded (to the new config) without going to the disk.
+     */
+    @Override
+    public void clearDecodedMemoryCache() {
+        if (memoryCache) {
+            mMemoryCacheObject.clear();
+        }
+        bitmapPool.clear();
+    }
+
+    /**
+     * Trim the memory cache proportionally to the level (see getTrimRatio()). The bitmap pool only holds bitmaps nobody is
+     * showing, so it is the first thing to go.
+     *
+     * Also called by PhotosLoader after an OutOfMemoryError, so it can run in any thread.
+     *
+     * @param level
+     */
+    @Override
+    public void trimMemory(int level) {
+        double ratio = getTrimRatio(level);
+        if (ratio <= 0) {
+            return;
+        }
+
+        Log.d(TAG, "trimMemory() - Releasing " + (int) (ratio * 100) + "% of the memory cache");
+
+        if (memoryCache) {
+            mMemoryCacheObject.trimToSize((long) (mMemoryCacheObject.size() * (1 - ratio)));
+            encodedMemoryCache.trimToSize((long) (encodedMemoryCache.size() * (1 - ratio)));
+        }
+
+        // After the memory cache, since the bitmaps it evicted (and nobody is showing) were just released to the pool
+        bitmapPool.clear();
+    }
+
+    /**
+     * Besides the memory callbacks, stop the download threads, give the shared memory of the encoded cache back and close the
+     * disk cache journal (the next engine opens its own). Queued downloads are dropped.
+     */
+    @Override
+    public void release() {
+        super.release();
+        try {
+            mContext.getApplicationContext().unregisterReceiver(connectivityReceiver);
+        } catch (IllegalArgumentException e) {
+            // Already unregistered
+        }
+        decodeScheduler.shutdown();
+        downloadScheduler.shutdown();
+        encodedMemoryCache.close();
+        fileCache.close();
     }
 
     @Override
@@ -176,15 +968,51 @@ public class ManualImageLoaderManager extends ImageLoaderManager {
 
         if (memoryCache) {
             mMemoryCacheObject.clear();
+            encodedMemoryCache.clear();
         }
+        bitmapPool.clear();
 
         if (diskCache) {
             fileCache.clear();
         }
     }
 
+    /**
+     * A view that is detached from the window will not show its image anymore, so stop waiting for it. If the view is attached
+     * again without being rebound, our adapter will request its image again.
+     *
+     * @param imageModel
+     */
+    @Override
+    public void onViewDetachedFromWindow(ImageModel imageModel) {
+        ImageView imageView = imageModel.getImageView();
+        cancelMetrics(imageView);
+
+        ViewBinding binding = (ViewBinding) imageView.getTag(R.id.manual_view_binding);
+        if (binding == null) {
+            return;
+        }
+
+        String requestKey = binding.getRequestKey();
+        cancelThumbnail(binding, imageView);
+
+        // Every request made for this view is stale from now on
+        binding.bind(null);
+        if (requestKey != null) {
+            detachFromLoader(requestKey, imageView);
+        }
+    }
+
+    /**
+     * A recycled view will be bound to another image (or dropped by RecyclerView, when its pool is full). Either way it does
+     * not need its bitmap anymore, so release the reference it holds, otherwise a dropped view would keep its bitmap out of the
+     * pool for good.
+     *
+     * @param imageModel
+     */
     @Override
-    public void onViewDetachedFromWindow(String url) {
-        // Currently used by the Fresco and Picasso implementations (this last one is necessary when working with targets)
+    public void onViewRecycled(ImageModel imageModel) {
+        onViewDetachedFromWindow(imageModel);
+        setPlaceholder(imageModel.getImageView());
     }
 }
\ No newline at end of file
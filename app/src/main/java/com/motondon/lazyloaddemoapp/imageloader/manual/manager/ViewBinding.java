@@ -0,0 +1,55 @@
+package com.motondon.lazyloaddemoapp.imageloader.manual.manager;
+
+/**
+ * What a view is bound to in the manual engine. It is kept in the view itself (as a tag, see ManualImageLoaderManager), so
+ * binding a view takes no lock and allocates nothing after the first time.
+ *
+ * Every bind (and every detach) increments the generation, and the request made for the bind remembers it (see
+ * BoundImageModel). So the PhotosLoader workers can tell whether a view was reused since its request was made by
+ * comparing two ints, without touching the view nor any shared map.
+ *
+ * Only written in the UI thread. Read by the workers, hence the volatile fields.
+ *
+ */
+public final class ViewBinding {
+
+    private volatile int generation;
+
+    // Request key of the image the view is waiting for (or showing). Null after the view was detached.
+    private volatile String requestKey;
+
+    // Request key of the thumbnail the view is waiting for, until either the thumbnail or the image is shown. See
+    // ManualImageLoaderManager.loadThumbnail().
+    private volatile String thumbnailKey;
+
+    ViewBinding() {
+    }
+
+    /**
+     * Bind the view to a new request, which makes every previous request for it stale.
+     *
+     * @param requestKey the key of the new request, or null when the view is just detached
+     * @return the generation of the new request
+     */
+    int bind(String requestKey) {
+        this.requestKey = requestKey;
+        this.thumbnailKey = null;
+        return ++generation;
+    }
+
+    int getGeneration() {
+        return generation;
+    }
+
+    String getRequestKey() {
+        return requestKey;
+    }
+
+    String getThumbnailKey() {
+        return thumbnailKey;
+    }
+
+    void setThumbnailKey(String thumbnailKey) {
+        this.thumbnailKey = thumbnailKey;
+    }
+}
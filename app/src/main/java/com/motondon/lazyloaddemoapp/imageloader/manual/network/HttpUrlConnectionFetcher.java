@@ -0,0 +1,71 @@
+package com.motondon.lazyloaddemoapp.imageloader.manual.network;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * The network layer the manual engine always had: a plain HttpURLConnection per image. Kept as a fallback for when OkHttp is
+ * not available.
+ *
+ */
+public class HttpUrlConnectionFetcher implements NetworkFetcher {
+
+    private static final int TIMEOUT = 30000;
+
+    @Override
+    public Connection open(String url) throws IOException {
+        URL imageUrl = new URL(url);
+        HttpURLConnection conn = (HttpURLConnection) imageUrl.openConnection();
+        conn.setConnectTimeout(TIMEOUT);
+        conn.setReadTimeout(TIMEOUT);
+        conn.setInstanceFollowRedirects(true);
+
+        return new UrlConnection(conn);
+    }
+
+    private static class UrlConnection implements Connection {
+
+        private final HttpURLConnection conn;
+
+        UrlConnection(HttpURLConnection conn) {
+            this.conn = conn;
+        }
+
+        @Override
+        public void setRequestProperty(String name, String value) {
+            conn.setRequestProperty(name, value);
+        }
+
+        @Override
+        public int getResponseCode() throws IOException {
+            return conn.getResponseCode();
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            return conn.getHeaderField(name);
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            // HttpURLConnection only throws for codes >= 400, so a 304 would be returned as an empty body
+            int code = conn.getResponseCode();
+            if (code < 200 || code >= 300) {
+                throw new IOException("Unexpected response " + code + " for " + conn.getURL());
+            }
+            return conn.getInputStream();
+        }
+
+        @Override
+        public long getContentLength() {
+            return conn.getContentLength();
+        }
+
+        @Override
+        public void disconnect() {
+            conn.disconnect();
+        }
+    }
+}
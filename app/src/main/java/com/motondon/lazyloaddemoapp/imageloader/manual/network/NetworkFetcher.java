@@ -0,0 +1,75 @@
+package com.motondon.lazyloaddemoapp.imageloader.manual.network;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Network layer used by the manual engine to download images. PhotosLoader only talks to this interface, so the HTTP client
+ * can be replaced without touching the download/decode code.
+ *
+ * See OkHttpFetcher (the default one) and HttpUrlConnectionFetcher (the fallback).
+ *
+ */
+public interface NetworkFetcher {
+
+    /**
+     * Prepare a request for the url. Nothing is sent to the network until Connection.getResponseCode() or
+     * Connection.getInputStream() is called, so the
+     * returned connection can be published (and so cancelled by another thread) before the download starts.
+     *
+     * @param url
+     * @return
+     * @throws IOException
+     */
+    Connection open(String url) throws IOException;
+
+    interface Connection {
+
+        /**
+         * Add a header to the request (e.g.: If-None-Match). Must be called before the request is sent.
+         *
+         * @param name
+         * @param value
+         */
+        void setRequestProperty(String name, String value);
+
+        /**
+         * Send the request (if it was not sent yet) and return the HTTP status code. Blocks until the response headers are
+         * received.
+         *
+         * @return
+         * @throws IOException
+         */
+        int getResponseCode() throws IOException;
+
+        /**
+         * Returns the value of a response header, or null if there is no such header. Only valid after the request was sent.
+         *
+         * @param name
+         * @return
+         */
+        String getHeaderField(String name);
+
+        /**
+         * Send the request (if it was not sent yet) and return the response body. Blocks until the response headers are received.
+         *
+         * @return
+         * @throws IOException if the request fails or the server does not answer with a successful (2xx) response
+         */
+        InputStream getInputStream() throws IOException;
+
+        /**
+         * Returns the number of bytes the response body will have (i.e. its Content-Length), or -1 if it is unknown. Only
+         * valid after getInputStream() returned.
+         *
+         * @return
+         */
+        long getContentLength();
+
+        /**
+         * Release the connection. Can be called from any thread, in which case a blocked getInputStream() or read fails with
+         * an IOException. This is how a running download is cancelled.
+         */
+        void disconnect();
+    }
+}
@@ -0,0 +1,186 @@
+package com.motondon.lazyloaddemoapp.imageloader.manual.network;
+
+import android.util.Log;
+
+import com.motondon.lazyloaddemoapp.imageloader.NetworkConcurrency;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Network layer backed by OkHttp.
+ *
+ * Opening a new HttpURLConnection per image means a new TCP connection and TLS handshake for almost every thumbnail, which
+ * dominates the load time when the list is first shown. Here all the requests go through a single OkHttpClient (shared by
+ * every ManualImageLoaderManager instance, since a new one is created whenever the settings change), so connections are kept
+ * alive in its pool and, since all our images come from the same few hosts, multiplexed over HTTP/2 when the server supports it.
+ * Gzip is negotiated transparently by OkHttp.
+ *
+ */
+public class OkHttpFetcher implements NetworkFetcher {
+
+    private static final String TAG = OkHttpFetcher.class.getSimpleName();
+
+    private static final int TIMEOUT = 30000;
+
+    // One idle connection per download the adaptive limiter can allow at most. The client is shared and outlives network
+    // changes, so it is sized for the fastest network. With HTTP/2 a single one is usually enough per host.
+    private static final int MAX_IDLE_CONNECTIONS = NetworkConcurrency.getMaxDownloads();
+    private static final long KEEP_ALIVE_DURATION_MINUTES = 5;
+
+    private static OkHttpClient sharedClient;
+
+    private final OkHttpClient client;
+
+    public OkHttpFetcher() {
+        this(getSharedClient());
+    }
+
+    public OkHttpFetcher(OkHttpClient client) {
+        this.client = client;
+    }
+
+    private static synchronized OkHttpClient getSharedClient() {
+        if (sharedClient == null) {
+            Log.d(TAG, "getSharedClient() - Creating OkHttpClient");
+
+            sharedClient = new OkHttpClient.Builder()
+                    .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_DURATION_MINUTES, TimeUnit.MINUTES))
+                    .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                    .connectTimeout(TIMEOUT, TimeUnit.MILLISECONDS)
+                    .readTimeout(TIMEOUT, TimeUnit.MILLISECONDS)
+                    .followRedirects(true)
+                    .followSslRedirects(true)
+                    .build();
+        }
+        return sharedClient;
+    }
+
+    @Override
+    public Connection open(String url) throws IOException {
+        Request.Builder requestBuilder;
+        try {
+            requestBuilder = new Request.Builder().url(url);
+        } catch (IllegalArgumentException e) {
+            // Keep the same contract as HttpUrlConnectionFetcher, which throws a MalformedURLException for an invalid url
+            throw new IOException("Invalid url: " + url, e);
+        }
+
+        return new OkHttpConnection(client, requestBuilder);
+    }
+
+    private static class OkHttpConnection implements Connection {
+
+        private final OkHttpClient client;
+        private final Request.Builder requestBuilder;
+
+        // The call is only created when the request is sent, so that headers can still be added before. Guarded by "this".
+        private Call call;
+        private boolean disconnected = false;
+
+        // Written by the download thread and read by disconnect(), which can be called from any thread
+        private volatile Response response;
+
+        OkHttpConnection(OkHttpClient client, Request.Builder requestBuilder) {
+            this.client = client;
+            this.requestBuilder = requestBuilder;
+        }
+
+        @Override
+        public synchronized void setRequestProperty(String name, String value) {
+            if (call != null) {
+                throw new IllegalStateException("Request was already sent");
+            }
+            requestBuilder.header(name, value);
+        }
+
+        private Response execute() throws IOException {
+            Response response = this.response;
+            if (response != null) {
+                return response;
+            }
+
+            Call call;
+            synchronized (this) {
+                if (disconnected) {
+                    throw new IOException("Canceled");
+                }
+                if (this.call == null) {
+                    this.call = client.newCall(requestBuilder.build());
+                }
+                call = this.call;
+            }
+
+            response = call.execute();
+            this.response = response;
+            return response;
+        }
+
+        @Override
+        public int getResponseCode() throws IOException {
+            return execute().code();
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            Response response = this.response;
+            return response != null ? response.header(name) : null;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            Response response = execute();
+
+            if (!response.isSuccessful()) {
+                response.close();
+                throw new IOException("Unexpected response " + response.code() + " for " + response.request().url());
+            }
+
+            return response.body().byteStream();
+        }
+
+        @Override
+        public long getContentLength() {
+            Response response = this.response;
+            if (response == null) {
+                return -1;
+            }
+
+            // When OkHttp decompressed a gzip response itself, the length is unknown (-1) since the Content-Length header
+            // refers to the compressed bytes.
+            return response.body().contentLength();
+        }
+
+        @Override
+        public void disconnect() {
+            Call call;
+            synchronized (this) {
+                disconnected = true;
+                call = this.call;
+            }
+
+            // Aborts a blocked execute() or read and makes the connection unusable for the pool
+            if (call != null) {
+                call.cancel();
+            }
+
+            Response response = this.response;
+            if (response != null) {
+                ResponseBody body = response.body();
+                if (body != null) {
+                    body.close();
+                }
+            }
+        }
+    }
+}
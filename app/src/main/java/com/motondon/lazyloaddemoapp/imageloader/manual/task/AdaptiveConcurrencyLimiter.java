@@ -0,0 +1,258 @@
+package com.motondon.lazyloaddemoapp.imageloader.manual.task;
+
+import android.util.Log;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits how many downloads the manual engine runs at the same time, and adjusts that limit to what the network can take
+ * (additive increase, multiplicative decrease, the way TCP adjusts its congestion window).
+ *
+ * Every completed download gives a sample of how long its body took to arrive per KB, from the first byte on. The time to the
+ * first byte is left out: it is mostly the server and the round trip, and it would make small images (e.g.: thumbnails) look
+ * much slower per KB than big ones. Bodies smaller than MIN_SAMPLE_SIZE arrive in a few packets, so they give no sample.
+ *
+ * While the downloads are not getting slower than the best time seen recently, and all the slots are in use, the limit grows by
+ * one slot for every "limit" downloads (i.e.: about one slot per round of downloads). When they get much slower than that (the
+ * link is saturated, so more parallel downloads only make each of them slower) or a download fails, the limit is reduced by a
+ * quarter. After a decrease, another one only happens after a whole round of downloads, since the downloads that were already
+ * running still report the old congestion.
+ *
+ * The best time per KB slowly drifts up, so that a network that got slower for good (e.g.: the user walked away from the
+ * access point) becomes the new reference instead of keeping the limit at its minimum forever.
+ *
+ */
+public class AdaptiveConcurrencyLimiter {
+
+    private static final String TAG = AdaptiveConcurrencyLimiter.class.getSimpleName();
+
+    // Downloads slower than this many times the best time per KB mean the network is congested
+    private static final double CONGESTION_THRESHOLD = 2.0;
+
+    private static final double DECREASE_FACTOR = 0.75;
+
+    // Weight of the newest sample in the smoothed time per KB
+    private static final double SMOOTHING = 0.2;
+
+    // How much the best time per KB drifts up with each sample
+    private static final double BASELINE_DRIFT = 1.02;
+
+    // Bodies smaller than this are too short to tell how fast the link is
+    private static final long MIN_SAMPLE_SIZE = 16 * 1024;
+
+    public interface OnLimitChangedListener {
+        void onLimitChanged(int limit);
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition slotAvailable = lock.newCondition();
+
+    // Everything below is guarded by "lock"
+    private double limit;
+    private int maxLimit;
+    private int inFlight;
+
+    // Milliseconds per KB of body. Negative until the first sample.
+    private double smoothedTime = -1;
+    private double bestTime = -1;
+
+    // Downloads completed since the last decrease
+    private int completedSinceDecrease;
+
+    // Called outside the lock, so concurrent changes might be notified out of order. Listeners should read getLimit().
+    private volatile OnLimitChangedListener onLimitChangedListener;
+
+    /**
+     * @param initialLimit
+     * @param maxLimit
+     */
+    public AdaptiveConcurrencyLimiter(int initialLimit, int maxLimit) {
+        reset(initialLimit, maxLimit);
+    }
+
+    public void setOnLimitChangedListener(OnLimitChangedListener onLimitChangedListener) {
+        this.onLimitChangedListener = onLimitChangedListener;
+    }
+
+    /**
+     * Start over with new limits, forgetting every sample. Used when the device switches to another network, since what was
+     * measured on the previous one does not apply anymore. Downloads already running keep their slots.
+     *
+     * @param initialLimit
+     * @param maxLimit
+     */
+    public void reset(int initialLimit, int maxLimit) {
+        int newLimit;
+        lock.lock();
+        try {
+            this.maxLimit = Math.max(1, maxLimit);
+            this.limit = Math.max(1, Math.min(initialLimit, this.maxLimit));
+            smoothedTime = -1;
+            bestTime = -1;
+
+            // As if a whole round had completed, so that the first congestion is acted on right away
+            completedSinceDecrease = this.maxLimit;
+            newLimit = getLimitLocked();
+
+            // The limit might have grown
+            slotAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        Log.d(TAG, "reset() - Limit: " + newLimit + ", max: " + maxLimit);
+        notifyLimitChanged(newLimit);
+    }
+
+    public int getLimit() {
+        lock.lock();
+        try {
+            return getLimitLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getMaxLimit() {
+        lock.lock();
+        try {
+            return maxLimit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until a download slot is available and take it. Every successful call must be followed by exactly one call to
+     * onDownloaded(), onFailed() or release().
+     *
+     * @throws InterruptedException if the thread is interrupted while waiting (e.g.: its download was cancelled)
+     */
+    public void acquire() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (inFlight >= getLimitLocked()) {
+                slotAvailable.await();
+            }
+            inFlight++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Give a slot back after a download that completed.
+     *
+     * @param bytes bytes received
+     * @param elapsedTime how long the body took to be received (not counting the time to the first byte), in milliseconds
+     */
+    public void onDownloaded(long bytes, double elapsedTime) {
+        if (bytes < MIN_SAMPLE_SIZE) {
+            release();
+            return;
+        }
+
+        int oldLimit;
+        int newLimit;
+        lock.lock();
+        try {
+            oldLimit = getLimitLocked();
+
+            // All the slots were in use, so the network had as many downloads as it was allowed to have
+            boolean saturated = inFlight >= oldLimit;
+            releaseLocked();
+
+            double time = elapsedTime / Math.max(1.0, bytes / 1024.0);
+            smoothedTime = smoothedTime < 0 ? time : smoothedTime + SMOOTHING * (time - smoothedTime);
+            bestTime = bestTime < 0 ? time : Math.min(bestTime * BASELINE_DRIFT, time);
+            completedSinceDecrease++;
+
+            if (smoothedTime > bestTime * CONGESTION_THRESHOLD) {
+                decreaseLocked();
+            } else if (saturated) {
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+
+            newLimit = getLimitLocked();
+            if (newLimit > oldLimit) {
+                slotAvailable.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (newLimit != oldLimit) {
+            Log.d(TAG, "onDownloaded() - Limit changed from " + oldLimit + " to " + newLimit);
+            notifyLimitChanged(newLimit);
+        }
+    }
+
+    /**
+     * Give a slot back after a download that failed (timeouts and resets are what a congested network looks like).
+     */
+    public void onFailed() {
+        int oldLimit;
+        int newLimit;
+        lock.lock();
+        try {
+            oldLimit = getLimitLocked();
+            releaseLocked();
+            completedSinceDecrease++;
+            decreaseLocked();
+            newLimit = getLimitLocked();
+        } finally {
+            lock.unlock();
+        }
+
+        if (newLimit != oldLimit) {
+            Log.d(TAG, "onFailed() - Limit changed from " + oldLimit + " to " + newLimit);
+            notifyLimitChanged(newLimit);
+        }
+    }
+
+    /**
+     * Give a slot back without a sample (e.g.: the download was cancelled, or the server answered without a body).
+     */
+    public void release() {
+        lock.lock();
+        try {
+            releaseLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void releaseLocked() {
+        if (inFlight > 0) {
+            inFlight--;
+        }
+        slotAvailable.signal();
+    }
+
+    private void decreaseLocked() {
+        // The downloads that were running before the last decrease must complete first
+        if (completedSinceDecrease < getLimitLocked()) {
+            return;
+        }
+
+        limit = Math.max(1, limit * DECREASE_FACTOR);
+        completedSinceDecrease = 0;
+
+        // Otherwise the next samples would be compared with the congested ones and the limit would not grow again
+        if (bestTime > 0) {
+            smoothedTime = bestTime;
+        }
+    }
+
+    private int getLimitLocked() {
+        return (int) limit;
+    }
+
+    private void notifyLimitChanged(int newLimit) {
+        OnLimitChangedListener listener = onLimitChangedListener;
+        if (listener != null) {
+            listener.onLimitChanged(newLimit);
+        }
+    }
+}
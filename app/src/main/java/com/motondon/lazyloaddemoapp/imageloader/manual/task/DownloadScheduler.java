@@ -0,0 +1,270 @@
+package com.motondon.lazyloaddemoapp.imageloader.manual.task;
+
+import android.util.Log;
+
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs the PhotosLoader tasks of one stage of the manual engine (the manager has one scheduler for the downloads and another one
+ * for the decodes, see PhotosLoader.run()).
+ *
+ * A plain fixed thread pool executes tasks in FIFO order, so after a fling the rows that are currently visible only start to
+ * load after all the rows that were scrolled off the screen. This scheduler instead:
+ *   - runs higher priority tasks first and, for tasks with the same priority, the most recently submitted one first (LIFO),
+ *     since it belongs to the rows the user is looking at right now
+ *   - removes a cancelled task from the queue immediately, so that it does not hold a slot until a worker picks it up
+ *   - can be paused (e.g.: during a fling, when most of the queued rows will be scrolled off the screen before their images
+ *     are ready). Tasks are still queued while paused, but the workers do not start them until resume() is called.
+ *
+ */
+public class DownloadScheduler {
+
+    private static final String TAG = DownloadScheduler.class.getSimpleName();
+
+    public enum Priority {
+        // Declaration order is the execution order
+        HIGH,
+        NORMAL,
+        LOW
+    }
+
+    private final PausableThreadPoolExecutor executor;
+
+    // Used to break ties between tasks with the same priority. Higher sequence means a newer task.
+    private final AtomicLong sequence = new AtomicLong();
+
+    public DownloadScheduler(int threadCount) {
+        executor = new PausableThreadPoolExecutor(threadCount);
+    }
+
+    /**
+     * Queue a loader to be executed. The returned Future can be used to cancel it, which will also abort its download if it is
+     * already running.
+     *
+     * @param loader
+     * @param priority
+     * @return
+     */
+    public Future<?> submit(PhotosLoader loader, Priority priority) {
+        ScheduledTask task = new ScheduledTask(new StageRunner(loader), priority, sequence.incrementAndGet());
+        loader.setPriority(priority);
+        loader.setFuture(task);
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Shut down (see shutdown()). The loader will never run, so it must release what its previous stage left for it.
+            Log.d(TAG, "submit() - Scheduler is shut down. Dropping download for image: " + loader.getUrl());
+            task.cancel(false);
+            loader.onDropped();
+            return task;
+        }
+
+        // A loader moving on to its next stage might have been cancelled before this task was set as its future
+        if (loader.isCancelled()) {
+            task.cancel(true);
+        }
+        return task;
+    }
+
+    /**
+     * Raise the priority of a loader that is still queued (e.g.: a prefetch a visible view is now waiting for). A loader that is
+     * already running or that already has the given priority (or a higher one) is left alone.
+     *
+     * @param loader
+     * @param priority
+     */
+    public void promote(PhotosLoader loader, Priority priority) {
+        Future<?> future = loader.getFuture();
+        if (!(future instanceof ScheduledTask)) {
+            return;
+        }
+
+        ScheduledTask task = (ScheduledTask) future;
+        if (!task.belongsTo(this) || task.priority.compareTo(priority) <= 0) {
+            return;
+        }
+
+        // The priority of a queued task cannot change in place, since the queue would not notice it. So it is removed and queued
+        // again. If the remove fails, a worker has just taken it.
+        if (executor.remove(task)) {
+            Log.d(TAG, "promote() - Promoting download for image: " + loader.getUrl() + " to " + priority);
+            submit(loader, priority);
+        }
+    }
+
+    /**
+     * Change the number of workers. Extra workers leave once they finish their current task. Queued tasks are kept.
+     *
+     * @param threadCount
+     */
+    public synchronized void setThreadCount(int threadCount) {
+        if (threadCount < 1 || threadCount == executor.getMaximumPoolSize()) {
+            return;
+        }
+
+        Log.d(TAG, "setThreadCount() - Using " + threadCount + " threads");
+
+        // The core size can never be bigger than the maximum size, so the order depends on whether the pool grows or shrinks
+        if (threadCount > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(threadCount);
+            executor.setCorePoolSize(threadCount);
+        } else {
+            executor.setCorePoolSize(threadCount);
+            executor.setMaximumPoolSize(threadCount);
+        }
+    }
+
+    public void pause() {
+        Log.d(TAG, "pause()");
+        executor.pause();
+    }
+
+    public void resume() {
+        Log.d(TAG, "resume()");
+        executor.resume();
+    }
+
+    /**
+     * Stop the workers (the running loaders are interrupted) and drop the queued ones. Loaders submitted from now on are dropped
+     * right away.
+     */
+    public void shutdown() {
+        List<Runnable> queued = executor.shutdownNow();
+        Log.d(TAG, "shutdown() - Cancelling " + queued.size() + " queued tasks");
+
+        // No worker will ever run them, so they must release what their previous stage left for them
+        for (Runnable runnable : queued) {
+            ScheduledTask task = (ScheduledTask) runnable;
+            task.cancel(false);
+            task.runner.loader.onDropped();
+        }
+    }
+
+    /**
+     * The pausable executor from the ThreadPoolExecutor documentation: a worker that takes a task while paused waits before
+     * running it. Since a cancelled task does nothing when run, a task whose view went away during the pause is just skipped.
+     */
+    private static class PausableThreadPoolExecutor extends ThreadPoolExecutor {
+
+        private final ReentrantLock pauseLock = new ReentrantLock();
+        private final Condition unpaused = pauseLock.newCondition();
+        private boolean paused;
+
+        PausableThreadPoolExecutor(int threadCount) {
+            super(threadCount, threadCount, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>());
+        }
+
+        @Override
+        protected void beforeExecute(Thread t, Runnable r) {
+            super.beforeExecute(t, r);
+            pauseLock.lock();
+            try {
+                while (paused) {
+                    unpaused.await();
+                }
+            } catch (InterruptedException e) {
+                t.interrupt();
+            } finally {
+                pauseLock.unlock();
+            }
+        }
+
+        void pause() {
+            pauseLock.lock();
+            try {
+                paused = true;
+            } finally {
+                pauseLock.unlock();
+            }
+        }
+
+        void resume() {
+            pauseLock.lock();
+            try {
+                paused = false;
+                unpaused.signalAll();
+            } finally {
+                pauseLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Runs the loader, remembering that it did. A FutureTask cancelled before it starts never runs its runnable.
+     */
+    private static class StageRunner implements Runnable {
+
+        private final PhotosLoader loader;
+        private volatile boolean started;
+
+        StageRunner(PhotosLoader loader) {
+            this.loader = loader;
+        }
+
+        @Override
+        public void run() {
+            started = true;
+            loader.run();
+        }
+    }
+
+    private class ScheduledTask extends FutureTask<Void> implements Comparable<ScheduledTask> {
+
+        private final StageRunner runner;
+        private final Priority priority;
+        private final long sequence;
+
+        ScheduledTask(StageRunner runner, Priority priority, long sequence) {
+            super(runner, null);
+            this.runner = runner;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        boolean belongsTo(DownloadScheduler scheduler) {
+            return DownloadScheduler.this == scheduler;
+        }
+
+        @Override
+        public void run() {
+            super.run();
+
+            // Cancelled after a worker took it from the queue, but before it started. The loader never ran this stage, so it
+            // must release what the previous one left for it.
+            if (!runner.started) {
+                runner.loader.onDropped();
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+
+            // Free the queue slot right away instead of waiting for a worker to dequeue and skip this task. If it is removed, no
+            // worker will ever run it.
+            if (cancelled && executor.remove(this)) {
+                runner.loader.onDropped();
+            }
+            return cancelled;
+        }
+
+        @Override
+        public int compareTo(ScheduledTask other) {
+            if (priority != other.priority) {
+                return priority.compareTo(other.priority);
+            }
+
+            // LIFO: the newest task comes first
+            return sequence > other.sequence ? -1 : (sequence < other.sequence ? 1 : 0);
+        }
+    }
+}
@@ -1,13 +1,22 @@
 package com.motondon.lazyloaddemoapp.imageloader.manual.task;
 
+import android.content.ComponentCallbacks2;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.os.SystemClock;
 import android.util.Log;
+import android.widget.ImageView;
 
+import com.motondon.lazyloaddemoapp.imageloader.ImageLoadMetrics;
+import com.motondon.lazyloaddemoapp.imageloader.manual.cache.CacheMetadata;
+import com.motondon.lazyloaddemoapp.imageloader.manual.cache.EncodedCache;
 import com.motondon.lazyloaddemoapp.imageloader.manual.manager.ManualImageLoaderManager;
+import com.motondon.lazyloaddemoapp.imageloader.manual.network.NetworkFetcher;
 import com.motondon.lazyloaddemoapp.imageloader.manual.utils.Utils;
 import com.motondon.lazyloaddemoapp.model.ImageModel;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -15,9 +24,12 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.HttpURLConnection;
-import java.net.URL;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Future;
 
 /**
  * Code downloaded from https://github.com/thest1/LazyList
@@ -26,167 +38,996 @@ import java.net.URL;
 public class PhotosLoader implements Runnable {
     private static final String TAG = PhotosLoader.class.getSimpleName();
 
+    private static final int BUFFER_SIZE = 16 * 1024;
+
     private ImageModel imageModel;
     private ManualImageLoaderManager manualImageLoaderManager;
 
     private Boolean useDiskCache;
     private Boolean useMemoryCache;
 
+    // Every ImageModel waiting for this download. Requests for the same url that arrive while this loader is in flight are
+    // attached here instead of starting a new download. Guarded by "this".
+    private final List<ImageModel> targets = new ArrayList<>(1);
+    private boolean finished = false;
+
+    // A prefetch loader starts without any view waiting for it. It only warms the caches, unless a view is attached to it later.
+    private final boolean prefetch;
+
+    // Set by the DownloadScheduler. Used to cancel this loader when no view is waiting for it anymore.
+    private volatile Future<?> future;
+    private volatile boolean cancelled = false;
+
+    // Connection currently in use (if any). A blocking socket read does not respond to thread interruption, so the connection
+    // is closed in order to abort a running download.
+    private volatile NetworkFetcher.Connection connection;
+
+    private enum Stage {
+        LOOKUP,
+        DOWNLOAD,
+        DECODE
+    }
+
+    // Stage run() will run next. Set before this loader is submitted to the executor of that stage. See run().
+    private volatile Stage stage = Stage.LOOKUP;
+
+    // Priority this loader was last submitted (or promoted) with. Kept when it moves on to the next stage.
+    private volatile DownloadScheduler.Priority priority = DownloadScheduler.Priority.NORMAL;
+
+    // The fields below are handed from one stage to the next. Stages never run at the same time, and submitting this loader to
+    // an executor publishes them to the thread of the next stage.
+
+    // Stale file found in the disk cache, to be revalidated by the download stage (and decoded if it was not modified)
+    private File cachedFile;
+    private CacheMetadata cachedMetadata;
+
+    // What the download stage received: a temporary file of the disk cache, or the image itself when the disk cache is off
+    private File downloadedFile;
+    private byte[] downloadedData;
+    private CacheMetadata downloadedMetadata;
+
+    // Whether this loader holds one of the download slots of the manager (see AdaptiveConcurrencyLimiter)
+    private boolean holdsDownloadSlot = false;
+
+    // Whether this loader holds one of the slots of the decode stage (see ManualImageLoaderManager.acquireDecodeSlot())
+    private boolean holdsDecodeSlot = false;
+
+    // Metrics of this load. They are reported for every view it is delivered to, so they are written before the delivery.
+    private long startedAt;
+    private ImageLoadMetrics.Source source = ImageLoadMetrics.Source.UNKNOWN;
+    private double networkTime = ImageLoadMetrics.UNKNOWN_TIME;
+    private double decodeTime = ImageLoadMetrics.UNKNOWN_TIME;
+
     public PhotosLoader(ManualImageLoaderManager manualImageLoaderManager, ImageModel imageModel, boolean useDiskCache, boolean useMemoryCache) {
         this.manualImageLoaderManager = manualImageLoaderManager;
         this.imageModel = imageModel;
 
         this.useDiskCache = useDiskCache;
         this.useMemoryCache = useMemoryCache;
+
+        // A prefetch request has no view
+        this.prefetch = imageModel.getImageView() == null;
+        if (!prefetch) {
+            this.targets.add(imageModel);
+        }
+    }
+
+    public boolean isPrefetch() {
+        return prefetch;
+    }
+
+    Future<?> getFuture() {
+        return future;
+    }
+
+    public String getUrl() {
+        return imageModel.getUrl();
+    }
+
+    public String getRequestKey() {
+        return manualImageLoaderManager.getRequestKey(imageModel);
+    }
+
+    /**
+     * Attach another view to this download, so that it will receive the same bitmap when download finishes.
+     *
+     * @param target
+     * @return false if this loader has already finished. In that case caller must start a new loader.
+     */
+    public synchronized boolean addTarget(ImageModel target) {
+        if (finished) {
+            return false;
+        }
+
+        targets.add(target);
+        return true;
+    }
+
+    /**
+     * Detach a view from this download (e.g.: because it was rebound to another url or detached from the window).
+     *
+     * @param imageView
+     * @return true if no other view is waiting for this download anymore. In that case this loader is finished and it should be
+     * cancelled.
+     */
+    public synchronized boolean removeTarget(ImageView imageView) {
+        if (finished) {
+            return false;
+        }
+
+        Iterator<ImageModel> iter = targets.iterator();
+        while (iter.hasNext()) {
+            if (iter.next().getImageView() == imageView) {
+                iter.remove();
+            }
+        }
+
+        if (targets.isEmpty()) {
+            finished = true;
+            return true;
+        }
+        return false;
     }
 
+    /**
+     * Cancel this loader if it is a prefetch no view was attached to (e.g.: the user changed the scroll direction and the rows it
+     * was prefetched for are not coming anymore).
+     *
+     * @return true if this loader was cancelled
+     */
+    public boolean cancelIfUnclaimed() {
+        synchronized (this) {
+            if (finished || !prefetch || !targets.isEmpty()) {
+                return false;
+            }
+            finished = true;
+        }
+
+        cancel();
+        return true;
+    }
+
+    public void setFuture(Future<?> future) {
+        this.future = future;
+    }
+
+    public DownloadScheduler.Priority getPriority() {
+        return priority;
+    }
+
+    void setPriority(DownloadScheduler.Priority priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * Abort this loader. If it is still queued it is removed from the queue, otherwise its download is interrupted.
+     */
+    public void cancel() {
+        Log.d(TAG, "cancel() - Cancelling download for image: " + imageModel.getUrl());
+
+        cancelled = true;
+
+        Future<?> f = future;
+        if (f != null) {
+            f.cancel(true);
+        }
+
+        NetworkFetcher.Connection conn = connection;
+        if (conn != null) {
+            conn.disconnect();
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * SystemClock.elapsedRealtimeNanos() of when a worker started running this loader.
+     *
+     * @return
+     */
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    public ImageLoadMetrics.Source getSource() {
+        return source;
+    }
+
+    public double getNetworkTime() {
+        return networkTime;
+    }
+
+    public double getDecodeTime() {
+        return decodeTime;
+    }
+
+    /**
+     * Mark this loader as finished (so no other target can be attached) and return the targets still waiting for the image.
+     *
+     * @return
+     */
+    private synchronized List<ImageModel> finish() {
+        finished = true;
+
+        List<ImageModel> waiting = new ArrayList<>(targets.size());
+        for (ImageModel target : targets) {
+            if (!manualImageLoaderManager.imageViewReused(target)) {
+                waiting.add(target);
+            }
+        }
+        return waiting;
+    }
+
+    /**
+     * Prior to download an image, check if all the views waiting for it were already reused. If so, there is no need to
+     * download it, and this loader is finished.
+     *
+     * @return
+     */
+    private synchronized boolean allTargetsReused() {
+        // Nobody is waiting for a prefetch, but its image is still wanted for the caches
+        if (prefetch && targets.isEmpty()) {
+            return false;
+        }
+
+        for (ImageModel target : targets) {
+            if (!manualImageLoaderManager.imageViewReused(target)) {
+                return false;
+            }
+        }
+
+        finished = true;
+        return true;
+    }
+
+    /**
+     * Finish this loader if it is a prefetch no view was attached to. Once finished, a view asking for the same image starts a
+     * new loader (which will find the image in the caches).
+     *
+     * @return true if this loader was finished
+     */
+    private synchronized boolean finishIfUnclaimed() {
+        if (finished || !prefetch || !targets.isEmpty()) {
+            return false;
+        }
+
+        finished = true;
+        return true;
+    }
+
+    /**
+     * Whether this is a prefetch that can only warm the disk cache (the memory cache is off), so that it never needs to decode
+     * its image unless a view is attached to it.
+     *
+     * @return
+     */
+    private boolean warmsDiskOnly() {
+        return prefetch && !useMemoryCache && useDiskCache;
+    }
+
+    private boolean isFreshOnDisk(String url) {
+        if (manualImageLoaderManager.getFileCache(url) == null) {
+            return false;
+        }
+
+        CacheMetadata metadata = manualImageLoaderManager.getFileCacheMetadata(url);
+        return metadata == null || !metadata.isStale(System.currentTimeMillis());
+    }
+
+    /**
+     * Publish the download in the disk cache without decoding it (see warmsDiskOnly()). Truncated downloads were already
+     * rejected by fetch(), and a file that turns out not to decode is dropped from the cache by the first view loading it (see
+     * getCachedBitmap()). A stale file that was revalidated (or could not be) is already in the cache.
+     *
+     * @param url
+     */
+    private void storeWithoutDecoding(String url) {
+        if (downloadedFile != null && !downloadedMetadata.isNoStore()) {
+            manualImageLoaderManager.commitFileCache(url, downloadedFile, downloadedMetadata);
+            downloadedFile = null;
+        }
+        discardDownload();
+    }
+
+    /**
+     * Runs the current stage of this loader. Each stage either delivers the image (or the failure) or submits this loader to the
+     * executor of the next stage:
+     *   - LOOKUP (decode executor): the image is decoded from the memory or the disk cache, if it is there (and fresh). Cache
+     *     hits never wait for the network.
+     *   - DOWNLOAD (network executor): the image is downloaded (or revalidated) to a temporary file, or to memory when the disk
+     *     cache is off. Nothing is decoded here, so the download slots are only held while the network is in use.
+     *   - DECODE (decode executor): the downloaded image is decoded, and only then published in the caches.
+     */
     @Override
     public void run() {
+        switch (stage) {
+            case LOOKUP:
+                lookup();
+                break;
+            case DOWNLOAD:
+                download();
+                break;
+            case DECODE:
+                decode();
+                break;
+        }
+    }
+
+    private void lookup() {
+        startedAt = SystemClock.elapsedRealtimeNanos();
+
+        // Prior to load an image, check whether a view is still waiting for it. If not, just return.
+        if (cancelled || allTargetsReused()) {
+            finishLoader();
+            return;
+        }
+
+        // Nothing to warm if the image is already on the disk (checked here rather than by the manager, since it touches the
+        // disk and the journal)
+        if (warmsDiskOnly() && isFreshOnDisk(imageModel.getUrl()) && finishIfUnclaimed()) {
+            Log.d(TAG, "lookup() - Image: " + imageModel.getUrl() + " is already on the disk. Nothing to prefetch");
+            finishLoader();
+            return;
+        }
+
+        Bitmap bmp;
+        try {
+            bmp = getCachedBitmap(imageModel.getUrl());
+        } catch (Throwable th) {
+            onError(th);
+            complete(null);
+            return;
+        }
+
+        if (bmp != null) {
+            complete(bmp);
+            return;
+        }
+
+        // Not in the caches (or only a stale copy that must be revalidated). The download waits for the network in another
+        // executor, so that this thread can decode the next cache hit in the meantime.
+        stage = Stage.DOWNLOAD;
+        manualImageLoaderManager.submitDownload(this);
+    }
+
+    private void download() {
+        if (cancelled || allTargetsReused()) {
+            discardDownload();
+            finishLoader();
+            return;
+        }
+
+        boolean downloaded;
         try {
-            // Prior to download an image, check if image was already downloaded. If so, just return.
-            if (manualImageLoaderManager. imageViewReused(imageModel))
+            downloaded = fetch(imageModel.getUrl());
+        } catch (Throwable th) {
+            onError(th);
+            downloaded = false;
+        }
+
+        if (cancelled) {
+            discardDownload();
+            finishLoader();
+            return;
+        }
+
+        if (!downloaded) {
+            complete(null);
+            return;
+        }
+
+        // The download is already on the disk, which is all an unclaimed prefetch can warm when the memory cache is off. There
+        // is no point in decoding it.
+        if (warmsDiskOnly() && finishIfUnclaimed()) {
+            storeWithoutDecoding(imageModel.getUrl());
+            finishLoader();
+            return;
+        }
+
+        // Wait for room in the decode stage before handing the image over. While the decoders are behind, the download workers
+        // stop here instead of downloading more images that would only pile up in memory (or in temporary files).
+        try {
+            manualImageLoaderManager.acquireDecodeSlot();
+        } catch (InterruptedException e) {
+            // Cancelled (or the engine was released) while waiting
+            discardDownload();
+            finishLoader();
+            return;
+        }
+
+        holdsDecodeSlot = true;
+        stage = Stage.DECODE;
+        manualImageLoaderManager.submitDecode(this);
+    }
+
+    private void decode() {
+        try {
+            if (cancelled) {
+                discardDownload();
+                finishLoader();
                 return;
+            }
+
+            Bitmap bmp;
+            try {
+                bmp = decodeDownload(imageModel.getUrl());
+            } catch (Throwable th) {
+                onError(th);
+                bmp = null;
+            }
 
-            // This will start the download
-            final Bitmap bmp = getBitmap(imageModel.getUrl());
+            complete(bmp);
+        } finally {
+            releaseDecodeSlot();
+        }
+    }
 
+    /**
+     * Called by the scheduler when this loader was cancelled before its current stage could start (or the scheduler was shut
+     * down), so that whatever the previous stage left for it is released.
+     */
+    void onDropped() {
+        Log.d(TAG, "onDropped() - Dropping download for image: " + imageModel.getUrl() + " in stage " + stage);
+        discardDownload();
+        releaseDecodeSlot();
+        finishLoader();
+    }
+
+    /**
+     * Put the image in the memory cache and deliver it to every view still waiting for it. A null bitmap means the load failed.
+     *
+     * @param bmp
+     */
+    private void complete(Bitmap bmp) {
+        try {
             if (bmp != null) {
-            	Log.d(TAG, "PhotosLoader::run() - Download for image: " + imageModel.getUrl().toString() + " finished successfully");
-            } else {
-            	
+            	Log.d(TAG, "PhotosLoader::complete() - Load for image: " + imageModel.getUrl() + " finished successfully");
             }
-            
+
             if (useMemoryCache) {
                 // set image data in Memory Cache
-                manualImageLoaderManager.addMemoryCache(imageModel.getUrl(), bmp);
+                manualImageLoaderManager.addMemoryCache(getRequestKey(), bmp);
             }
 
-            // After download an image, check whether its view is already used by another URL (i.e.: the the view was detached from the
-            // view). If so, do not update it.
-            if (manualImageLoaderManager.imageViewReused(imageModel))
+            // A cancelled loader has no view waiting for it, but the bitmap above might still be useful for the memory cache.
+            if (cancelled) {
+                manualImageLoaderManager.recycleIfUnused(bmp);
                 return;
+            }
+
+            // After loading an image, check whether the views are already used by another URL (i.e.: the the view was detached
+            // from the view). If so, do not update them. Finally add a task in order to display just loaded image on every view
+            // still waiting for it.
+            for (ImageModel target : finish()) {
+                manualImageLoaderManager.displayImage(bmp, target, this);
+            }
 
-            // Finally add a task in order to display just downloaded image.
-            manualImageLoaderManager.displayImage(bmp, imageModel);
+            // If neither a view nor the memory cache took this bitmap, its memory can be reused by the next decode
+            manualImageLoaderManager.recycleIfUnused(bmp);
 
         } catch (Throwable th) {
-            th.printStackTrace();
+            if (!cancelled)
+                th.printStackTrace();
+        } finally {
+            finishLoader();
+        }
+    }
+
+    private void finishLoader() {
+        // In case of an error, make sure no other target is attached to this loader
+        synchronized (this) {
+            finished = true;
         }
+        manualImageLoaderManager.onLoaderFinished(this);
+    }
+
+    private void onError(Throwable ex) {
+        if (cancelled)
+            Log.d(TAG, "onError() - Load for image: " + imageModel.getUrl() + " was cancelled");
+        else
+            ex.printStackTrace();
+
+        // Only a network error tells something about the network
+        releaseDownloadSlot(-1, 0, !cancelled && ex instanceof IOException);
+        discardDownload();
+
+        // Give memory back as if the system asked for it while running critically low, instead of flushing the whole memory
+        // cache (which would make every visible image reload)
+        if (ex instanceof OutOfMemoryError)
+            manualImageLoaderManager.trimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL);
     }
 
-    private Bitmap getBitmap(String url) {
-        File f = manualImageLoaderManager.getFileCache(url);
+    /**
+     * Decode the image from the memory or the disk cache, if it is there and still fresh. A stale cached file is kept in
+     * cachedFile, to be revalidated by the download stage.
+     *
+     * @param url
+     * @return
+     */
+    private Bitmap getCachedBitmap(String url) {
+        if (useMemoryCache) {
+            // The decoded bitmap was evicted (or decoded to another size), but the encoded image might still be in memory
+            EncodedCache.Entry encoded = manualImageLoaderManager.getEncodedMemoryCache(url);
+            if (encoded != null && (encoded.getMetadata() == null || !encoded.getMetadata().isStale(System.currentTimeMillis()))) {
+                source = ImageLoadMetrics.Source.MEMORY;
+                Bitmap b = decodeBytes(encoded.getData(), true);
+                if (b != null)
+                    return b;
+
+                manualImageLoaderManager.removeEncodedMemoryCache(url);
+            }
+            // A stale image is revalidated through the disk cache below. The memory copy is replaced once that is done.
+        }
 
         if (useDiskCache) {
             //from cache
-            Bitmap b = decodeFile(f);
-            if (b != null)
-                return b;
+            File f = manualImageLoaderManager.getFileCache(url);
+            if (f != null) {
+                CacheMetadata metadata = manualImageLoaderManager.getFileCacheMetadata(url);
+
+                if (metadata != null && metadata.isStale(System.currentTimeMillis())) {
+                    cachedFile = f;
+                    cachedMetadata = metadata;
+                } else {
+                    source = ImageLoadMetrics.Source.DISK;
+                    Bitmap b = decodeCachedFile(url, f, metadata);
+                    if (b != null)
+                        return b;
+
+                    // The cached file cannot be decoded. Drop it so that it will be replaced by the download.
+                    manualImageLoaderManager.removeFileCache(url);
+                }
+            }
         }
 
-        // Download image file from web
+        return null;
+    }
+
+    /**
+     * Download the image, or revalidate the stale cached file (see getCachedBitmap()). On success, what is left for the decode
+     * stage is in one of: downloadedFile (a temporary file of the disk cache), downloadedData (when the disk cache is off) or
+     * cachedFile (the stale file, when it was not modified or could not be revalidated).
+     *
+     * @param url
+     * @return false if there is nothing to decode
+     * @throws Exception
+     */
+    private boolean fetch(String url) throws Exception {
+        // Wait for a download slot. How many downloads run at the same time depends on how well the network copes with them.
+        manualImageLoaderManager.getDownloadLimiter().acquire();
+        holdsDownloadSlot = true;
+
+        long requestTime = SystemClock.elapsedRealtimeNanos();
+        NetworkFetcher.Connection conn = manualImageLoaderManager.getNetworkFetcher().open(url);
+
+        // Ask the server to send the image only if it changed since it was cached
+        if (cachedFile != null) {
+            if (cachedMetadata.getEtag() != null) {
+                conn.setRequestProperty("If-None-Match", cachedMetadata.getEtag());
+            }
+            if (cachedMetadata.getLastModified() != null) {
+                conn.setRequestProperty("If-Modified-Since", cachedMetadata.getLastModified());
+            }
+        }
+
+        // Publish the connection before checking the flag, so that a concurrent cancel() either sees it or is seen here
+        connection = conn;
+        if (cancelled) {
+            conn.disconnect();
+            releaseDownloadSlot(-1, 0, false);
+            return false;
+        }
+
+        int responseCode;
         try {
+            responseCode = conn.getResponseCode();
+        } catch (IOException e) {
+            if (cachedFile == null || cancelled) {
+                throw e;
+            }
+
+            // Better show a stale image than nothing (e.g.: while offline)
+            useStaleFile(conn, url, e.getMessage(), true);
+            return true;
+        }
 
-            Bitmap bitmap;
-            URL imageUrl = new URL(url);
-            HttpURLConnection conn = (HttpURLConnection) imageUrl.openConnection();
-            conn.setConnectTimeout(30000);
-            conn.setReadTimeout(30000);
-            conn.setInstanceFollowRedirects(true);
-            InputStream is = conn.getInputStream();
+        if (cachedFile != null && responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            Log.d(TAG, "fetch() - Image: " + url + " was not modified");
 
-            // When using disk cache, save just downloaded image to the disk
-            if (useDiskCache) {
-                OutputStream os = new FileOutputStream(f);
+            // A 304 has no body, but it might carry a new expiration time
+            cachedMetadata = getCacheMetadata(conn, cachedMetadata);
+            conn.disconnect();
+            manualImageLoaderManager.updateFileCacheMetadata(url, cachedMetadata);
 
-                // Read each pixel from input stream and write them to output stream (i.e.: a file)
-                Utils.CopyStream(is, os);
+            // The image itself comes from the disk. The network was only used to revalidate it.
+            source = ImageLoadMetrics.Source.DISK;
+            networkTime = elapsedTime(requestTime);
+            releaseDownloadSlot(-1, 0, false);
+            return true;
+        }
 
-                os.close();
-                conn.disconnect();
+        // The server could not send the image (e.g.: it is overloaded). The stale one is still better than nothing.
+        if (cachedFile != null && (responseCode < 200 || responseCode >= 300)) {
+            useStaleFile(conn, url, "HTTP " + responseCode, false);
+            return true;
+        }
 
-                // Decodes image and scales it to reduce memory consumption
-                bitmap = decodeFile(f);
-            } else {
+        InputStream is;
+        try {
+            is = conn.getInputStream();
+        } catch (IOException e) {
+            if (cachedFile == null || cancelled) {
+                throw e;
+            }
+            useStaleFile(conn, url, e.getMessage(), true);
+            return true;
+        }
+
+        // The body is streaming, so the stale file is replaced by the download
+        cachedFile = null;
+        cachedMetadata = null;
+        source = ImageLoadMetrics.Source.NETWORK;
+
+        // The limiter is only told how long the body took. The time to the first byte is mostly the server and the round trip,
+        // which do not get slower when more downloads share the link.
+        long responseTime = SystemClock.elapsedRealtimeNanos();
 
-            	// when disk cache is disabled, just convert the just donwloaded image (i.e. an inputStream) into a byte array.
-                byte[] imageInBytes = readFully(is);
-                
-                // Now, convert that byte array into a bitmap 
-                bitmap = BitmapFactory.decodeByteArray(imageInBytes, 0, imageInBytes.length);
+        // Must be read before the connection is released
+        downloadedMetadata = getCacheMetadata(conn, null);
+
+        // Used to detect truncated downloads. It is -1 when the server does not send it.
+        long contentLength = conn.getContentLength();
+
+        long received;
+        if (useDiskCache) {
+            // Write to a temporary file first. It is only published in the cache after it was completely written and decoded,
+            // so a partial or corrupt download never ends up in the cache.
+            downloadedFile = manualImageLoaderManager.newFileCacheTempFile(url);
+            FileOutputStream fos = new FileOutputStream(downloadedFile);
+            try {
+                received = Utils.copy(is, fos.getChannel());
+            } finally {
+                fos.close();
+                conn.disconnect();
+            }
+        } else {
+            // When disk cache is disabled, the image is kept in memory until it is decoded
+            ByteArrayOutputStream out = new ByteArrayOutputStream(contentLength > 0 ? (int) contentLength : BUFFER_SIZE);
+            try {
+                received = Utils.copy(is, Channels.newChannel(out));
+            } finally {
+                conn.disconnect();
             }
+            downloadedData = out.toByteArray();
+        }
+        networkTime = elapsedTime(requestTime);
+        double transferTime = elapsedTime(responseTime);
+
+        // A truncated download might still decode (with a gray area at the bottom). Neither show nor cache it.
+        Utils.checkLength(received, contentLength);
+        releaseDownloadSlot(received, transferTime, false);
+        return true;
+    }
 
+    /**
+     * The stale file could not be revalidated, so it is decoded as it is (see decodeDownload()).
+     *
+     * @param conn
+     * @param url
+     * @param reason
+     * @param failed whether the revalidation failed because of the network
+     */
+    private void useStaleFile(NetworkFetcher.Connection conn, String url, String reason, boolean failed) {
+        Log.d(TAG, "useStaleFile() - Could not revalidate image: " + url + ". Using the cached one. Reason: " + reason);
+        conn.disconnect();
+        releaseDownloadSlot(-1, 0, failed);
+        source = ImageLoadMetrics.Source.DISK;
+    }
+
+    /**
+     * Decode what the download stage left (see fetch()), and publish it in the caches if it could be decoded.
+     *
+     * @param url
+     * @return
+     */
+    private Bitmap decodeDownload(String url) {
+        if (cachedFile != null) {
+            // Not modified, or could not be revalidated
+            Bitmap b = decodeCachedFile(url, cachedFile, cachedMetadata);
+            if (b == null)
+                manualImageLoaderManager.removeFileCache(url);
+            return b;
+        }
+
+        boolean cacheable = !downloadedMetadata.isNoStore();
+
+        if (downloadedFile != null) {
+            // Still hot in the page cache, since it was just written. When it is small enough, it is also kept in the encoded
+            // memory cache (see decodeCachedFile()).
+            Bitmap bitmap = cacheable ? decodeCachedFile(url, downloadedFile, downloadedMetadata) : decodeFile(downloadedFile, true);
+
+            if (bitmap != null && cacheable) {
+                manualImageLoaderManager.commitFileCache(url, downloadedFile, downloadedMetadata);
+                downloadedFile = null;
+            } else {
+                discardDownload();
+            }
             return bitmap;
+        }
 
-        } catch (Throwable ex) {
-            ex.printStackTrace();
-            if (ex instanceof OutOfMemoryError)
-                manualImageLoaderManager.clearMemoryCache();
-            return null;
+        byte[] data = downloadedData;
+        downloadedData = null;
+
+        Bitmap bitmap = decodeBytes(data, true);
+        if (bitmap != null && cacheable && useMemoryCache && data.length <= manualImageLoaderManager.getEncodedMemoryCacheMaxEntrySize()) {
+            manualImageLoaderManager.addEncodedMemoryCache(url, data, downloadedMetadata);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Drop what the download stage left for the decode stage (if anything).
+     */
+    private void discardDownload() {
+        if (downloadedFile != null) {
+            manualImageLoaderManager.abortFileCache(downloadedFile);
+            downloadedFile = null;
+        }
+        downloadedData = null;
+    }
+
+    private void releaseDecodeSlot() {
+        if (holdsDecodeSlot) {
+            holdsDecodeSlot = false;
+            manualImageLoaderManager.releaseDecodeSlot();
+        }
+    }
+
+    /**
+     * Give the download slot back (if this loader still holds it), telling the limiter how the download went.
+     *
+     * @param received bytes received, or -1 if the download did not complete or had no body
+     * @param transferTime how long the body took to be received, in milliseconds (ignored when received is -1)
+     * @param failed whether the download failed because of the network
+     */
+    private void releaseDownloadSlot(long received, double transferTime, boolean failed) {
+        if (!holdsDownloadSlot) {
+            return;
         }
+        holdsDownloadSlot = false;
+
+        AdaptiveConcurrencyLimiter limiter = manualImageLoaderManager.getDownloadLimiter();
+        if (received >= 0) {
+            limiter.onDownloaded(received, transferTime);
+        } else if (failed) {
+            limiter.onFailed();
+        } else {
+            limiter.release();
+        }
+    }
+
+    private static double elapsedTime(long start) {
+        return (SystemClock.elapsedRealtimeNanos() - start) / 1e6;
     }
 
     /**
-     * Convert an InputStream in a byte array. This method is useful when no disk cache is enabled
-     * Code downloaded from: http://stackoverflow.com/questions/2163644/in-java-how-can-i-convert-an-inputstream-into-a-byte-array-byte
+     * Read the caching headers of a response.
      *
-     * @param input
+     * @param conn
+     * @param previous metadata of the entry being revalidated (or null)
      * @return
-     * @throws IOException
      */
-    private static byte[] readFully(InputStream input) throws IOException {
+    private CacheMetadata getCacheMetadata(NetworkFetcher.Connection conn, CacheMetadata previous) {
+        return CacheMetadata.fromResponse(
+                conn.getHeaderField("ETag"),
+                conn.getHeaderField("Last-Modified"),
+                conn.getHeaderField("Cache-Control"),
+                conn.getHeaderField("Expires"),
+                conn.getHeaderField("Date"),
+                System.currentTimeMillis(),
+                previous);
+    }
 
-        byte[] buffer = new byte[8192];
-        int bytesRead;
-        ByteArrayOutputStream output = new ByteArrayOutputStream();
-        while ((bytesRead = input.read(buffer)) != -1) {
-            output.write(buffer, 0, bytesRead);
+    /**
+     * Decodes a file from the disk cache. When it is small enough for the encoded memory cache, it is read into memory first and
+     * decoded from there, so that it is also cached in memory without being read twice.
+     *
+     * @param url
+     * @param f
+     * @param metadata the metadata of the file (or null), kept with the encoded image
+     * @return
+     */
+    private Bitmap decodeCachedFile(String url, File f, CacheMetadata metadata) {
+        long length = f.length();
+        if (!useMemoryCache || length <= 0 || length > manualImageLoaderManager.getEncodedMemoryCacheMaxEntrySize()) {
+            return decodeFile(f, true);
         }
-        return output.toByteArray();
+
+        byte[] data;
+        try {
+            data = Utils.readFully(f);
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+
+        Bitmap b = decodeBytes(data, true);
+        if (b != null) {
+            manualImageLoaderManager.addEncodedMemoryCache(url, data, metadata);
+        }
+        return b;
+    }
+
+    /**
+     * Decodes an image held in memory (see EncodedCache).
+     *
+     * @param data
+     * @param reuseBitmap whether the image can be decoded into a bitmap from the pool
+     * @return
+     */
+    private Bitmap decodeBytes(byte[] data, boolean reuseBitmap) {
+        try {
+            return decodeStream(new ByteArrayInputStream(data), reuseBitmap);
+        } catch (IllegalArgumentException e) {
+            // The bitmap taken from the pool could not be used. Try again allocating a new one.
+            if (reuseBitmap) {
+                return decodeBytes(data, false);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
     }
 
     /**
      * Decodes image and scales it to reduce memory consumption
      *  
      * @param f
+     * @param reuseBitmap whether the image can be decoded into a bitmap from the pool
      * @return
      */
-    private Bitmap decodeFile(File f) {
+    private Bitmap decodeFile(File f, boolean reuseBitmap) {
 
         try {
+            FileInputStream stream = new FileInputStream(f);
+            try {
+                return decodeStream(stream, reuseBitmap);
+            } finally {
+                stream.close();
+            }
 
-            //Decode image size
-            BitmapFactory.Options o = new BitmapFactory.Options();
-            o.inJustDecodeBounds = true;
-            FileInputStream stream1 = new FileInputStream(f);
-            BitmapFactory.decodeStream(stream1, null, o);
-            stream1.close();
-
-            //Find the correct scale value. It should be the power of 2.
-            final int REQUIRED_SIZE = 85;
-
-            int width_tmp = o.outWidth, height_tmp = o.outHeight;
-            int scale = 1;
-            while (true) {
-                if (width_tmp / 2 < REQUIRED_SIZE || height_tmp / 2 < REQUIRED_SIZE)
-                    break;
-                width_tmp /= 2;
-                height_tmp /= 2;
-                scale *= 2;
-            }
-
-            //decode with current scale values
-            BitmapFactory.Options o2 = new BitmapFactory.Options();
-            o2.inSampleSize = scale;
-            FileInputStream stream2 = new FileInputStream(f);
-            Bitmap bitmap = BitmapFactory.decodeStream(stream2, null, o2);
-            stream2.close();
-            return bitmap;
-
+        } catch (IllegalArgumentException e) {
+            // The bitmap taken from the pool could not be used. Try again allocating a new one.
+            if (reuseBitmap) {
+                return decodeFile(f, false);
+            }
         } catch (FileNotFoundException e) {
         } catch (IOException e) {
             e.printStackTrace();
         }
         return null;
     }
-}
\ No newline at end of file
+
+    /**
+     * Decodes an image reading its source only once: the bounds are decoded from the header, the stream is rewound to its
+     * beginning and then the pixels are decoded (scaled to the view size).
+     *
+     * The mark has no limit, so rewinding never fails, but the buffer only grows with what the bounds decoding read (usually
+     * just the image header).
+     *
+     * @param in
+     * @param reuseBitmap whether the image can be decoded into a bitmap from the pool
+     * @return
+     * @throws IOException
+     * @throws IllegalArgumentException if the image could not be decoded into the bitmap from the pool
+     */
+    private Bitmap decodeStream(InputStream in, boolean reuseBitmap) throws IOException {
+        long start = SystemClock.elapsedRealtimeNanos();
+        try {
+            return decodeStreamOnce(in, reuseBitmap);
+        } finally {
+            // A failed attempt (e.g.: the bitmap from the pool could not be used) also counts
+            decodeTime = Math.max(0, decodeTime) + elapsedTime(start);
+        }
+    }
+
+    private Bitmap decodeStreamOnce(InputStream in, boolean reuseBitmap) throws IOException {
+        BufferedInputStream stream = new BufferedInputStream(in, BUFFER_SIZE);
+        stream.mark(Integer.MAX_VALUE);
+
+        //Decode image size
+        BitmapFactory.Options o = new BitmapFactory.Options();
+        o.inJustDecodeBounds = true;
+        BitmapFactory.decodeStream(stream, null, o);
+
+        stream.reset();
+
+        // Drop the mark, otherwise the buffer would grow until it holds the whole image
+        stream.mark(0);
+
+        //decode with the scale values for the view size
+        return BitmapFactory.decodeStream(stream, null, getDecodeOptions(o.outWidth, o.outHeight, getBitmapConfig(o.outMimeType), reuseBitmap));
+    }
+
+    /**
+     * Returns the config the image should be decoded to. A config without alpha (e.g.: RGB_565) is only used for JPEG images,
+     * which are always opaque. The others might have transparent pixels, so they are decoded to ARGB_8888.
+     *
+     * @param mimeType as found by the bounds decoding (null when the decoder could not tell)
+     * @return
+     */
+    private Bitmap.Config getBitmapConfig(String mimeType) {
+        Bitmap.Config config = manualImageLoaderManager.getBitmapConfig();
+        if (config == Bitmap.Config.RGB_565 && !"image/jpeg".equals(mimeType)) {
+            return Bitmap.Config.ARGB_8888;
+        }
+        return config;
+    }
+
+    /**
+     * Compute the options to decode an image of the given size to the size of the target view.
+     *
+     * inSampleSize alone can only scale down by powers of 2, so it is used to get as close as possible to the target size (without
+     * going below it) and inDensity/inTargetDensity do the remaining scaling while decoding. The result covers the view in both
+     * dimensions (i.e. the smaller ratio dimension will match the view exactly) and is never scaled up.
+     *
+     * When reuseBitmap is true, the options also carry a bitmap from the pool big enough for the decoded image (if there is one).
+     *
+     * @param width
+     * @param height
+     * @param config
+     * @param reuseBitmap
+     * @return
+     */
+    private BitmapFactory.Options getDecodeOptions(int width, int height, Bitmap.Config config, boolean reuseBitmap) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = config;
+
+        // Only mutable bitmaps can be reused later on
+        options.inMutable = true;
+
+        int targetWidth = imageModel.getTargetWidth();
+        int targetHeight = imageModel.getTargetHeight();
+
+        if (width <= 0 || height <= 0 || targetWidth <= 0 || targetHeight <= 0) {
+            return options;
+        }
+
+        // Scale needed for the image to cover the view
+        float scale = Math.max((float) targetWidth / width, (float) targetHeight / height);
+        if (scale >= 1f) {
+            // Image is already smaller than the view. Never scale it up.
+            if (reuseBitmap) {
+                options.inBitmap = manualImageLoaderManager.getReusableBitmap(width, height, config);
+            }
+            return options;
+        }
+
+        //Find the correct sample value. It should be the power of 2.
+        int sampleSize = 1;
+        while (width / (sampleSize * 2) >= targetWidth && height / (sampleSize * 2) >= targetHeight) {
+            sampleSize *= 2;
+        }
+        options.inSampleSize = sampleSize;
+
+        // Density scaling is applied after sampling. Its ratio (inTargetDensity / inDensity) is chosen so that the dimension
+        // that drives the scale ends up with exactly the target size.
+        boolean widthDrivesScale = (float) targetWidth / width >= (float) targetHeight / height;
+        options.inScaled = true;
+        options.inDensity = widthDrivesScale ? width : height;
+        options.inTargetDensity = (widthDrivesScale ? targetWidth : targetHeight) * sampleSize;
+
+        if (reuseBitmap) {
+            // Decoders round the sampled dimensions up, so ask for one extra pixel in each dimension
+            int decodedWidth = (int) Math.ceil(width * scale) + 1;
+            int decodedHeight = (int) Math.ceil(height * scale) + 1;
+            options.inBitmap = manualImageLoaderManager.getReusableBitmap(decodedWidth, decodedHeight, config);
+        }
+
+        return options;
+    }
+}
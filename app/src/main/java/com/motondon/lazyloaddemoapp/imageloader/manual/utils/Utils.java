@@ -1,31 +1,148 @@
 package com.motondon.lazyloaddemoapp.imageloader.manual.utils;
 
 /**
- * Code downloaded from https://github.com/thest1/LazyList
- * 
+ * Originally downloaded from https://github.com/thest1/LazyList
+ *
+ * The original CopyStream() copied with a 1 KB buffer and swallowed every exception, so a partial download ended up in the disk
+ * cache as a corrupt file. Now the copy goes to a channel through a large pooled buffer, reports how many bytes were copied
+ * and lets errors reach the caller, which can then check the result against the expected length and discard the file.
+ *
  */
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 public class Utils {
-    public static void CopyStream(InputStream is, OutputStream os)
-    {
-        final int buffer_size=1024;
-        try
-        {
-
-            byte[] bytes=new byte[buffer_size];
-            for(;;)
-            {
+
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    // Buffers are kept for the next copy instead of being allocated for every download. One per worker thread is enough.
+    private static final int MAX_POOLED_BUFFERS = 8;
+
+    private static volatile int bufferSize = DEFAULT_BUFFER_SIZE;
+    private static final ConcurrentLinkedQueue<ByteBuffer> bufferPool = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Change the size of the buffers used by copy(). Buffers already pooled with another size are dropped.
+     *
+     * @param size
+     */
+    public static void setBufferSize(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Invalid buffer size: " + size);
+        }
+        bufferSize = size;
+        bufferPool.clear();
+    }
+
+    public static int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Copy everything left in the input stream to the channel.
+     *
+     * The buffer is a heap buffer on purpose: the source is an InputStream, which can only read into a byte array, so a direct
+     * buffer would add a copy instead of saving one. A FileChannel writes the array straight to the file.
+     *
+     * @param is
+     * @param out
+     * @return the number of bytes copied
+     * @throws IOException
+     */
+    public static long copy(InputStream is, WritableByteChannel out) throws IOException {
+        ByteBuffer buffer = obtainBuffer();
+        try {
+            byte[] bytes = buffer.array();
+            long total = 0;
+
+            for (;;) {
                 //Read byte from input stream
-                int count=is.read(bytes, 0, buffer_size);
-                if(count==-1)
+                int count = is.read(bytes, 0, bytes.length);
+                if (count == -1)
                     break;
 
-                //Write byte from output stream
-                os.write(bytes, 0, count);
+                //Write byte to the channel
+                buffer.clear();
+                buffer.limit(count);
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                total += count;
+            }
+            return total;
+
+        } finally {
+            recycleBuffer(buffer);
+        }
+    }
+
+    /**
+     * Read a whole file into memory.
+     *
+     * The size is taken from the opened file, since a cached file can be replaced (renamed over) at any time, and the stream
+     * keeps reading the one that was opened.
+     *
+     * @param f
+     * @return
+     * @throws IOException
+     */
+    public static byte[] readFully(File f) throws IOException {
+        FileInputStream is = new FileInputStream(f);
+        try {
+            long length = is.getChannel().size();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("File too big: " + f);
+            }
+
+            byte[] data = new byte[(int) length];
+            int offset = 0;
+            while (offset < data.length) {
+                int count = is.read(data, offset, data.length - offset);
+                if (count == -1) {
+                    throw new EOFException("Unexpected end of file: " + f);
+                }
+                offset += count;
             }
+            return data;
+
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Throws an IOException if a download did not get the number of bytes announced by the server (i.e. its Content-Length).
+     *
+     * @param received
+     * @param expected the Content-Length, or a negative value if it is unknown
+     * @throws IOException
+     */
+    public static void checkLength(long received, long expected) throws IOException {
+        if (expected >= 0 && received != expected) {
+            throw new IOException("Truncated download: expected " + expected + " bytes but received " + received);
+        }
+    }
+
+    private static ByteBuffer obtainBuffer() {
+        int size = bufferSize;
+
+        ByteBuffer buffer = bufferPool.poll();
+        if (buffer == null || buffer.capacity() != size) {
+            buffer = ByteBuffer.allocate(size);
+        }
+        return buffer;
+    }
+
+    private static void recycleBuffer(ByteBuffer buffer) {
+        if (buffer.capacity() == bufferSize && bufferPool.size() < MAX_POOLED_BUFFERS) {
+            buffer.clear();
+            bufferPool.offer(buffer);
         }
-        catch(Exception ex){}
     }
-}
\ No newline at end of file
+}
@@ -8,6 +8,7 @@ import android.util.Log;
 import android.widget.ImageView;
 
 import com.motondon.lazyloaddemoapp.R;
+import com.motondon.lazyloaddemoapp.imageloader.ImageLoadMetrics;
 import com.motondon.lazyloaddemoapp.imageloader.ImageLoaderManager;
 import com.motondon.lazyloaddemoapp.model.ImageModel;
 import com.squareup.picasso.MemoryPolicy;
@@ -19,6 +20,7 @@ import com.squareup.picasso.Target;
 
 import java.io.File;
 import java.util.HashMap;
+import java.util.List;
 
 public class PicassoImageLoaderManager extends ImageLoaderManager {
 
@@ -37,6 +39,8 @@ public class PicassoImageLoaderManager extends ImageLoaderManager {
         Log.v(TAG, "ctor()");
 
         try {
+            // The default executor already sizes itself by network type (4 threads on Wi-Fi, 3 on 4G, 2 on 3G, 1 on 2G) as long
+            // as the app can see the network state (ACCESS_NETWORK_STATE), so it is kept as it is.
             mPicasso = Picasso.with(mContext);
 
             // By calling .setIndicatorsEnabled(true), all imageView will have a small indicator on the top left corner:
@@ -64,12 +68,15 @@ public class PicassoImageLoaderManager extends ImageLoaderManager {
      * @param imageModel
      */
     @Override
-    public void loadImage(ImageModel imageModel) {
+    public void loadImage(final ImageModel imageModel) {
         Log.d(TAG, "loadImage() - Loading image from URL: " + imageModel.getUrl());
 
         final String url = imageModel.getUrl();
         final ImageView imageView = imageModel.getImageView();
 
+        // Picasso does not expose the time spent in each stage, only where the image came from
+        final ImageLoadMetrics.Builder metrics = startMetrics(imageModel);
+
         // Create the Target object which will receive the bitmap image or the error message after Picasso finishes its task.
         Target target = new Target() {
 
@@ -82,6 +89,9 @@ public class PicassoImageLoaderManager extends ImageLoaderManager {
                 synchronized (sync) {
                     targetList.remove(url);
                 }
+
+                metrics.setSource(getSource(from));
+                finishMetrics(imageModel, bitmap);
             }
 
             @Override
@@ -94,6 +104,8 @@ public class PicassoImageLoaderManager extends ImageLoaderManager {
                 synchronized (sync) {
                     targetList.remove(url);
                 }
+
+                finishMetrics(imageModel, null);
             }
 
             @Override
@@ -144,6 +156,9 @@ public class PicassoImageLoaderManager extends ImageLoaderManager {
         //  Prioritize the image loading with other simultaneously Picasso loading requests. Default value is NORMAL.
         requestCreator.priority(Picasso.Priority.HIGH);
 
+        // Decode to the configured config (ARGB_8888 by default). Picasso applies it to every image, whether it has alpha or not.
+        requestCreator.config(bitmapConfig);
+
         // Request Picasso to download the image. When it is finished (either in case of success or failure) a Target callback will
         // be called. Remember that when using target, source indicator does not work.
         requestCreator.into(target);
@@ -163,6 +178,59 @@ public class PicassoImageLoaderManager extends ImageLoaderManager {
         }
     }
 
+    private ImageLoadMetrics.Source getSource(Picasso.LoadedFrom from) {
+        switch (from) {
+            case MEMORY:
+                return ImageLoadMetrics.Source.MEMORY;
+            case DISK:
+                return ImageLoadMetrics.Source.DISK;
+            case NETWORK:
+                return ImageLoadMetrics.Source.NETWORK;
+            default:
+                return ImageLoadMetrics.Source.UNKNOWN;
+        }
+    }
+
+    /**
+     * Picasso::fetch() loads the image into the caches without a target. The request is the same one loadImage() makes (no
+     * transformation), so it will be a memory cache hit when the row is bound.
+     *
+     * @param urls
+     */
+    @Override
+    public void prefetch(List<String> urls) {
+        if (!memoryCache && !diskCache) {
+            // There is no cache to warm
+            return;
+        }
+
+        for (String url : urls) {
+            RequestCreator requestCreator = mPicasso.load(url).tag(mTag).priority(Picasso.Priority.LOW).config(bitmapConfig);
+
+            if (!memoryCache) {
+                requestCreator = requestCreator.memoryPolicy(MemoryPolicy.NO_CACHE, MemoryPolicy.NO_STORE);
+            }
+            if (!diskCache) {
+                requestCreator = requestCreator.networkPolicy(NetworkPolicy.NO_CACHE, NetworkPolicy.NO_STORE);
+            }
+
+            requestCreator.fetch();
+        }
+    }
+
+    /**
+     * All our requests are tagged with mTag, so this pauses all of them.
+     */
+    @Override
+    public void pause() {
+        mPicasso.pauseTag(mTag);
+    }
+
+    @Override
+    public void resume() {
+        mPicasso.resumeTag(mTag);
+    }
+
     @Override
     public void clearCache() {
         Log.d(TAG, "clearCache() - Clearing both disk and memory caches");
@@ -171,13 +239,27 @@ public class PicassoImageLoaderManager extends ImageLoaderManager {
         clearDiskCache();
     }
 
-    private void clearMemoryCache() {
+    @Override
+    public void clearMemoryCache() {
         Log.d(TAG, "clearMemoryCache()");
 
         // This is a hack to access a Picasso private package method. See PicassoTools class for details.
         PicassoTools.clearCache(mPicasso);
     }
 
+    @Override
+    public void trimMemory(int level) {
+        double ratio = getTrimRatio(level);
+        if (ratio <= 0) {
+            return;
+        }
+
+        Log.d(TAG, "trimMemory() - Releasing " + (int) (ratio * 100) + "% of the memory cache");
+
+        // Another hack, since Picasso only exposes the whole cache. See PicassoTools class for details.
+        PicassoTools.trimCache(mPicasso, ratio);
+    }
+
     private boolean clearDiskCache() {
     	Log.d(TAG, "clearDiskCache()");
     	
@@ -212,10 +294,13 @@ public class PicassoImageLoaderManager extends ImageLoaderManager {
      * This method will be called when our adapter detects a view is detached from the window. Then we can cancel the pending request
      * related to the image that is out of visibility
      *
-     * @param url
+     * @param imageModel
      */
     @Override
-    public void onViewDetachedFromWindow(String url) {
+    public void onViewDetachedFromWindow(ImageModel imageModel) {
+        cancelMetrics(imageModel.getImageView());
+
+        String url = imageModel.getUrl();
         synchronized (sync) {
             Target target = targetList.get(url);
             if (target != null) {
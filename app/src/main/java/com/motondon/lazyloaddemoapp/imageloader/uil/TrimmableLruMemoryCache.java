@@ -0,0 +1,100 @@
+package com.motondon.lazyloaddemoapp.imageloader.uil;
+
+import android.graphics.Bitmap;
+
+import com.nostra13.universalimageloader.cache.memory.MemoryCache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Same as UIL's LruMemoryCache (the default one), plus trim(), so that part of the cache can be released when the system is
+ * low on memory. LruMemoryCache can only be cleared, and its keys() are not in LRU order, so there is no way to release just
+ * the least recently used images from the outside.
+ *
+ */
+public class TrimmableLruMemoryCache implements MemoryCache {
+
+    private final int maxSize;
+
+    // Last argument true for LRU ordering. Guarded by "this".
+    private final LinkedHashMap<String, Bitmap> map = new LinkedHashMap<>(0, 0.75f, true);
+    private int size;
+
+    public TrimmableLruMemoryCache(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        this.maxSize = maxSize;
+    }
+
+    @Override
+    public synchronized Bitmap get(String key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        return map.get(key);
+    }
+
+    @Override
+    public synchronized boolean put(String key, Bitmap value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+
+        size += value.getByteCount();
+        Bitmap previous = map.put(key, value);
+        if (previous != null) {
+            size -= previous.getByteCount();
+        }
+
+        trimToSize(maxSize);
+        return true;
+    }
+
+    @Override
+    public synchronized Bitmap remove(String key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+
+        Bitmap previous = map.remove(key);
+        if (previous != null) {
+            size -= previous.getByteCount();
+        }
+        return previous;
+    }
+
+    @Override
+    public synchronized Collection<String> keys() {
+        return new ArrayList<>(map.keySet());
+    }
+
+    @Override
+    public synchronized void clear() {
+        map.clear();
+        size = 0;
+    }
+
+    /**
+     * Release the least recently used images until the cache is reduced by the given ratio (from 0 to 1).
+     *
+     * @param ratio
+     */
+    public synchronized void trim(double ratio) {
+        trimToSize((int) (size * (1 - ratio)));
+    }
+
+    private void trimToSize(int targetSize) {
+        Iterator<Map.Entry<String, Bitmap>> iter = map.entrySet().iterator();
+
+        //least recently accessed item will be the first one iterated
+        while (size > targetSize && iter.hasNext()) {
+            size -= iter.next().getValue().getByteCount();
+            iter.remove();
+        }
+    }
+}
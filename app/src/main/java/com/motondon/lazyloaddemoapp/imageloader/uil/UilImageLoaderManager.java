@@ -2,12 +2,16 @@ package com.motondon.lazyloaddemoapp.imageloader.uil;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.View;
 import android.widget.ImageView;
 
 import com.motondon.lazyloaddemoapp.R;
+import com.motondon.lazyloaddemoapp.imageloader.ImageLoadMetrics;
 import com.motondon.lazyloaddemoapp.imageloader.ImageLoaderManager;
+import com.motondon.lazyloaddemoapp.imageloader.NetworkConcurrency;
+import com.motondon.lazyloaddemoapp.imageloader.TimedInputStream;
 import com.motondon.lazyloaddemoapp.model.ImageModel;
 import com.nostra13.universalimageloader.cache.disc.naming.Md5FileNameGenerator;
 import com.nostra13.universalimageloader.core.DisplayImageOptions;
@@ -15,16 +19,35 @@ import com.nostra13.universalimageloader.core.ImageLoader;
 import com.nostra13.universalimageloader.core.ImageLoaderConfiguration;
 import com.nostra13.universalimageloader.core.assist.FailReason;
 import com.nostra13.universalimageloader.core.assist.ImageScaleType;
+import com.nostra13.universalimageloader.core.assist.ImageSize;
+import com.nostra13.universalimageloader.core.assist.LoadedFrom;
 import com.nostra13.universalimageloader.core.assist.QueueProcessingType;
+import com.nostra13.universalimageloader.core.decode.BaseImageDecoder;
+import com.nostra13.universalimageloader.core.decode.ImageDecodingInfo;
+import com.nostra13.universalimageloader.core.display.BitmapDisplayer;
 import com.nostra13.universalimageloader.core.display.FadeInBitmapDisplayer;
+import com.nostra13.universalimageloader.core.download.BaseImageDownloader;
+import com.nostra13.universalimageloader.core.imageaware.ImageAware;
 import com.nostra13.universalimageloader.core.listener.SimpleImageLoadingListener;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
 public class UilImageLoaderManager extends ImageLoaderManager {
 
     private static final String TAG = UilImageLoaderManager.class.getSimpleName();
 
     ImageLoader imageLoader;
 
+    // UIL is a singleton that ignores every configuration after the first one, so the memory cache of that configuration is
+    // the one in use, whatever instance of this class is
+    private static TrimmableLruMemoryCache uilMemoryCache;
+
+    // Size of the last view an image was loaded into. UIL memory cache keys contain the target size, so prefetch() must use the
+    // same size as the views in order to get memory cache hits.
+    private ImageSize lastTargetSize;
+
     public UilImageLoaderManager(Context context, boolean useDiskCache, boolean useMemoryCache) {
         super(context, useDiskCache, useMemoryCache);
 
@@ -37,12 +60,26 @@ public class UilImageLoaderManager extends ImageLoaderManager {
            ImageLoaderConfiguration.Builder config = new ImageLoaderConfiguration.Builder(mContext);
            config.threadPriority(Thread.NORM_PRIORITY - 2);
 
+           // UIL downloads and decodes in the same pool (3 threads by default). Size it for the current network and the number
+           // of cores instead. Like the rest of the configuration, only the first one counts.
+           config.threadPoolSize(NetworkConcurrency.getThreadPoolSize(mContext));
+
            config.denyCacheImageMultipleSizesInMemory();
            config.diskCacheFileNameGenerator(new Md5FileNameGenerator());
            config.diskCacheSize(50 * 1024 * 1024); // 50 MiB
+
+           // The default memory cache (and size), except that it can be trimmed. See trimMemory().
+           if (uilMemoryCache == null) {
+               uilMemoryCache = new TrimmableLruMemoryCache((int) (Runtime.getRuntime().maxMemory() / 8));
+           }
+           config.memoryCache(uilMemoryCache);
            config.tasksProcessingOrder(QueueProcessingType.LIFO);
            config.writeDebugLogs(); // Remove for release app
 
+           // The default downloader and decoder, measuring how long each request spends in them. See MetricsImageDownloader.
+           config.imageDownloader(new MetricsImageDownloader(mContext));
+           config.imageDecoder(new MetricsImageDecoder(true));
+
            imageLoader = ImageLoader.getInstance();
            imageLoader.init(config.build());
 
@@ -57,11 +94,17 @@ public class UilImageLoaderManager extends ImageLoaderManager {
      * @param imageModel
      */
     @Override
-    public void loadImage(ImageModel imageModel) {
+    public void loadImage(final ImageModel imageModel) {
         Log.d(TAG, "loadImage() - Loading image from URL: " + imageModel.getUrl());
 
         final String url = imageModel.getUrl();
         final ImageView imageView = imageModel.getImageView();
+
+        final ImageLoadMetrics.Builder metrics = startMetrics(imageModel);
+
+        if (imageView.getWidth() > 0 && imageView.getHeight() > 0) {
+            lastTargetSize = new ImageSize(imageView.getWidth(), imageView.getHeight());
+        }
         
         DisplayImageOptions.Builder options = new DisplayImageOptions.Builder();
         if (memoryCache) {
@@ -85,6 +128,9 @@ public class UilImageLoaderManager extends ImageLoaderManager {
         //  Image will be scaled exactly to the target size
         options.imageScaleType(ImageScaleType.EXACTLY);
 
+        // Decode to the configured config (ARGB_8888 by default). UIL applies it to every image, whether it has alpha or not.
+        options.bitmapConfig(bitmapConfig);
+
         // Set a placeholder image to be displayed while image is being loaded
         options.showImageOnLoading(R.drawable.ic_placeholder);
 
@@ -92,7 +138,10 @@ public class UilImageLoaderManager extends ImageLoaderManager {
         options.showImageOnFail(R.drawable.no_cover);
 
         // Show a fade for 300 ms when displaying image
-        options.displayer(new FadeInBitmapDisplayer(300));
+        options.displayer(new MetricsBitmapDisplayer(new FadeInBitmapDisplayer(300), metrics));
+
+        // UIL passes this object to the downloader and the decoder of this request, so they can record their times in it
+        options.extraForDownloader(metrics);
 
         DisplayImageOptions displayOptions = options.build();
 
@@ -128,16 +177,79 @@ public class UilImageLoaderManager extends ImageLoaderManager {
                 }
 
                 Log.e(TAG, "loadImage::onLoadingFailed() - Error while loading image: " + url + ". Message: " + message);
+                finishMetrics(imageModel, null);
+            }
+
+            @Override
+            public void onLoadingCancelled(String imageUri, View view) {
+                // The view was rebound to another url, so startMetrics() has already reported this request as cancelled
             }
 
             @Override
             public void onLoadingComplete(String imageUri, View view, Bitmap loadedImage) {
             	Log.d(TAG, "loadImage::onLoadingComplete() - Download for image: " + imageUri + " finished successfully");
                 imageView.setImageBitmap(loadedImage);
+                finishMetrics(imageModel, loadedImage);
             }
         });
     }
 
+    /**
+     * Load the images without a view. Only the caches are filled, nothing is displayed.
+     *
+     * @param urls
+     */
+    @Override
+    public void prefetch(List<String> urls) {
+        if (!memoryCache && !diskCache) {
+            // There is no cache to warm
+            return;
+        }
+
+        if (lastTargetSize == null) {
+            // No view was measured yet, so the memory cache keys would not match the ones of the visible requests
+            return;
+        }
+
+        DisplayImageOptions options = new DisplayImageOptions.Builder()
+                .cacheInMemory(memoryCache)
+                .cacheOnDisk(diskCache)
+                .imageScaleType(ImageScaleType.EXACTLY)
+                .bitmapConfig(bitmapConfig)
+                .build();
+
+        for (String url : urls) {
+            imageLoader.loadImage(url, lastTargetSize, options, null);
+        }
+    }
+
+    @Override
+    public void pause() {
+        imageLoader.pause();
+    }
+
+    @Override
+    public void resume() {
+        imageLoader.resume();
+    }
+
+    @Override
+    public void clearMemoryCache() {
+        Log.d(TAG, "clearMemoryCache()");
+        imageLoader.clearMemoryCache();
+    }
+
+    @Override
+    public void trimMemory(int level) {
+        double ratio = getTrimRatio(level);
+        if (ratio <= 0 || uilMemoryCache == null) {
+            return;
+        }
+
+        Log.d(TAG, "trimMemory() - Releasing " + (int) (ratio * 100) + "% of the memory cache");
+        uilMemoryCache.trim(ratio);
+    }
+
     @Override
     public void clearCache() {
         Log.d(TAG, "clearCache() - Clearing both disk and memory caches");
@@ -147,7 +259,103 @@ public class UilImageLoaderManager extends ImageLoaderManager {
     }
 
     @Override
-    public void onViewDetachedFromWindow(String url) {
-        // Not used by UIL
+    public void onViewDetachedFromWindow(ImageModel imageModel) {
+        // UIL does not cancel the request, but the view is not waiting for it anymore
+        cancelMetrics(imageModel.getImageView());
    }
+
+    /**
+     * UIL passes the LoadedFrom to the displayer only, so this one records it and then delegates the display. It is called in the
+     * UI thread before the ImageLoadingListener.
+     */
+    private static class MetricsBitmapDisplayer implements BitmapDisplayer {
+
+        private final BitmapDisplayer delegate;
+        private final ImageLoadMetrics.Builder metrics;
+
+        MetricsBitmapDisplayer(BitmapDisplayer delegate, ImageLoadMetrics.Builder metrics) {
+            this.delegate = delegate;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void display(Bitmap bitmap, ImageAware imageAware, LoadedFrom loadedFrom) {
+            switch (loadedFrom) {
+                case MEMORY_CACHE:
+                    metrics.setSource(ImageLoadMetrics.Source.MEMORY);
+                    break;
+                case DISC_CACHE:
+                    metrics.setSource(ImageLoadMetrics.Source.DISK);
+                    break;
+                case NETWORK:
+                    metrics.setSource(ImageLoadMetrics.Source.NETWORK);
+                    break;
+            }
+
+            delegate.display(bitmap, imageAware, loadedFrom);
+        }
+    }
+
+    /**
+     * The default downloader, recording the network time of the requests made by loadImage() (their ImageLoadMetrics.Builder
+     * is the extra UIL passes along). UIL also reads its disk cache files through the downloader, so only http(s) urls count.
+     *
+     * The first call for a request also marks the end of its queue wait, since it means a UIL worker started working on it.
+     */
+    private static class MetricsImageDownloader extends BaseImageDownloader {
+
+        MetricsImageDownloader(Context context) {
+            super(context);
+        }
+
+        @Override
+        public InputStream getStream(String imageUri, Object extra) throws IOException {
+            if (!(extra instanceof ImageLoadMetrics.Builder)) {
+                return super.getStream(imageUri, extra);
+            }
+
+            final ImageLoadMetrics.Builder metrics = (ImageLoadMetrics.Builder) extra;
+            long requestTime = SystemClock.elapsedRealtimeNanos();
+            metrics.setStartedAt(requestTime);
+
+            InputStream in = super.getStream(imageUri, extra);
+
+            Scheme scheme = Scheme.ofUri(imageUri);
+            if (scheme != Scheme.HTTP && scheme != Scheme.HTTPS) {
+                return in;
+            }
+
+            return new TimedInputStream(in, requestTime, new TimedInputStream.Callback() {
+                @Override
+                public void onFinished(double elapsedTime) {
+                    metrics.setNetworkTime(elapsedTime);
+                }
+            });
+        }
+    }
+
+    /**
+     * The default decoder, recording the decode time of the requests made by loadImage().
+     */
+    private static class MetricsImageDecoder extends BaseImageDecoder {
+
+        MetricsImageDecoder(boolean loggingEnabled) {
+            super(loggingEnabled);
+        }
+
+        @Override
+        public Bitmap decode(ImageDecodingInfo decodingInfo) throws IOException {
+            if (!(decodingInfo.getExtraForDownloader() instanceof ImageLoadMetrics.Builder)) {
+                return super.decode(decodingInfo);
+            }
+
+            ImageLoadMetrics.Builder metrics = (ImageLoadMetrics.Builder) decodingInfo.getExtraForDownloader();
+            long start = SystemClock.elapsedRealtimeNanos();
+            metrics.setStartedAt(start);
+
+            Bitmap bitmap = super.decode(decodingInfo);
+            metrics.setDecodeTime((SystemClock.elapsedRealtimeNanos() - start) / 1e6);
+            return bitmap;
+        }
+    }
 }
\ No newline at end of file
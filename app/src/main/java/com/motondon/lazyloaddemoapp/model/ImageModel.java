@@ -11,16 +11,59 @@ public class ImageModel {
     private String url;
     private ImageView imageView;
 
+    // Size (in pixels) the image will be displayed at. Used by the manual engine to decode the image straight to that size.
+    private int targetWidth;
+    private int targetHeight;
+
+    // Low resolution version of the image (or null), shown while the image itself is being loaded. Only used by the manual engine.
+    private String thumbnailUrl;
+
+    // Set by the manual engine when the request is made, so that it is built only once
+    private String requestKey;
+
     public ImageModel(String url, ImageView imageView) {
         this.url = url;
         this.imageView = imageView;
     }
 
+    public ImageModel(String url, String thumbnailUrl, ImageView imageView) {
+        this(url, imageView);
+        this.thumbnailUrl = thumbnailUrl;
+    }
+
     public String getUrl() {
         return url;
     }
 
+    public String getThumbnailUrl() {
+        return thumbnailUrl;
+    }
+
     public ImageView getImageView() {
         return imageView;
     }
+
+    public int getTargetWidth() {
+        return targetWidth;
+    }
+
+    public int getTargetHeight() {
+        return targetHeight;
+    }
+
+    public void setTargetSize(int targetWidth, int targetHeight) {
+        this.targetWidth = targetWidth;
+        this.targetHeight = targetHeight;
+
+        // The request key contains the target size
+        this.requestKey = null;
+    }
+
+    public String getRequestKey() {
+        return requestKey;
+    }
+
+    public void setRequestKey(String requestKey) {
+        this.requestKey = requestKey;
+    }
 }
\ No newline at end of file
@@ -1,10 +1,14 @@
 package com.motondon.lazyloaddemoapp.presenter;
 
+import android.graphics.Bitmap;
 import android.widget.ImageView;
 
+import com.motondon.lazyloaddemoapp.imageloader.ImageLoadListener;
 import com.motondon.lazyloaddemoapp.model.ImageDownloaderEngine;
 import com.motondon.lazyloaddemoapp.model.ImageModel;;
 
+import java.util.List;
+
 /**
  * Created by Joca on 4/19/2016.
  */
@@ -18,7 +22,23 @@ public interface MainPresenter {
 
     void setDiskCache(Boolean useDiskCache);
 
+    void setBitmapConfig(Bitmap.Config bitmapConfig);
+
     void setDownloadEngine(ImageDownloaderEngine downloadEngine);
 
-    void onViewDetachedFromWindow(String url);
+    void onViewDetachedFromWindow(ImageModel imageModel);
+
+    void onViewRecycled(ImageModel imageModel);
+
+    void prefetch(List<String> urls);
+
+    void pause();
+
+    void resume();
+
+    void runBenchmark(boolean useLargeImages);
+
+    void setImageLoadListener(ImageLoadListener imageLoadListener);
+
+    void release();
 }
\ No newline at end of file
@@ -1,30 +1,51 @@
 package com.motondon.lazyloaddemoapp.presenter;
 
 import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.Log;
 import android.widget.ImageView;
 
+import com.motondon.lazyloaddemoapp.benchmark.BenchmarkResult;
+import com.motondon.lazyloaddemoapp.benchmark.BenchmarkRunner;
+import com.motondon.lazyloaddemoapp.imageloader.ImageLoadListener;
+import com.motondon.lazyloaddemoapp.imageloader.ImageLoadMetrics;
 import com.motondon.lazyloaddemoapp.imageloader.ImageLoaderManager;
-import com.motondon.lazyloaddemoapp.imageloader.fresco.FrescoImageLoaderManager;
-import com.motondon.lazyloaddemoapp.imageloader.glide.GlideImageLoaderManager;
-import com.motondon.lazyloaddemoapp.imageloader.manual.manager.ManualImageLoaderManager;
-import com.motondon.lazyloaddemoapp.imageloader.picasso.PicassoImageLoaderManager;
-import com.motondon.lazyloaddemoapp.imageloader.uil.UilImageLoaderManager;
+import com.motondon.lazyloaddemoapp.imageloader.ImageLoaderManagerFactory;
 import com.motondon.lazyloaddemoapp.model.ImageDownloaderEngine;
 import com.motondon.lazyloaddemoapp.model.ImageModel;
 import com.motondon.lazyloaddemoapp.view.MainFragment;
 
+import java.util.List;
+
 /**
  * Created by Joca on 4/11/2016.
  */
 public class MainPresenterImpl implements MainPresenter {
 
+    private static final String TAG = MainPresenterImpl.class.getSimpleName();
+
     private Context mContext;
     private MainFragment mView;
+    // Null while the benchmark runs (see runBenchmark()) and after release()
     private ImageLoaderManager imageLoaderManager;
 
+    // Engine of imageLoaderManager, so that it can be created again after the benchmark
+    private ImageDownloaderEngine downloadEngine;
+    private boolean benchmarkRunning = false;
+    private boolean released = false;
+
     private Boolean useDiskCache = true;
     private Boolean useMemoryCache = true;
-
+    private Bitmap.Config bitmapConfig = Bitmap.Config.ARGB_8888;
+
+    // Receives the metrics of every image request, whatever the engine. By default they are just logged (this replaces the
+    // Picasso indicators, which do not work with targets), but they can be exported to a telemetry service instead.
+    private ImageLoadListener imageLoadListener = new ImageLoadListener() {
+        @Override
+        public void onImageLoaded(ImageLoadMetrics metrics) {
+            Log.d(TAG, "onImageLoaded() - " + metrics);
+        }
+    };
 
     public MainPresenterImpl(Context context, MainFragment mainFragment) {
         this.mView = mainFragment;
@@ -33,61 +54,176 @@ public class MainPresenterImpl implements MainPresenter {
 
     @Override
     public void loadImage(ImageModel imageModel) {
-        imageLoaderManager.loadImage(imageModel);
+        if (imageLoaderManager != null) {
+            imageLoaderManager.loadImage(imageModel);
+        }
     }
 
     @Override
     public void clearCache() {
-        imageLoaderManager.clearCache();
+        if (imageLoaderManager != null) {
+            imageLoaderManager.clearCache();
+        }
     }
 
     @Override
     public void setMemoryCache(Boolean useMemoryCache) {
         this.useMemoryCache = useMemoryCache;
-        imageLoaderManager.setMemoryCache(useMemoryCache);
+        if (imageLoaderManager != null) {
+            imageLoaderManager.setMemoryCache(useMemoryCache);
+        }
     }
 
     @Override
     public void setDiskCache(Boolean useDiskCache) {
         this.useDiskCache = useDiskCache;
-        imageLoaderManager.setDiskCache(useDiskCache);
+        if (imageLoaderManager != null) {
+            imageLoaderManager.setDiskCache(useDiskCache);
+        }
     }
 
+    /**
+     * The bitmaps already in the memory cache were decoded to the previous config, so they are released and the visible images
+     * will be decoded again (from the disk cache, when it is ON).
+     *
+     * @param bitmapConfig
+     */
     @Override
-    public void setDownloadEngine(ImageDownloaderEngine downloadEngine) {
+    public void setBitmapConfig(Bitmap.Config bitmapConfig) {
+        this.bitmapConfig = bitmapConfig;
+        if (imageLoaderManager != null) {
+            imageLoaderManager.setBitmapConfig(bitmapConfig);
+            imageLoaderManager.clearDecodedMemoryCache();
+        }
+    }
 
-        switch (downloadEngine) {
-            case MANUAL:
-                this.imageLoaderManager = new ManualImageLoaderManager(mContext, useDiskCache, useMemoryCache);
-                break;
+    @Override
+    public void setDownloadEngine(ImageDownloaderEngine downloadEngine) {
+        this.downloadEngine = downloadEngine;
 
-            case PICASSO:
-                this.imageLoaderManager = new PicassoImageLoaderManager(mContext, useDiskCache, useMemoryCache);
-                break;
+        // Created when the benchmark is finished
+        if (benchmarkRunning) {
+            return;
+        }
 
-            case GLIDE:
-                this.imageLoaderManager = new GlideImageLoaderManager(mContext, useDiskCache, useMemoryCache);
-                break;
+        createImageLoaderManager();
+        clearCache();
 
-            case UIL:
-                this.imageLoaderManager = new UilImageLoaderManager(mContext, useDiskCache, useMemoryCache);
-                break;
+        mView.onResetAdapter();
+    }
 
-            case FRESCO:
-                this.imageLoaderManager = new FrescoImageLoaderManager(mContext, useDiskCache, useMemoryCache);
-                break;
+    private void createImageLoaderManager() {
+        // The previous engine must stop listening to the memory callbacks (and the manual one must stop its threads)
+        if (this.imageLoaderManager != null) {
+            this.imageLoaderManager.release();
         }
-        
-        clearCache();
+
+        this.imageLoaderManager = ImageLoaderManagerFactory.create(mContext, downloadEngine, useDiskCache, useMemoryCache);
+        this.imageLoaderManager.setImageLoadListener(imageLoadListener);
 
         setDiskCache(useDiskCache);
         setMemoryCache(useMemoryCache);
+        imageLoaderManager.setBitmapConfig(bitmapConfig);
+    }
 
-        mView.onResetAdapter();
+    @Override
+    public void onViewDetachedFromWindow(ImageModel imageModel) {
+        if (this.imageLoaderManager != null) {
+            this.imageLoaderManager.onViewDetachedFromWindow(imageModel);
+        }
+    }
+
+    @Override
+    public void onViewRecycled(ImageModel imageModel) {
+        if (this.imageLoaderManager != null) {
+            this.imageLoaderManager.onViewRecycled(imageModel);
+        }
+    }
+
+    @Override
+    public void prefetch(List<String> urls) {
+        if (this.imageLoaderManager != null) {
+            this.imageLoaderManager.prefetch(urls);
+        }
+    }
+
+    /**
+     * Load the image set through every engine against a local server and report the measurements to the view. See
+     * BenchmarkRunner for details.
+     *
+     * The engine of the list is released while the benchmark runs, since the benchmark configures the same engines (most of them
+     * are singletons), and it is created again afterwards. Its disk cache is kept.
+     *
+     * @param useLargeImages
+     */
+    @Override
+    public void runBenchmark(boolean useLargeImages) {
+        if (benchmarkRunning) {
+            return;
+        }
+        benchmarkRunning = true;
+
+        if (imageLoaderManager != null) {
+            imageLoaderManager.release();
+            imageLoaderManager = null;
+        }
+
+        BenchmarkRunner benchmarkRunner = new BenchmarkRunner(mContext, useLargeImages, bitmapConfig, new BenchmarkRunner.Callback() {
+            @Override
+            public void onProgress(String message) {
+                mView.onBenchmarkProgress(message);
+            }
+
+            @Override
+            public void onFinished(List<BenchmarkResult> results) {
+                benchmarkRunning = false;
+                if (!released && downloadEngine != null) {
+                    createImageLoaderManager();
+                    mView.onResetAdapter();
+                }
+                mView.onBenchmarkFinished(results);
+            }
+        });
+        benchmarkRunner.start();
     }
 
+    /**
+     * Replace the listener that receives the metrics of every image request. It is kept when the engine is changed.
+     *
+     * @param imageLoadListener
+     */
     @Override
-    public void onViewDetachedFromWindow(String url) {
-        this.imageLoaderManager.onViewDetachedFromWindow(url);
+    public void setImageLoadListener(ImageLoadListener imageLoadListener) {
+        this.imageLoadListener = imageLoadListener;
+        if (imageLoaderManager != null) {
+            imageLoaderManager.setImageLoadListener(imageLoadListener);
+        }
+    }
+
+    /**
+     * Release the current engine (its memory callbacks, threads and caches). Called when the view goes away, since the engine is
+     * registered in the application context and would otherwise outlive it (e.g.: on every rotation).
+     */
+    @Override
+    public void release() {
+        released = true;
+        if (this.imageLoaderManager != null) {
+            this.imageLoaderManager.release();
+            this.imageLoaderManager = null;
+        }
+    }
+
+    @Override
+    public void pause() {
+        if (this.imageLoaderManager != null) {
+            this.imageLoaderManager.pause();
+        }
+    }
+
+    @Override
+    public void resume() {
+        if (this.imageLoaderManager != null) {
+            this.imageLoaderManager.resume();
+        }
     }
 }
@@ -16,6 +16,9 @@
 
 package com.motondon.lazyloaddemoapp.provider;
 
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * This class contains all the images used by this app
  * 
@@ -228,4 +231,23 @@ public class Images {
             "https://lh5.googleusercontent.com/-kI_QdYx7VlU/URqvLXCB6gI/AAAAAAAAAbs/N31vlZ6u89o/s240-c/Yet%252520Another%252520Rockaway%252520Sunset.jpg",
             "https://lh4.googleusercontent.com/-e9NHZ5k5MSs/URqvMIBZjtI/AAAAAAAAAbs/1fV810rDNfQ/s240-c/Yosemite%252520Tree.jpg",
     };
+
+    // imageUrls[i] and imageThumbUrls[i] are the same photo. Built on the first call to getThumbnailUrl().
+    private static Map<String, String> thumbnailUrls;
+
+    /**
+     * Returns the url of the thumbnail of a large image, or null if the url is not one of the large images.
+     *
+     * @param imageUrl
+     * @return
+     */
+    public static synchronized String getThumbnailUrl(String imageUrl) {
+        if (thumbnailUrls == null) {
+            thumbnailUrls = new HashMap<>();
+            for (int i = 0; i < imageUrls.length && i < imageThumbUrls.length; i++) {
+                thumbnailUrls.put(imageUrls[i], imageThumbUrls[i]);
+            }
+        }
+        return thumbnailUrls.get(imageUrl);
+    }
 }
@@ -10,8 +10,10 @@ import android.widget.TextView;
 
 import com.motondon.lazyloaddemoapp.R;
 import com.motondon.lazyloaddemoapp.model.ImageModel;
+import com.motondon.lazyloaddemoapp.provider.Images;
 
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 
 public class ImageAdapter extends RecyclerView.Adapter<ImageAdapter.ViewHolder>{
@@ -54,21 +56,61 @@ public class ImageAdapter extends RecyclerView.Adapter<ImageAdapter.ViewHolder>{
     @Override
     public void onViewDetachedFromWindow(ViewHolder holder) {
         super.onViewDetachedFromWindow(holder);
-        mainFragment.onViewDetachedFromWindow(holder.url);
+        holder.detached = true;
+        mainFragment.onViewDetachedFromWindow(new ImageModel(holder.url, holder.cover));
+    }
+
+    /**
+     * The view is going to be bound to another image (or dropped), so let the engine release what it holds for the current one.
+     *
+     * @param holder
+     */
+    @Override
+    public void onViewRecycled(ViewHolder holder) {
+        super.onViewRecycled(holder);
+        mainFragment.onViewRecycled(new ImageModel(holder.url, holder.cover));
+    }
+
+    /**
+     * RecyclerView can attach a view again without rebinding it (e.g.: when user scrolls back a few rows). Since its download
+     * might have been cancelled when it was detached, request its image again.
+     *
+     * @param holder
+     */
+    @Override
+    public void onViewAttachedToWindow(ViewHolder holder) {
+        super.onViewAttachedToWindow(holder);
+        if (holder.detached && holder.url != null) {
+            holder.detached = false;
+            mainFragment.loadImage(new ImageModel(holder.url, Images.getThumbnailUrl(holder.url), holder.cover));
+        }
     }
 
     @Override
     public void onBindViewHolder(ViewHolder holder, int position) {
         String imageUrl = images.get(position);
 
-        mainFragment.loadImage(new ImageModel(imageUrl, holder.cover));
+        // When showing the large images, their thumbnails (which are much smaller) can be shown until they are loaded
+        mainFragment.loadImage(new ImageModel(imageUrl, Images.getThumbnailUrl(imageUrl), holder.cover));
 
         holder.url = imageUrl;
+        holder.detached = false;
         holder.title.setText("Image Title");
         holder.voteAverage.setText("Vote Average: " + r.nextInt(100 - 0) + 0);
     }
 
 
+    /**
+     * Returns the urls of the items in the given range [start, end). Used to prefetch the rows that are about to be shown.
+     *
+     * @param start
+     * @param end
+     * @return
+     */
+    public List<String> getUrls(int start, int end) {
+        return new ArrayList<>(images.subList(start, Math.min(end, images.size())));
+    }
+
     @Override
     public int getItemCount() {
         return images.size();
@@ -81,6 +123,9 @@ public class ImageAdapter extends RecyclerView.Adapter<ImageAdapter.ViewHolder>{
         private TextView voteAverage;
         private String url;
 
+        // Whether this view was detached from the window after it was bound
+        private boolean detached;
+
         public ViewHolder(View itemView) {
             super(itemView);
             title = (TextView) itemView.findViewById(R.id.title);
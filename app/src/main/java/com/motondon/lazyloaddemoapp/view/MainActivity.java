@@ -239,6 +239,17 @@ public class MainActivity extends AppCompatActivity {
 
                 mFragment.useDiskCache(item.isChecked());
                 break;
+
+            case R.id.nav_use_rgb_565:
+                item.setChecked(!item.isChecked());
+
+                mFragment.useRgb565(item.isChecked());
+                Toast.makeText(this, "Memory caches cleared since changed bitmap config", Toast.LENGTH_SHORT).show();
+                break;
+
+            case R.id.nav_run_benchmark:
+                mFragment.runBenchmark();
+                break;
         }
 
         // Close the navigation drawer
@@ -1,17 +1,25 @@
 package com.motondon.lazyloaddemoapp.view;
 
+import android.app.ProgressDialog;
+import android.graphics.Bitmap;
+import android.graphics.Typeface;
 import android.os.Bundle;
 import android.support.annotation.Nullable;
 import android.support.v4.app.Fragment;
+import android.support.v7.app.AlertDialog;
 import android.support.v7.widget.GridLayoutManager;
 import android.support.v7.widget.RecyclerView;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.HorizontalScrollView;
+import android.widget.ScrollView;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import com.motondon.lazyloaddemoapp.R;
+import com.motondon.lazyloaddemoapp.benchmark.BenchmarkResult;
 import com.motondon.lazyloaddemoapp.model.ImageDownloaderEngine;
 import com.motondon.lazyloaddemoapp.model.ImageModel;
 import com.motondon.lazyloaddemoapp.presenter.MainPresenter;
@@ -20,6 +28,7 @@ import com.motondon.lazyloaddemoapp.provider.Images;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 /**
  * Created by Joca on 4/12/2016.
@@ -39,6 +48,9 @@ public class MainFragment extends Fragment {
     // Used to clear the image cache when changing from small to large image size
     private boolean useLargeImages = false;
 
+    // Shown while the benchmark is running
+    private ProgressDialog benchmarkDialog;
+
     @Nullable
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
@@ -48,6 +60,22 @@ public class MainFragment extends Fragment {
 
         recyclerView = (RecyclerView) root.findViewById(R.id.recycler);
 
+        // Warm the caches with the images of the rows the user is about to scroll to
+        recyclerView.addOnScrollListener(new PrefetchScrollListener(this));
+
+        // During a fling most of the bound rows are scrolled off the screen before their images are ready, so stop loading until
+        // the list settles down (or the user touches it again).
+        recyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
+                if (newState == RecyclerView.SCROLL_STATE_SETTLING) {
+                    mainPresenterImpl.pause();
+                } else {
+                    mainPresenterImpl.resume();
+                }
+            }
+        });
+
         // Instantiate the presenter layer
         mainPresenterImpl = new MainPresenterImpl(getContext(), this);
 
@@ -57,6 +85,18 @@ public class MainFragment extends Fragment {
         return root;
     }
 
+    /**
+     * The presenter is created with the view, so its engine is released with it. Otherwise every rotation would leave an engine
+     * behind, kept alive by the callbacks it registered in the application context.
+     */
+    @Override
+    public void onDestroyView() {
+        Log.d(TAG, "onDestroyView()");
+
+        mainPresenterImpl.release();
+        super.onDestroyView();
+    }
+
     public void setImageSize(boolean largeImage) {
     	Log.d(TAG, "setImageSize() - largeImage: " + largeImage);
     	
@@ -82,6 +122,11 @@ public class MainFragment extends Fragment {
         mainPresenterImpl.setDiskCache(diskCache);
     }
 
+    public void useRgb565(boolean rgb565) {
+        Log.d(TAG, "useRgb565() - rgb565: " + rgb565);
+        mainPresenterImpl.setBitmapConfig(rgb565 ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888);
+    }
+
     public void setDownloadEngine(ImageDownloaderEngine downloadEngine) {
     	Log.d(TAG, "setDownloadEngine() - downloadEngine: " + downloadEngine);
         this.downloadEngine = downloadEngine;
@@ -100,8 +145,68 @@ public class MainFragment extends Fragment {
         recyclerView.setAdapter(adapter);
     }
 
-    public void onViewDetachedFromWindow(String url) {
-        mainPresenterImpl.onViewDetachedFromWindow(url);
+    public void onViewDetachedFromWindow(ImageModel imageModel) {
+        mainPresenterImpl.onViewDetachedFromWindow(imageModel);
+    }
+
+    public void onViewRecycled(ImageModel imageModel) {
+        mainPresenterImpl.onViewRecycled(imageModel);
+    }
+
+    public void runBenchmark() {
+        Log.d(TAG, "runBenchmark() - useLargeImages: " + useLargeImages);
+
+        benchmarkDialog = new ProgressDialog(getContext());
+        benchmarkDialog.setTitle("Benchmark");
+        benchmarkDialog.setCancelable(false);
+        benchmarkDialog.show();
+
+        mainPresenterImpl.runBenchmark(useLargeImages);
+    }
+
+    public void onBenchmarkProgress(String message) {
+        if (benchmarkDialog != null) {
+            benchmarkDialog.setMessage(message);
+        }
+    }
+
+    public void onBenchmarkFinished(List<BenchmarkResult> results) {
+        if (benchmarkDialog != null) {
+            benchmarkDialog.dismiss();
+            benchmarkDialog = null;
+        }
+
+        if (getContext() == null) {
+            // Fragment is gone. Results are still in the log.
+            return;
+        }
+
+        StringBuilder sb = new StringBuilder(BenchmarkResult.getHeader());
+        for (BenchmarkResult result : results) {
+            sb.append('\n').append(result);
+        }
+
+        // The table is wider than the screen, so let it scroll in both directions
+        TextView textView = new TextView(getContext());
+        textView.setTypeface(Typeface.MONOSPACE);
+        textView.setTextSize(10);
+        textView.setText(sb);
+
+        HorizontalScrollView horizontalScrollView = new HorizontalScrollView(getContext());
+        horizontalScrollView.addView(textView);
+        ScrollView scrollView = new ScrollView(getContext());
+        scrollView.addView(horizontalScrollView);
+
+        new AlertDialog.Builder(getContext())
+                .setTitle("Benchmark results")
+                .setView(scrollView)
+                .setPositiveButton("OK", null)
+                .show();
+    }
+
+    public void prefetch(List<String> urls) {
+        Log.d(TAG, "prefetch() - " + urls.size() + " images");
+        mainPresenterImpl.prefetch(urls);
     }
 
     /**
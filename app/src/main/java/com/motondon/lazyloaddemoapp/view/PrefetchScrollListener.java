@@ -0,0 +1,121 @@
+package com.motondon.lazyloaddemoapp.view;
+
+import android.os.SystemClock;
+import android.support.v7.widget.GridLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.util.Log;
+import android.view.View;
+
+import java.util.List;
+
+/**
+ * Images are only requested when their rows are bound, i.e. just when they become visible. This listener predicts the rows the
+ * user is about to scroll to and asks the current engine to prefetch their images, so that steady scrolling shows cached images
+ * instead of placeholders.
+ *
+ * The number of rows ahead grows with the scroll velocity: the faster the user scrolls, the further ahead the images must be
+ * requested in order to be ready in time.
+ *
+ */
+public class PrefetchScrollListener extends RecyclerView.OnScrollListener {
+
+    private static final String TAG = PrefetchScrollListener.class.getSimpleName();
+
+    // Rows prefetched even when scrolling slowly, and the maximum, so that a fling does not flood the engine with requests
+    private static final int MIN_ROWS_AHEAD = 2;
+    private static final int MAX_ROWS_AHEAD = 8;
+
+    // How far ahead (in time) the images should be ready
+    private static final float LOOKAHEAD_SECONDS = 0.5f;
+
+    // Weight of the latest sample in the velocity estimation (exponential moving average)
+    private static final float VELOCITY_SMOOTHING = 0.3f;
+
+    // Two scroll events further apart than this do not belong to the same movement
+    private static final long MAX_SAMPLE_INTERVAL_MS = 200;
+
+    private MainFragment mainFragment;
+
+    // Pixels per second (always positive) and the direction it refers to
+    private float velocity = 0;
+    private int direction = 0;
+    private long lastEventTime = 0;
+
+    // Last prefetched range, so that the same rows are not requested on every scroll event
+    private int lastStart = -1;
+    private int lastEnd = -1;
+
+    public PrefetchScrollListener(MainFragment mainFragment) {
+        this.mainFragment = mainFragment;
+    }
+
+    @Override
+    public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
+        if (newState == RecyclerView.SCROLL_STATE_IDLE) {
+            velocity = 0;
+        }
+    }
+
+    @Override
+    public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+        if (dy == 0) {
+            return;
+        }
+
+        updateVelocity(dy);
+
+        if (!(recyclerView.getLayoutManager() instanceof GridLayoutManager) || !(recyclerView.getAdapter() instanceof ImageAdapter)) {
+            return;
+        }
+        GridLayoutManager layoutManager = (GridLayoutManager) recyclerView.getLayoutManager();
+        ImageAdapter adapter = (ImageAdapter) recyclerView.getAdapter();
+
+        View child = recyclerView.getChildAt(0);
+        if (child == null || child.getHeight() <= 0) {
+            return;
+        }
+
+        int rowsAhead = MIN_ROWS_AHEAD + (int) (velocity * LOOKAHEAD_SECONDS / child.getHeight());
+        rowsAhead = Math.min(rowsAhead, MAX_ROWS_AHEAD);
+        int itemsAhead = rowsAhead * layoutManager.getSpanCount();
+
+        int start;
+        int end;
+        if (direction > 0) {
+            start = layoutManager.findLastVisibleItemPosition() + 1;
+            end = Math.min(adapter.getItemCount(), start + itemsAhead);
+        } else {
+            end = layoutManager.findFirstVisibleItemPosition();
+            start = Math.max(0, end - itemsAhead);
+        }
+
+        if (start < 0 || start >= end || (start == lastStart && end == lastEnd)) {
+            return;
+        }
+        lastStart = start;
+        lastEnd = end;
+
+        List<String> urls = adapter.getUrls(start, end);
+        Log.d(TAG, "onScrolled() - Prefetching items " + start + " to " + (end - 1) + " (" + rowsAhead + " rows ahead)");
+        mainFragment.prefetch(urls);
+    }
+
+    private void updateVelocity(int dy) {
+        long now = SystemClock.uptimeMillis();
+        long interval = now - lastEventTime;
+        lastEventTime = now;
+
+        int newDirection = dy > 0 ? 1 : -1;
+        if (newDirection != direction || interval > MAX_SAMPLE_INTERVAL_MS) {
+            // A new movement. Start the estimation over.
+            direction = newDirection;
+            velocity = 0;
+            return;
+        }
+
+        if (interval > 0) {
+            float sample = Math.abs(dy) * 1000f / interval;
+            velocity += VELOCITY_SMOOTHING * (sample - velocity);
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package com.squareup.picasso;
 
+import java.util.Iterator;
+
 /**
  * Since Picasso does not expose any method to clear its cache, we need to make a hack to do so.
  * 
@@ -18,4 +20,44 @@ public class PicassoTools {
     public static void clearCache (Picasso p) {
         p.cache.clear();
     }
+
+    /**
+     * Evict the least recently used images until the memory cache is reduced by the given ratio (from 0 to 1).
+     *
+     * LruCache::trimToSize() is private, but its map (package private too) is access ordered, so its first key is the least
+     * recently used one. Entries are removed through clearKeyUri(), which keeps the size of the cache right. It removes every
+     * size of the same url at once, which is fine since our views all have the same size.
+     *
+     * @param p
+     * @param ratio
+     */
+    public static void trimCache(Picasso p, double ratio) {
+        if (!(p.cache instanceof LruCache) || ratio >= 1) {
+            p.cache.clear();
+            return;
+        }
+
+        LruCache cache = (LruCache) p.cache;
+        int targetSize = (int) (cache.size() * (1 - ratio));
+
+        while (cache.size() > targetSize) {
+            String eldest;
+            synchronized (cache) {
+                Iterator<String> iter = cache.map.keySet().iterator();
+                if (!iter.hasNext()) {
+                    return;
+                }
+                eldest = iter.next();
+            }
+
+            // Keys are the uri followed by a new line and the request options
+            int separator = eldest.indexOf('\n');
+            if (separator < 0) {
+                // Unknown key format. Better release everything than loop forever.
+                cache.clear();
+                return;
+            }
+            cache.clearKeyUri(eldest.substring(0, separator));
+        }
+    }
 }
@@ -0,0 +1,138 @@
+package com.motondon.lazyloaddemoapp.benchmark;
+
+import com.motondon.lazyloaddemoapp.testutil.TestImages;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LocalImageServerTest {
+
+    private LocalImageServer server;
+    private byte[] image;
+
+    @Before
+    public void setUp() throws Exception {
+        image = TestImages.jpeg(320, 240, 1);
+
+        server = new LocalImageServer();
+        server.put("/image.jpg", image);
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.shutdown();
+    }
+
+    @Test
+    public void servesImageAndRevalidatesIt() throws Exception {
+        HttpURLConnection conn = open("/image.jpg?query=ignored");
+        assertEquals(200, conn.getResponseCode());
+        assertArrayEquals(image, readBody(conn));
+
+        String etag = conn.getHeaderField("ETag");
+        conn = open("/image.jpg");
+        conn.setRequestProperty("If-None-Match", etag);
+        assertEquals(304, conn.getResponseCode());
+        conn.disconnect();
+
+        assertEquals(404, open("/missing.jpg").getResponseCode());
+        assertEquals(3, server.getRequestCount());
+    }
+
+    @Test
+    public void delaysResponses() throws Exception {
+        server.setResponseDelay(100);
+
+        long start = System.nanoTime();
+        readBody(open("/image.jpg"));
+        assertTrue((System.nanoTime() - start) / 1000000 >= 100);
+    }
+
+    @Test
+    public void limitsBandwidth() throws Exception {
+        byte[] large = new byte[64 * 1024];
+        server.put("/large.bin", large);
+        server.setBandwidth(128 * 1024);
+
+        long start = System.nanoTime();
+        assertEquals(large.length, readBody(open("/large.bin")).length);
+
+        // Half a second at that rate, minus the first chunk, which is sent right away
+        assertTrue((System.nanoTime() - start) / 1000000 >= 400);
+    }
+
+    @Test
+    public void failsTheConfiguredFractionOfRequests() throws Exception {
+        server.setErrorRate(0.3);
+        server.setRandomSeed(42);
+
+        int failures = 0;
+        for (int i = 0; i < 200; i++) {
+            HttpURLConnection conn = open("/image.jpg");
+            if (conn.getResponseCode() == 503) {
+                failures++;
+                conn.disconnect();
+            } else {
+                assertArrayEquals(image, readBody(conn));
+            }
+        }
+
+        assertEquals(server.getErrorCount(), failures);
+        assertTrue("Unexpected number of failures: " + failures, failures > 30 && failures < 90);
+    }
+
+    @Test
+    public void truncatesBodies() throws Exception {
+        server.setTruncationRate(1);
+
+        HttpURLConnection conn = open("/image.jpg");
+        assertEquals(200, conn.getResponseCode());
+        assertEquals(image.length, conn.getContentLength());
+
+        try {
+            byte[] body = readBody(conn);
+            assertTrue(body.length < image.length);
+        } catch (IOException e) {
+            // Some clients report the premature end of the body as an error
+        }
+        assertEquals(1, server.getTruncationCount());
+
+        // The connection was closed, but the next request gets a new one
+        server.setTruncationRate(0);
+        assertArrayEquals(image, readBody(open("/image.jpg")));
+    }
+
+    private HttpURLConnection open(String path) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(server.getUrl(path)).openConnection();
+        conn.setConnectTimeout(5000);
+        conn.setReadTimeout(5000);
+        return conn;
+    }
+
+    private static byte[] readBody(HttpURLConnection conn) throws IOException {
+        InputStream in = conn.getInputStream();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
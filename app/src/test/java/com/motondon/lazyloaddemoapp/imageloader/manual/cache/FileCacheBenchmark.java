@@ -0,0 +1,101 @@
+package com.motondon.lazyloaddemoapp.imageloader.manual.cache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of FileCache.getFile(), which is called for every image that is not in the memory cache. A hit takes the cache lock,
+ * checks the file and appends a READ line to the journal. A miss only looks at the map.
+ *
+ * Run with: ./gradlew :app:jmh -Pjmh=FileCacheBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileCacheBenchmark {
+
+    @Param({ "500" })
+    public int entries;
+
+    private File cacheDir;
+    private FileCache fileCache;
+    private String[] urls;
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        final Random random = new Random();
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        cacheDir = Files.createTempDirectory("FileCacheBenchmark").toFile();
+        fileCache = new FileCache(cacheDir, Long.MAX_VALUE);
+
+        // The content does not matter, getFile() never reads it
+        byte[] body = new byte[1024];
+        urls = new String[entries];
+        for (int i = 0; i < entries; i++) {
+            urls[i] = "http://127.0.0.1/image/" + i + ".jpg";
+
+            File tempFile = fileCache.newTempFile(urls[i]);
+            OutputStream os = new FileOutputStream(tempFile);
+            try {
+                os.write(body);
+            } finally {
+                os.close();
+            }
+            fileCache.commit(urls[i], tempFile);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        fileCache.clear();
+
+        // clear() leaves an empty journal behind
+        for (File f : cacheDir.listFiles()) {
+            f.delete();
+        }
+        cacheDir.delete();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public File hit_01(ThreadState state) {
+        return fileCache.getFile(urls[state.random.nextInt(entries)]);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public File hit_04(ThreadState state) {
+        return fileCache.getFile(urls[state.random.nextInt(entries)]);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public File miss_01(ThreadState state) {
+        return fileCache.getFile("http://127.0.0.1/missing/" + state.random.nextInt(entries) + ".jpg");
+    }
+}
@@ -0,0 +1,169 @@
+package com.motondon.lazyloaddemoapp.imageloader.manual.cache;
+
+import com.motondon.lazyloaddemoapp.BuildConfig;
+import com.motondon.lazyloaddemoapp.testutil.LoadDriver;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Many threads writing, reading and removing overlapping entries at the same time. The cache is small, so that eviction runs
+ * all the time too. Every url always gets the same body, so a reader seeing any other content means that two writers (or a
+ * writer and an eviction) got mixed up.
+ *
+ * Robolectric is only needed because FileCache logs through android.util.Log.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class FileCacheConcurrencyTest {
+
+    private static final int URLS = 64;
+    private static final int THREADS = 16;
+    private static final int OPERATIONS = 20000;
+
+    // Holds about a third of the entries
+    private static final long MAX_SIZE = 256 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File cacheDir;
+    private FileCache fileCache;
+    private byte[][] bodies;
+
+    @Before
+    public void setUp() throws Exception {
+        cacheDir = folder.newFolder("cache");
+        fileCache = new FileCache(cacheDir, MAX_SIZE);
+
+        Random random = new Random(1);
+        bodies = new byte[URLS][];
+        for (int i = 0; i < URLS; i++) {
+            bodies[i] = new byte[4 * 1024 + random.nextInt(20 * 1024)];
+            random.nextBytes(bodies[i]);
+        }
+    }
+
+    @Test
+    public void concurrentWritesReadsAndRemovals() throws Exception {
+        LoadDriver.Result result = LoadDriver.run("FileCache", THREADS, OPERATIONS, new LoadDriver.Operation() {
+            @Override
+            public void run(int index) throws Exception {
+                // Same sequence on every run, regardless of which thread picks the index
+                Random random = new Random(index);
+                int url = random.nextInt(URLS);
+                int operation = random.nextInt(10);
+
+                if (operation < 5) {
+                    write(url);
+                } else if (operation < 9) {
+                    verify(url);
+                } else {
+                    fileCache.remove(url(url));
+                }
+            }
+        });
+        assertEquals(Arrays.toString(result.getErrors().toArray()), 0, result.getErrors().size());
+
+        long size = checkEntries(fileCache);
+        assertEquals(size, fileCache.size());
+        assertTrue("Cache size " + size + " above its limit", size <= MAX_SIZE);
+
+        // Every temporary file was either committed or deleted
+        File[] files = cacheDir.listFiles();
+        for (File f : files) {
+            assertTrue("Leftover temporary file " + f, !f.getName().endsWith(".tmp"));
+        }
+
+        // The journal tells the same story as the cache that wrote it
+        FileCache reopened = new FileCache(cacheDir, MAX_SIZE);
+        assertEquals(size, checkEntries(reopened));
+        assertEquals(size, reopened.size());
+    }
+
+    private void write(int url) throws IOException {
+        File tempFile = fileCache.newTempFile(url(url));
+        OutputStream os = new FileOutputStream(tempFile);
+        try {
+            os.write(bodies[url]);
+        } finally {
+            os.close();
+        }
+        fileCache.commit(url(url), tempFile);
+    }
+
+    private void verify(int url) throws IOException {
+        File f = fileCache.getFile(url(url));
+        if (f == null) {
+            return;
+        }
+
+        byte[] content;
+        try {
+            content = read(f);
+        } catch (FileNotFoundException e) {
+            // Removed or evicted by another thread after getFile() returned. A reader that already opened the file still sees
+            // its whole content, which is what matters.
+            return;
+        }
+        assertArrayEquals("Wrong content for url " + url, bodies[url], content);
+    }
+
+    /**
+     * Check the content of every entry in the cache.
+     *
+     * @param cache
+     * @return sum of the lengths of the entries
+     * @throws IOException
+     */
+    private long checkEntries(FileCache cache) throws IOException {
+        long size = 0;
+        for (int i = 0; i < URLS; i++) {
+            File f = cache.getFile(url(i));
+            if (f != null) {
+                assertArrayEquals("Wrong content for url " + i, bodies[i], read(f));
+                size += f.length();
+            }
+        }
+        return size;
+    }
+
+    private static String url(int index) {
+        return "http://127.0.0.1/image/" + index + ".jpg";
+    }
+
+    private static byte[] read(File f) throws IOException {
+        InputStream is = new FileInputStream(f);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.motondon.lazyloaddemoapp.imageloader.manual.cache;
+
+import com.motondon.lazyloaddemoapp.BuildConfig;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * A journal whose last line was cut (the process was killed while the buffered appends were being written) must only lose that
+ * line, while a journal that is corrupt anywhere else must clear the cache.
+ *
+ * Robolectric is only needed because FileCache logs through android.util.Log.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class FileCacheJournalTest {
+
+    private static final long MAX_SIZE = 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File cacheDir;
+    private File journalFile;
+
+    @Before
+    public void setUp() throws Exception {
+        cacheDir = folder.newFolder("cache");
+        journalFile = new File(cacheDir, FileCache.JOURNAL_FILE);
+
+        FileCache fileCache = new FileCache(cacheDir, MAX_SIZE);
+        write(fileCache, url(0));
+        write(fileCache, url(1));
+        fileCache.close();
+    }
+
+    @Test
+    public void truncatedLastLineIsDropped() throws Exception {
+        // Cut while "REMOVE <key>" was being written
+        append("REM");
+
+        FileCache reopened = new FileCache(cacheDir, MAX_SIZE);
+        assertNotNull(reopened.getFile(url(0)));
+        assertNotNull(reopened.getFile(url(1)));
+    }
+
+    @Test
+    public void malformedLastLineIsDropped() throws Exception {
+        append("GARBAGE\n");
+
+        FileCache reopened = new FileCache(cacheDir, MAX_SIZE);
+        assertNotNull(reopened.getFile(url(0)));
+        assertNotNull(reopened.getFile(url(1)));
+    }
+
+    @Test
+    public void malformedLineInTheMiddleClearsTheCache() throws Exception {
+        append("GARBAGE\nREAD 0123\n");
+
+        FileCache reopened = new FileCache(cacheDir, MAX_SIZE);
+        assertNull(reopened.getFile(url(0)));
+        assertNull(reopened.getFile(url(1)));
+        assertEquals(0, reopened.size());
+    }
+
+    private void append(String text) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+        try {
+            raf.seek(raf.length());
+            raf.write(text.getBytes("US-ASCII"));
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void write(FileCache fileCache, String url) throws IOException {
+        File tempFile = fileCache.newTempFile(url);
+        OutputStream os = new FileOutputStream(tempFile);
+        try {
+            os.write(new byte[1024]);
+        } finally {
+            os.close();
+        }
+        fileCache.commit(url, tempFile);
+    }
+
+    private static String url(int index) {
+        return "http://127.0.0.1/image/" + index + ".jpg";
+    }
+}
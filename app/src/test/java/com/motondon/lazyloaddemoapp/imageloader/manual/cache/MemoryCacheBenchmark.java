@@ -0,0 +1,131 @@
+package com.motondon.lazyloaddemoapp.imageloader.manual.cache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of MemoryCache lookups and inserts with 1, 4 and 16 threads, i.e. how much the workers and the UI thread slow
+ * each other down when they share the cache.
+ *
+ * Outside of Robolectric, android.graphics is just the stubs of the mockable android.jar, so there are no real values. The
+ * cache itself is a ClockCache (MemoryCache only adds the size of the values), so that is what is measured here, with plain
+ * objects as values.
+ *
+ * "get" only reads (every key is in the cache). "mixed" is what happens while scrolling: mostly reads, with an insert 1 time
+ * in 10, each one over the limit, so the clock hand sweeps all the time.
+ *
+ * Run with: ./gradlew :app:jmh -Pjmh=MemoryCacheBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MemoryCacheBenchmark {
+
+    // Pretend every value is a 200x200 ARGB_8888 thumbnail
+    private static final long BITMAP_SIZE = 200 * 200 * 4;
+
+    @Param({ "256" })
+    public int keys;
+
+    private ClockCache<Object> memoryCache;
+    private String[] ids;
+    private Object[] values;
+
+    // Keys inserted by "mixed". Each one is a new entry until the clock evicts it.
+    private String[] newIds;
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        final Random random = new Random();
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        memoryCache = new ClockCache<Object>() {
+            @Override
+            long getSizeInBytes(Object value) {
+                return BITMAP_SIZE;
+            }
+        };
+        memoryCache.setLimit(keys * BITMAP_SIZE);
+
+        ids = new String[keys];
+        values = new Object[keys];
+        for (int i = 0; i < keys; i++) {
+            ids[i] = "http://127.0.0.1/image/" + i + ".jpg#200x200";
+            values[i] = new Object();
+            memoryCache.put(ids[i], values[i]);
+        }
+
+        newIds = new String[keys * 4];
+        for (int i = 0; i < newIds.length; i++) {
+            newIds[i] = "http://127.0.0.1/image/" + i + ".jpg#100x100";
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Object get_01(ThreadState state) {
+        return get(state);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object get_04(ThreadState state) {
+        return get(state);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public Object get_16(ThreadState state) {
+        return get(state);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Object mixed_01(ThreadState state) {
+        return mixed(state);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object mixed_04(ThreadState state) {
+        return mixed(state);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public Object mixed_16(ThreadState state) {
+        return mixed(state);
+    }
+
+    private Object get(ThreadState state) {
+        return memoryCache.get(ids[state.random.nextInt(keys)]);
+    }
+
+    private Object mixed(ThreadState state) {
+        int key = state.random.nextInt(keys);
+        if (state.random.nextInt(10) == 0) {
+            // The cache is always full, so every insert evicts something
+            memoryCache.put(newIds[state.random.nextInt(newIds.length)], values[key]);
+            return null;
+        }
+        return memoryCache.get(ids[key]);
+    }
+}
@@ -0,0 +1,127 @@
+package com.motondon.lazyloaddemoapp.imageloader.manual.cache;
+
+import android.graphics.Bitmap;
+
+import com.motondon.lazyloaddemoapp.BuildConfig;
+import com.motondon.lazyloaddemoapp.testutil.LoadDriver;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Many threads adding, reading and clearing at the same time, with a limit small enough for the clock to sweep on most adds.
+ * Every bitmap that went in must have either come out through the OnEvictedListener or still be in the cache, and the size
+ * must match the bitmaps that are still there. BitmapPool relies on both.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class MemoryCacheConcurrencyTest {
+
+    private static final int KEYS = 200;
+    private static final int THREADS = 16;
+    private static final int OPERATIONS = 100000;
+
+    // Holds about a quarter of the bitmaps
+    private static final long LIMIT = KEYS / 4 * 64 * 64 * 4;
+
+    private MemoryCache memoryCache;
+    private Bitmap[] bitmaps;
+
+    private final AtomicInteger added = new AtomicInteger();
+    private final AtomicInteger evicted = new AtomicInteger();
+
+    @Before
+    public void setUp() {
+        Random random = new Random(1);
+        bitmaps = new Bitmap[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            int side = 16 + random.nextInt(96);
+            bitmaps[i] = Bitmap.createBitmap(side, side, Bitmap.Config.ARGB_8888);
+        }
+
+        memoryCache = new MemoryCache() {
+            @Override
+            long getSizeInBytes(Bitmap bitmap) {
+                return sizeOf(bitmap);
+            }
+        };
+        memoryCache.setLimit(LIMIT);
+        memoryCache.setOnEvictedListener(new MemoryCache.OnEvictedListener() {
+            @Override
+            public void onEvicted(String id, Bitmap bitmap) {
+                assertSame("Wrong bitmap evicted for " + id, bitmaps[index(id)], bitmap);
+                evicted.incrementAndGet();
+            }
+        });
+    }
+
+    @Test
+    public void concurrentAddsGetsAndClears() throws Exception {
+        LoadDriver.Result result = LoadDriver.run("MemoryCache", THREADS, OPERATIONS, new LoadDriver.Operation() {
+            @Override
+            public void run(int index) throws Exception {
+                Random random = new Random(index);
+
+                // A few keys are much hotter than the others, like the rows on the screen
+                int key = random.nextBoolean() ? random.nextInt(KEYS / 10) : random.nextInt(KEYS);
+                int operation = random.nextInt(1000);
+
+                if (operation == 0) {
+                    memoryCache.clear();
+                } else if (operation < 400) {
+                    memoryCache.addImageToCache(key(key), bitmaps[key]);
+                    added.incrementAndGet();
+                } else {
+                    Bitmap bitmap = memoryCache.getImageFromCache(key(key));
+                    if (bitmap != null) {
+                        assertSame("Wrong bitmap for " + key(key), bitmaps[key], bitmap);
+                    }
+                }
+            }
+        });
+        assertEquals(Arrays.toString(result.getErrors().toArray()), 0, result.getErrors().size());
+
+        int live = 0;
+        long size = 0;
+        for (int i = 0; i < KEYS; i++) {
+            Bitmap bitmap = memoryCache.getImageFromCache(key(i));
+            if (bitmap != null) {
+                assertSame(bitmaps[i], bitmap);
+                live++;
+                size += sizeOf(bitmap);
+            }
+        }
+
+        assertEquals("Bitmaps lost without being evicted", added.get(), evicted.get() + live);
+        assertEquals(size, memoryCache.size());
+        assertTrue("Cache size " + size + " above its limit", size <= LIMIT);
+
+        memoryCache.clear();
+        assertEquals(0, memoryCache.size());
+        assertEquals(added.get(), evicted.get());
+    }
+
+    private static long sizeOf(Bitmap bitmap) {
+        // Robolectric bitmaps have no pixels, so their allocation size cannot be trusted
+        return bitmap.getWidth() * bitmap.getHeight() * 4;
+    }
+
+    private static String key(int index) {
+        return "key-" + index;
+    }
+
+    private static int index(String key) {
+        return Integer.parseInt(key.substring("key-".length()));
+    }
+}
@@ -0,0 +1,176 @@
+package com.motondon.lazyloaddemoapp.imageloader.manual.task;
+
+import com.motondon.lazyloaddemoapp.BuildConfig;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds the limiter with made up downloads: steady ones must make the limit grow up to the maximum, slow ones and failures must
+ * make it shrink (but never below one slot), small ones must be ignored, and acquire() must never hand out more slots than the
+ * limit.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class AdaptiveConcurrencyLimiterTest {
+
+    private static final long IMAGE_SIZE = 100 * 1024;
+    private static final long SMALL_IMAGE_SIZE = 4 * 1024;
+
+    @Test
+    public void steadyDownloadsRaiseTheLimitUpToTheMaximum() throws Exception {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(2, 6);
+
+        for (int i = 0; i < 100; i++) {
+            runRound(limiter, 100);
+        }
+
+        assertEquals(6, limiter.getLimit());
+    }
+
+    @Test
+    public void slowDownloadsLowerTheLimit() throws Exception {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(8, 8);
+        runRound(limiter, 100);
+
+        // Ten times slower per KB, as when the link is saturated
+        for (int i = 0; i < 20; i++) {
+            runRound(limiter, 1000);
+        }
+
+        assertTrue("Limit is still " + limiter.getLimit(), limiter.getLimit() < 8);
+    }
+
+    @Test
+    public void smallDownloadsGiveNoSample() throws Exception {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(8, 8);
+        runRound(limiter, 100);
+
+        // A thumbnail that took long per KB tells nothing about the link (it arrived in a couple of packets)
+        for (int i = 0; i < 20; i++) {
+            runRound(limiter, SMALL_IMAGE_SIZE, 1000);
+        }
+
+        assertEquals(8, limiter.getLimit());
+    }
+
+    @Test
+    public void failuresLowerTheLimitDownToOne() throws Exception {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(4, 8);
+
+        for (int i = 0; i < 50; i++) {
+            limiter.acquire();
+            limiter.onFailed();
+        }
+
+        assertEquals(1, limiter.getLimit());
+    }
+
+    @Test
+    public void resetRestoresTheInitialLimit() throws Exception {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(4, 8);
+        final AtomicInteger notified = new AtomicInteger();
+        limiter.setOnLimitChangedListener(new AdaptiveConcurrencyLimiter.OnLimitChangedListener() {
+            @Override
+            public void onLimitChanged(int limit) {
+                notified.set(limit);
+            }
+        });
+
+        for (int i = 0; i < 50; i++) {
+            limiter.acquire();
+            limiter.onFailed();
+        }
+        assertEquals(1, notified.get());
+
+        limiter.reset(2, 3);
+        assertEquals(2, limiter.getLimit());
+        assertEquals(3, limiter.getMaxLimit());
+        assertEquals(2, notified.get());
+    }
+
+    @Test
+    public void acquireWaitsForAFreeSlot() throws Exception {
+        final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(2, 2);
+        limiter.acquire();
+        limiter.acquire();
+
+        final CountDownLatch acquired = new CountDownLatch(1);
+        Thread waiter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    limiter.acquire();
+                    acquired.countDown();
+                } catch (InterruptedException e) {
+                    // The test fails below
+                }
+            }
+        });
+        waiter.start();
+
+        assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+
+        limiter.release();
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        waiter.join();
+    }
+
+    @Test
+    public void acquireIsInterruptible() throws Exception {
+        final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 1);
+        limiter.acquire();
+
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        Thread waiter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    limiter.acquire();
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                }
+            }
+        });
+        waiter.start();
+        waiter.interrupt();
+
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+        waiter.join();
+
+        // The interrupted waiter did not take the slot
+        limiter.release();
+        limiter.acquire();
+    }
+
+    /**
+     * Take every slot, then complete all the downloads with the given time for IMAGE_SIZE bytes.
+     *
+     * @param limiter
+     * @param elapsedTime
+     * @throws InterruptedException
+     */
+    private static void runRound(AdaptiveConcurrencyLimiter limiter, double elapsedTime) throws InterruptedException {
+        runRound(limiter, IMAGE_SIZE, elapsedTime);
+    }
+
+    private static void runRound(AdaptiveConcurrencyLimiter limiter, long bytes, double elapsedTime) throws InterruptedException {
+        int slots = limiter.getLimit();
+        for (int i = 0; i < slots; i++) {
+            limiter.acquire();
+        }
+        for (int i = 0; i < slots; i++) {
+            limiter.onDownloaded(bytes, elapsedTime);
+        }
+    }
+}
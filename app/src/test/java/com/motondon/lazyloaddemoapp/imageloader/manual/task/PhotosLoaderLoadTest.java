@@ -0,0 +1,199 @@
+package com.motondon.lazyloaddemoapp.imageloader.manual.task;
+
+import android.graphics.Bitmap;
+
+import com.motondon.lazyloaddemoapp.BuildConfig;
+import com.motondon.lazyloaddemoapp.benchmark.LocalImageServer;
+import com.motondon.lazyloaddemoapp.imageloader.manual.manager.ManualImageLoaderManager;
+import com.motondon.lazyloaddemoapp.model.ImageModel;
+import com.motondon.lazyloaddemoapp.testutil.LoadDriver;
+import com.motondon.lazyloaddemoapp.testutil.TestImages;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives PhotosLoader from many threads against LocalImageServer, with several loaders for the same url running at the same
+ * time (the manager usually merges them, but prefetches, rebinds and engine restarts do not always allow it). The caches must
+ * end up holding exactly what the server sent, whatever the network does.
+ *
+ * The loaders are run on the test threads instead of through the DownloadSchedulers (every stage of a loader runs on the thread
+ * that started it), so that the number of concurrent loaders is not limited by their pool sizes.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class PhotosLoaderLoadTest {
+
+    private static final int IMAGES = 30;
+    private static final int LOADERS_PER_IMAGE = 4;
+    private static final int THREADS = 16;
+
+    private LocalImageServer server;
+    private String[] urls;
+    private byte[][] images;
+
+    private RecordingManager manager;
+
+    /**
+     * Counts the bitmaps the loaders deliver to the memory cache. Every loader delivers exactly one (null when it failed).
+     */
+    private static class RecordingManager extends ManualImageLoaderManager {
+        final AtomicInteger loaded = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+
+        RecordingManager() {
+            super(RuntimeEnvironment.application, true, true);
+        }
+
+        @Override
+        public void addMemoryCache(String requestKey, Bitmap bmp) {
+            if (bmp != null) {
+                loaded.incrementAndGet();
+            } else {
+                failed.incrementAndGet();
+            }
+            super.addMemoryCache(requestKey, bmp);
+        }
+
+        @Override
+        public void submitDownload(PhotosLoader loader) {
+            loader.run();
+        }
+
+        @Override
+        public void submitDecode(PhotosLoader loader) {
+            loader.run();
+        }
+
+        void resetCounters() {
+            loaded.set(0);
+            failed.set(0);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LocalImageServer();
+        server.setResponseDelay(5);
+
+        urls = new String[IMAGES];
+        images = new byte[IMAGES][];
+        for (int i = 0; i < IMAGES; i++) {
+            images[i] = TestImages.jpeg(400 + i * 8, 300 + i * 6, i);
+            server.put("/image/" + i + ".jpg", images[i]);
+        }
+        server.start();
+
+        for (int i = 0; i < IMAGES; i++) {
+            urls[i] = server.getUrl("/image/" + i + ".jpg");
+        }
+
+        manager = new RecordingManager();
+        manager.clearCache();
+    }
+
+    @After
+    public void tearDown() {
+        manager.clearCache();
+        manager.release();
+        server.shutdown();
+    }
+
+    @Test
+    public void coldThenWarmLoads() throws Exception {
+        LoadDriver.Result cold = runLoaders("PhotosLoader cold");
+        assertEquals(Arrays.toString(cold.getErrors().toArray()), 0, cold.getErrors().size());
+        assertEquals(IMAGES * LOADERS_PER_IMAGE, manager.loaded.get());
+        assertEquals(0, manager.failed.get());
+        checkDiskCache(true);
+
+        // Every image is now on the disk, and still fresh
+        manager.clearMemoryCache();
+        manager.resetCounters();
+        server.resetCounters();
+
+        LoadDriver.Result warm = runLoaders("PhotosLoader warm");
+        assertEquals(Arrays.toString(warm.getErrors().toArray()), 0, warm.getErrors().size());
+        assertEquals(IMAGES * LOADERS_PER_IMAGE, manager.loaded.get());
+        assertEquals(0, server.getRequestCount());
+    }
+
+    @Test
+    public void failuresNeverReachTheDiskCache() throws Exception {
+        server.setErrorRate(0.2);
+        server.setTruncationRate(0.2);
+        server.setRandomSeed(7);
+
+        LoadDriver.Result result = runLoaders("PhotosLoader with failures");
+        assertEquals(Arrays.toString(result.getErrors().toArray()), 0, result.getErrors().size());
+
+        // Each loader makes at most one request, so every failed request is a failed loader and vice versa
+        assertTrue(server.getErrorCount() + server.getTruncationCount() > 0);
+        assertEquals(server.getErrorCount() + server.getTruncationCount(), manager.failed.get());
+        assertEquals(IMAGES * LOADERS_PER_IMAGE, manager.loaded.get() + manager.failed.get());
+
+        checkDiskCache(false);
+    }
+
+    private LoadDriver.Result runLoaders(String name) throws InterruptedException {
+        return LoadDriver.run(name, THREADS, IMAGES * LOADERS_PER_IMAGE, new LoadDriver.Operation() {
+            @Override
+            public void run(int index) throws Exception {
+                // Consecutive indexes are different images, so the loaders of the same image overlap in time
+                ImageModel imageModel = new ImageModel(urls[index % IMAGES], null);
+                imageModel.setTargetSize(200, 200);
+
+                new PhotosLoader(manager, imageModel, true, true).run();
+            }
+        });
+    }
+
+    /**
+     * Every file in the disk cache must be a complete copy of what the server has for its url.
+     *
+     * @param expectAll whether every image must be in the cache
+     * @throws IOException
+     */
+    private void checkDiskCache(boolean expectAll) throws IOException {
+        for (int i = 0; i < IMAGES; i++) {
+            File f = manager.getFileCache(urls[i]);
+            if (f == null) {
+                assertTrue("Image " + i + " is not in the disk cache", !expectAll);
+                continue;
+            }
+            assertArrayEquals("Wrong content for image " + i, images[i], read(f));
+        }
+    }
+
+    private static byte[] read(File f) throws IOException {
+        InputStream is = new FileInputStream(f);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+}
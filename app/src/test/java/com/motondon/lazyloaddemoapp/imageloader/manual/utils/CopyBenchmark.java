@@ -0,0 +1,133 @@
+package com.motondon.lazyloaddemoapp.imageloader.manual.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of writing a download to the disk cache with the different copy strategies, at different buffer sizes:
+ *
+ *   - utilsCopy: Utils.copy(), i.e. a pooled heap buffer written to the FileChannel
+ *   - streamCopy: what the original Utils.CopyStream() did, a byte array loop to an OutputStream
+ *   - transferFrom: FileChannel.transferFrom() from a channel wrapping the stream
+ *   - teeThenCopy: what PhotosLoader did before it downloaded and decoded in separate stages, i.e. the decoder reads the head
+ *     of the image through a TeeInputStream (in 16 KB reads, like its BufferedInputStream) and Utils.copy() writes the rest.
+ *     PhotosLoader now copies the whole download with Utils.copy() (see utilsCopy) and decodes it afterwards.
+ *
+ * The source is in memory and the file is rewritten from its beginning every time, so this measures the copy itself, not the
+ * network or the growth of the file.
+ *
+ * Run with: ./gradlew :app:jmh -Pjmh=CopyBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CopyBenchmark {
+
+    // Same as the BufferedInputStream PhotosLoader decodes from
+    private static final int DECODER_BUFFER_SIZE = 16 * 1024;
+
+    // Part of the image the decoder reads before the rest is copied (roughly what it consumed before giving up the stream)
+    private static final int DECODER_READ = 64 * 1024;
+
+    @Param({ "1024", "8192", "65536" })
+    public int bufferSize;
+
+    // A thumbnail and a full size image
+    @Param({ "20480", "524288" })
+    public int imageSize;
+
+    private byte[] image;
+    private File file;
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+
+    @Setup
+    public void setUp() throws IOException {
+        image = new byte[imageSize];
+        new Random(1).nextBytes(image);
+
+        file = File.createTempFile("CopyBenchmark", ".tmp");
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        channel = randomAccessFile.getChannel();
+
+        Utils.setBufferSize(bufferSize);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Utils.setBufferSize(Utils.DEFAULT_BUFFER_SIZE);
+        randomAccessFile.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public long utilsCopy() throws IOException {
+        channel.position(0);
+        return Utils.copy(new ByteArrayInputStream(image), channel);
+    }
+
+    @Benchmark
+    public long streamCopy() throws IOException {
+        channel.position(0);
+
+        InputStream is = new ByteArrayInputStream(image);
+        OutputStream os = Channels.newOutputStream(channel);
+        byte[] bytes = new byte[bufferSize];
+        long total = 0;
+        int count;
+        while ((count = is.read(bytes, 0, bytes.length)) != -1) {
+            os.write(bytes, 0, count);
+            total += count;
+        }
+        return total;
+    }
+
+    @Benchmark
+    public long transferFrom() throws IOException {
+        // transferFrom() does not move the position of the channel, it takes the position as an argument
+        return channel.transferFrom(Channels.newChannel(new ByteArrayInputStream(image)), 0, image.length);
+    }
+
+    @Benchmark
+    public long teeThenCopy() throws IOException {
+        channel.position(0);
+
+        InputStream is = new ByteArrayInputStream(image);
+        TeeInputStream tee = new TeeInputStream(is, Channels.newOutputStream(channel));
+        InputStream decoder = new BufferedInputStream(tee, DECODER_BUFFER_SIZE);
+
+        byte[] bytes = new byte[DECODER_BUFFER_SIZE];
+        long decoded = 0;
+        int count;
+        while (decoded < DECODER_READ && (count = decoder.read(bytes, 0, bytes.length)) != -1) {
+            decoded += count;
+        }
+
+        return tee.getCount() + Utils.copy(is, channel);
+    }
+}
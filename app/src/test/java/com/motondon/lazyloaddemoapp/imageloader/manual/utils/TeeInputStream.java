@@ -0,0 +1,74 @@
+package com.motondon.lazyloaddemoapp.imageloader.manual.utils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * An InputStream that copies every byte read from it to an OutputStream.
+ *
+ * Lets a download be written to a file while it is being decoded, so that the bytes go through the network, the decoder and the
+ * disk only once. The manual engine no longer does that, since it decodes in a separate stage once the download is complete, so
+ * this is only kept for CopyBenchmark to compare with. The sink can be null, in which case the bytes are only counted.
+ *
+ */
+public class TeeInputStream extends FilterInputStream {
+
+    private final OutputStream sink;
+
+    // Total bytes read from the underlying stream (and so written to the sink)
+    private long count = 0;
+
+    public TeeInputStream(InputStream in, OutputStream sink) {
+        super(in);
+        this.sink = sink;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b != -1) {
+            if (sink != null)
+                sink.write(b);
+            count++;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        int read = in.read(buffer, offset, length);
+        if (read > 0) {
+            if (sink != null)
+                sink.write(buffer, offset, read);
+            count += read;
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // Skipped bytes must also reach the sink, so read them instead
+        byte[] buffer = new byte[(int) Math.min(n, 8192)];
+        long skipped = 0;
+        while (skipped < n) {
+            int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+            if (read == -1) {
+                break;
+            }
+            skipped += read;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        // Rewinding would write the same bytes twice to the sink
+        return false;
+    }
+
+    public long getCount() {
+        return count;
+    }
+}
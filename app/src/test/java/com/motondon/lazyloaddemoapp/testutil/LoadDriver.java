@@ -0,0 +1,125 @@
+package com.motondon.lazyloaddemoapp.testutil;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs an operation many times from many threads at once and measures the throughput. All the threads are released at the same
+ * time, so that they contend as much as possible, which is what makes races show up.
+ *
+ * Exceptions thrown by the operation are collected instead of stopping the run. Tests should assert that there are none.
+ *
+ */
+public class LoadDriver {
+
+    public interface Operation {
+        /**
+         * @param index from 0 to the number of operations - 1. Every index is run exactly once.
+         * @throws Exception
+         */
+        void run(int index) throws Exception;
+    }
+
+    public static class Result {
+        private final String name;
+        private final int operations;
+        private final long elapsedNanos;
+        private final List<Throwable> errors;
+
+        Result(String name, int operations, long elapsedNanos, List<Throwable> errors) {
+            this.name = name;
+            this.operations = operations;
+            this.elapsedNanos = elapsedNanos;
+            this.errors = errors;
+        }
+
+        public int getOperations() {
+            return operations;
+        }
+
+        public double getElapsedMillis() {
+            return elapsedNanos / 1e6;
+        }
+
+        /**
+         * Operations per second.
+         *
+         * @return
+         */
+        public double getThroughput() {
+            return operations / (elapsedNanos / 1e9);
+        }
+
+        public List<Throwable> getErrors() {
+            return errors;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s: %d operations in %.1fms (%.1f ops/s), %d errors",
+                    name, operations, getElapsedMillis(), getThroughput(), errors.size());
+        }
+    }
+
+    private static final long TIMEOUT_MINUTES = 5;
+
+    private LoadDriver() {
+    }
+
+    /**
+     * Run the operation "operations" times using "threads" threads. The result is also printed, so that the throughput shows
+     * up in the test output.
+     *
+     * @param name
+     * @param threads
+     * @param operations
+     * @param operation
+     * @return
+     * @throws InterruptedException
+     */
+    public static Result run(String name, int threads, final int operations, final Operation operation) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicInteger next = new AtomicInteger();
+        final List<Throwable> errors = new CopyOnWriteArrayList<>();
+
+        for (int i = 0; i < threads; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+
+                        int index;
+                        while ((index = next.getAndIncrement()) < operations) {
+                            try {
+                                operation.run(index);
+                            } catch (Throwable t) {
+                                errors.add(t);
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        errors.add(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, name + "-" + i);
+            thread.start();
+        }
+
+        long startTime = System.nanoTime();
+        start.countDown();
+        if (!done.await(TIMEOUT_MINUTES, TimeUnit.MINUTES)) {
+            errors.add(new AssertionError(name + " did not finish in " + TIMEOUT_MINUTES + " minutes"));
+        }
+
+        Result result = new Result(name, operations, System.nanoTime() - startTime, errors);
+        System.out.println(result);
+        return result;
+    }
+}
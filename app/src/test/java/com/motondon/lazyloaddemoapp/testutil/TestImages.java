@@ -0,0 +1,62 @@
+package com.motondon.lazyloaddemoapp.testutil;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Generates real JPEG files on the JVM (android.graphics is not available in the unit tests), so that the images served by
+ * LocalImageServer have realistic sizes and headers.
+ *
+ */
+public class TestImages {
+
+    private TestImages() {
+    }
+
+    /**
+     * A gradient with a few random shapes. The same seed always gives the same bytes.
+     *
+     * @param width
+     * @param height
+     * @param seed
+     * @return
+     */
+    public static byte[] jpeg(int width, int height, long seed) {
+        Random random = new Random(seed);
+
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        try {
+            graphics.setPaint(new GradientPaint(0, 0, randomColor(random), width, height, randomColor(random)));
+            graphics.fillRect(0, 0, width, height);
+
+            for (int i = 0; i < 30; i++) {
+                int radius = random.nextInt(Math.max(1, height / 4)) + 2;
+                graphics.setColor(randomColor(random));
+                graphics.fillOval(random.nextInt(width), random.nextInt(height), radius * 2, radius * 2);
+            }
+        } finally {
+            graphics.dispose();
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            ImageIO.write(image, "jpg", out);
+        } catch (IOException e) {
+            // Writing to memory does not fail
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+
+    private static Color randomColor(Random random) {
+        return new Color(random.nextInt(256), random.nextInt(256), random.nextInt(256));
+    }
+}